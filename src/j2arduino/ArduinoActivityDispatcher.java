@@ -0,0 +1,152 @@
+package j2arduino;
+
+import j2arduino.devices.Arduino;
+import j2arduino.util.J2ArduinoSettings;
+
+import java.util.*;
+
+/**
+ Delivers activity events to {@link ArduinoActivityListener}s on a dedicated thread shared by all Arduinos and gateways.
+ <p/>
+ Posting an event never blocks on listeners. Rapid {@link ArduinoActivityListener#STATE_ACTIVE}/{@link ArduinoActivityListener#STATE_INACTIVE}
+ toggles of one source that were not delivered yet are merged into one event carrying the latest state, and such updates are delivered at most
+ once every {@link #J2ARDUINO_ACTIVITY_INTERVAL} milliseconds. Lifecycle events ({@link ArduinoActivityListener#STATE_CONNECTED},
+ {@link ArduinoActivityListener#STATE_DISCONNECTED}, {@link ArduinoActivityListener#STATE_RECONNECTING}) are never merged and are delivered
+ without delay, in order with the activity events of the same source.
+ */
+public final class ArduinoActivityDispatcher implements Runnable{
+
+/** Setting for the minimum time in milliseconds between two deliveries of activity updates (default: {@value #DEFAULT_INTERVAL}). */
+public static final String J2ARDUINO_ACTIVITY_INTERVAL = "j2arduino.activity.interval";
+/** Default value of {@link #J2ARDUINO_ACTIVITY_INTERVAL}. */
+public static final int DEFAULT_INTERVAL = 100;
+
+/** Events not delivered yet in the order they were posted. */
+private final ArrayDeque<Event> queue = new ArrayDeque<Event>();
+/** The undelivered activity event of each source (identified by its listener collection) which later activity events are merged into. */
+private final IdentityHashMap<Collection<ArduinoActivityListener>, Event> pending =
+		new IdentityHashMap<Collection<ArduinoActivityListener>, Event>();
+private final long intervalNanos;
+/** Number of lifecycle events in #queue. */
+private int lifecycleEvents = 0;
+/** Earliest time (System.nanoTime()) the next batch containing activity updates may be delivered. */
+private long nextActivity;
+
+private ArduinoActivityDispatcher(long interval){
+	intervalNanos = interval * 1000000L;
+	nextActivity = System.nanoTime();
+}
+
+/** Holds the shared dispatcher, which is created and started on first use without locking on every post. */
+private static final class Holder{
+	static final ArduinoActivityDispatcher DISPATCHER = start();
+
+	private static ArduinoActivityDispatcher start(){
+		final ArduinoActivityDispatcher d = new ArduinoActivityDispatcher(
+				Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_ACTIVITY_INTERVAL, Integer.toString(DEFAULT_INTERVAL))));
+		Thread t = new Thread(d, "j2arduino-activity-dispatcher");
+		t.setDaemon(true);
+		t.start();
+		return d;
+	}
+}
+
+/**
+ Returns the shared dispatcher and starts its thread if necessary.
+
+ @return the dispatcher */
+public static ArduinoActivityDispatcher getInstance(){
+	return Holder.DISPATCHER;
+}
+
+/**
+ Schedules the delivery of an event to all elements of \a listeners.
+ <p/>
+ \a listeners identifies the source of the event: activity events are only merged with pending events posted with the same collection.
+ It should be thread-safe for iteration (e.g. a copy-on-write collection) since it is iterated on the dispatcher thread.
+
+ @param listeners the listeners to notify
+ @param state     the new state
+ @param arduino   the Arduino related to the change, or null */
+public void post(Collection<ArduinoActivityListener> listeners, int state, Arduino arduino){
+	if(listeners.isEmpty())
+		return;
+	synchronized(this){
+		if(state == ArduinoActivityListener.STATE_ACTIVE || state == ArduinoActivityListener.STATE_INACTIVE){
+			Event e = pending.get(listeners);
+			if(e != null){
+				e.state = state;
+				return;
+			}
+			e = new Event(listeners, state, arduino);
+			pending.put(listeners, e);
+			queue.add(e);
+		} else{
+			// later activity must not be merged into events preceding this one
+			pending.remove(listeners);
+			queue.add(new Event(listeners, state, arduino));
+			lifecycleEvents++;
+		}
+		notifyAll();
+	}
+}
+
+@Override
+public void run(){
+	final ArrayList<Event> batch = new ArrayList<Event>();
+	while(true){
+		try{
+			synchronized(this){
+				while(true){
+					if(queue.isEmpty()){
+						wait();
+						continue;
+					}
+					long delay = nextActivity - System.nanoTime();
+					if(lifecycleEvents > 0 || delay <= 0)
+						break;
+					wait(delay / 1000000L + 1);
+				}
+				batch.addAll(queue);
+				queue.clear();
+				pending.clear();
+				lifecycleEvents = 0;
+			}
+		} catch(InterruptedException ignored){
+			continue;
+		}
+
+		boolean activity = false;
+		for(Event e : batch){
+			if(e.state == ArduinoActivityListener.STATE_ACTIVE || e.state == ArduinoActivityListener.STATE_INACTIVE)
+				activity = true;
+			for(ArduinoActivityListener listener : e.listeners){
+				try{
+					listener.connectionStateChanged(e.state, e.arduino);
+				} catch(RuntimeException ex){
+					System.err.println("ArduinoActivityListener " + listener + " threw an exception:");
+					ex.printStackTrace();
+				}
+			}
+		}
+		batch.clear();
+		if(activity){
+			synchronized(this){
+				nextActivity = System.nanoTime() + intervalNanos;
+			}
+		}
+	}
+}
+
+private static final class Event{
+	final Collection<ArduinoActivityListener> listeners;
+	final Arduino arduino;
+	int state;
+
+	Event(Collection<ArduinoActivityListener> listeners, int state, Arduino arduino){
+		this.listeners = listeners;
+		this.state = state;
+		this.arduino = arduino;
+	}
+}
+}
@@ -16,9 +16,17 @@ public static final int STATE_CONNECTED = 1;
 public static final int STATE_ACTIVE = 2;
 /** The caller has ended an immediate BT activity. */
 public static final int STATE_INACTIVE = 3;
+/**
+ The link of the caller broke and it tries to reconnect automatically (see {@link Arduino#J2ARDUINO_RECONNECT}). Requests are kept queued meanwhile.
+ Followed by {@link #STATE_CONNECTED} if reconnecting succeeds, by {@link #STATE_DISCONNECTED} otherwise.
+ */
+public static final int STATE_RECONNECTING = 4;
 
 /**
  Will be called whenever the bluetooth state of the caller changes. \warning Should be called by Arduinos and ArduinoGateways only.
+ <p/>
+ Calls are made from the thread of the {@link ArduinoActivityDispatcher}, which may merge rapid {@link #STATE_ACTIVE}/{@link #STATE_INACTIVE}
+ changes. Implementations should return quickly since they delay the delivery of all other events.
 
  @param state   the new state of the caller.
  @param arduino The caller itself, or null if the state change occurred in the gateway (e.g. when a BT device discovery is started). */
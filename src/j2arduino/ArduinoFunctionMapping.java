@@ -17,6 +17,8 @@ public class ArduinoFunctionMapping{
 public final static byte defaultOffset = 0;
 private final Hashtable<String, Byte> ht;
 private byte funcOffset;
+/** Incremented whenever the contents change, see #getVersion(). */
+private volatile int version = 0;
 
 /**
  Creates an initially empty mapping.
@@ -82,23 +84,37 @@ public synchronized void fetch(Arduino arduino) throws IOException, InterruptedE
 public void fetch(Arduino arduino, int timeout) throws IOException, InterruptedException{
 	if(funcOffset < 0)
 		return;
-	byte[] msg = arduino.sendSyncWait(new ArduinoPacket(funcOffset, null, null), timeout).msg;
+	update(arduino.sendSyncWait(new ArduinoPacket(funcOffset, null, null), timeout).msg);
+}
+
+/**
+ Replaces the contents of this mapping with the mapping encoded in \a msg (the reply of the remote mapping function), unless they are equal.
+
+ @param msg the NUL-separated function names in the order of their offsets
+ @return true if the mapping changed */
+public boolean update(byte[] msg){
+	Hashtable<String, Byte> fetched = new Hashtable<String, Byte>();
+	StringBuilder sb = new StringBuilder(64);
+	byte idx = (byte)0;
+	for(byte aMsg : msg){
+		switch(aMsg){
+			case 0:
+				fetched.put(sb.toString(), idx);
+				idx++;
+				sb.setLength(0);
+				break;
+			default:
+				sb.append((char)aMsg);
+				break;
+		}
+	}
 	synchronized(ht){
+		if(ht.equals(fetched))
+			return false;
 		ht.clear();
-		StringBuilder sb = new StringBuilder(64);
-		byte idx = (byte)0;
-		for(byte aMsg : msg){
-			switch(aMsg){
-				case 0:
-					ht.put(sb.toString(), idx);
-					idx++;
-					sb.setLength(0);
-					break;
-				default:
-					sb.append((char)aMsg);
-					break;
-			}
-		}
+		ht.putAll(fetched);
+		version++;
+		return true;
 	}
 }
 
@@ -132,9 +148,33 @@ public byte get(String funcName){
 	return funcNumber;
 }
 
+/**
+ Returns the name of the function at \a offset (reverse lookup).
+
+ @param offset the function offset
+ @return the name of the function or null if no function is mapped to \a offset */
+public String getName(byte offset){
+	synchronized(ht){
+		for(Map.Entry<String, Byte> e : ht.entrySet())
+			if(e.getValue() == offset)
+				return e.getKey();
+	}
+	return null;
+}
+
 /** Clears all mappings in this instance. */
 public void clear(){
 	ht.clear(); // Unlike the new collection implementations, Hashtable is synchronized.
+	version++;
+}
+
+/**
+ Returns a number that changes whenever the contents of this mapping change (e.g. when it is refetched after reconnecting). Allows to cache offsets
+ and to look them up again only when needed.
+
+ @return the version of the contents */
+public int getVersion(){
+	return version;
 }
 
 }
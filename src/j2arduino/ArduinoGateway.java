@@ -3,22 +3,45 @@ package j2arduino;
 import j2arduino.devices.*;
 import j2arduino.util.J2ArduinoSettings;
 
+import javax.management.*;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** Serves as gateway between java and the c code on the microcontroller. */
 public class ArduinoGateway implements ArduinoActivityListener{
 
-private final HashMap<String, Arduino> arduinos = new HashMap<String, Arduino>(1);
-private final Set<ArduinoActivityListener> listeners = new HashSet<ArduinoActivityListener>(2);
+/** Known Arduinos keyed by their upper case addresses. Lookups never block, modifications are atomic per entry. */
+private final ConcurrentHashMap<String, Arduino> arduinos = new ConcurrentHashMap<String, Arduino>(16);
+private final Set<ArduinoActivityListener> listeners = new CopyOnWriteArraySet<ArduinoActivityListener>();
+/** Serializes discoveries (only). */
 private final Object discoveryLock = new Object();
 /** Stores kinds of arduinos which are currently enabled and available (according to their {@link j2arduino.devices.ArduinoKind#isAvailable()} method. */
 private final ArduinoKind[] availableKinds;
+/** Addresses of the Arduinos added by {@link #addPresetArduinos()}. They are never evicted from the cache. */
+private final Set<String> presetAddresses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
 
 // singleton stuff
 //@{
 private static ArduinoGateway gateway = null;
 public static final String J2ARDUINO_KINDS = "j2arduino.kinds";
+/**
+ Setting listing identifiers of preconfigured Arduinos (separated by commas and/or whitespace). For each identifier {@code id} the following
+ settings are evaluated:
+ <ul>
+ <li>{@code j2arduino.devices.id.kind} (required): the kind as in {@link #J2ARDUINO_KINDS}, e.g. {@code BT},</li>
+ <li>{@code j2arduino.devices.id.address} (required): the address of the device as reported by discovery,</li>
+ <li>{@code j2arduino.devices.id.name}: a human readable name (defaults to {@code id}),</li>
+ <li>{@code j2arduino.devices.id.mapping}: a constant function mapping (see {@link J2ArduinoSettings#getMappingSetting(String)}).</li>
+ </ul>
+ */
+public static final String J2ARDUINO_DEVICES = "j2arduino.devices";
+/**
+ Setting enabling the registration of the {@link ArduinoMetrics} of all known Arduinos with the platform MBean server (default: true). They are
+ named {@code j2arduino:type=Arduino,address="<address>"}.
+ */
+public static final String J2ARDUINO_JMX = "j2arduino.jmx";
 
 /**
  This constructor should only be called from within getInstance or subclasses.
@@ -73,6 +96,58 @@ private ArduinoGateway() throws IOException, IllegalArgumentException{
 	if(kinds.isEmpty())
 		throw new IllegalArgumentException("No functional ArduinoKinds available.");
 	availableKinds = kinds.toArray(new ArduinoKind[kinds.size()]);
+	addPresetArduinos();
+}
+
+/**
+ Instantiates all Arduinos listed in the {@link #J2ARDUINO_DEVICES} setting and adds them to the gateway's database without any discovery.
+ Devices that can not be instantiated (e.g. because they are not attached) are skipped with a warning.
+
+ @throws IllegalArgumentException if a device entry is incomplete or refers to an unavailable kind */
+private void addPresetArduinos() throws IllegalArgumentException{
+	final String s = J2ArduinoSettings.getSetting(J2ARDUINO_DEVICES);
+	if(s == null)
+		return;
+
+	for(String id : s.split("[\\s,]+")){
+		if(id.isEmpty())
+			continue;
+		final String prefix = J2ARDUINO_DEVICES + '.' + id + '.';
+		final String kindName = J2ArduinoSettings.getSetting(prefix + "kind");
+		final String address = J2ArduinoSettings.getSetting(prefix + "address");
+		if(kindName == null || address == null)
+			throw new IllegalArgumentException("Preconfigured Arduino '" + id + "' needs a kind and an address.");
+		ArduinoKind kind = findKind(kindName);
+		if(kind == null)
+			throw new IllegalArgumentException("Kind '" + kindName + "' of preconfigured Arduino '" + id + "' is not available.");
+
+		final Arduino arduino;
+		try{
+			arduino = kind.getArduino(J2ArduinoSettings.getSetting(prefix + "name", id), address);
+		} catch(IOException e){
+			// e.g. an unplugged USB board; the others are usable nonetheless
+			System.err.println("Skipping preconfigured Arduino '" + id + "': " + e.getMessage());
+			continue;
+		}
+		arduino.setPresetMapping(J2ArduinoSettings.getMappingSetting(prefix + "mapping"));
+		addArduino(arduino);
+		presetAddresses.add(arduino.address.toUpperCase());
+		System.err.println("Added preconfigured " + arduino.address);
+	}
+}
+
+/**
+ Returns the available kind with the given name (as used in {@link #J2ARDUINO_KINDS}).
+
+ @param kindName the name of the kind, e.g. "BT"
+ @return the corresponding kind or null if there is no such kind available */
+private ArduinoKind findKind(String kindName){
+	final String className = "j2arduino.devices.Arduino" + kindName + "Kind";
+	for(ArduinoKind k : availableKinds){
+		if(k.getClass().getName().equalsIgnoreCase(className))
+			return k;
+	}
+	return null;
 }
 
 /**
@@ -93,34 +168,42 @@ synchronized public static ArduinoGateway getInstance() throws IOException{
  This will start a discovery process on all available kinds of busses using {@link j2arduino.devices.ArduinoKind#getAvailableArduinos(boolean)}.
  Each
  kind decides if an evaluated device is usable by different characteristics (i.e. usually constant fields provided by the underlying protocols).
+ <p/>
+ Discoveries are serialized, but neither they nor the returned snapshot block or interfere with concurrent calls to {@link #get(String)}.
 
  @param updateNow forces a search for new devices and invalidates the cache of known Arduinos.
- @return A collection containing all Arduinos found (usually without duplicates).
+ @return A read-only snapshot of all Arduinos found (usually without duplicates).
  @throws InterruptedException if the calling thread is interrupted before discovery has completed. */
 public Collection<Arduino> getAvailableArduinos(boolean updateNow) throws IOException, InterruptedException{
 	synchronized(discoveryLock){
-		synchronized(arduinos){
-			if(!updateNow && !arduinos.isEmpty()){
-				return arduinos.values();
-			}
-			for(Arduino a : arduinos.values())
-				if(!a.isConnected()){
-					arduinos.remove(a.address);
-				}
+		if(!updateNow && !arduinos.isEmpty()){
+			return snapshot();
 		}
+		for(Arduino a : arduinos.values())
+			if(!a.isConnected() && !presetAddresses.contains(a.address.toUpperCase())){
+				if(arduinos.remove(a.address.toUpperCase(), a))
+					unregisterMetrics(a);
+			}
 		fireActivityListeners(ArduinoActivityListener.STATE_ACTIVE, null);
 		try{
 			for(ArduinoKind k : availableKinds){
 				for(Arduino a : k.getAvailableArduinos(updateNow)){
-					arduinos.put(a.address, a);
+					addArduino(a);
 				}
 			}
 		} finally{
 			fireActivityListeners(ArduinoActivityListener.STATE_INACTIVE, null);
 		}
+		return snapshot();
 	}
+}
+
+/**
+ Returns a point-in-time copy of all known Arduinos.
 
-	return arduinos.values();
+ @return an unmodifiable collection of the Arduinos known at the time of the call */
+private Collection<Arduino> snapshot(){
+	return Collections.unmodifiableCollection(new ArrayList<Arduino>(arduinos.values()));
 }
 
 /**
@@ -153,15 +236,13 @@ public void removeActivityListener(ArduinoActivityListener l){
 }
 
 /**
- Informs listeners about connection state changes.
+ Informs listeners about connection state changes of the gateway itself (asynchronously).
 
  @param newState the new connection state
  @param arduino  the Arduino instance related to the change, or null if the change is not related to a specific Arduino
  @see #addActivityListener(ArduinoActivityListener) */
 private void fireActivityListeners(int newState, Arduino arduino){
-	for(ArduinoActivityListener listener : listeners){
-		listener.connectionStateChanged(newState, arduino);
-	}
+	ArduinoActivityDispatcher.getInstance().post(listeners, newState, arduino);
 }
 
 /**
@@ -171,17 +252,52 @@ private void fireActivityListeners(int newState, Arduino arduino){
 
  @param arduino the arduino to be added */
 public void addArduino(Arduino arduino){
-	String address = arduino.address.toUpperCase();
-	synchronized(arduinos){
-		if(!arduinos.containsKey(address)){
-			arduinos.put(address, arduino);
-			arduino.addActivityListener(this);
-		}
+	if(arduinos.putIfAbsent(arduino.address.toUpperCase(), arduino) == null){
+		arduino.addActivityListener(this);
+		registerMetrics(arduino);
 	}
 }
 
+/** Management related. */
+//@{
+
+/**
+ Returns the name of the MBean of \a arduino's metrics.
+
+ @param arduino the Arduino
+ @return the object name */
+public static ObjectName getMetricsName(Arduino arduino) throws MalformedObjectNameException{
+	return new ObjectName("j2arduino:type=Arduino,address=" + ObjectName.quote(arduino.address));
+}
+
+private static void registerMetrics(Arduino arduino){
+	if(!Boolean.parseBoolean(J2ArduinoSettings.getSetting(J2ARDUINO_JMX, "true")))
+		return;
+	try{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(arduino.getMetrics(), getMetricsName(arduino));
+	} catch(InstanceAlreadyExistsException ignored){
+		// an equal Arduino was registered before (e.g. by another gateway)
+	} catch(JMException e){
+		System.err.println("Could not register the metrics of " + arduino.address + ":");
+		e.printStackTrace();
+	}
+}
+
+private static void unregisterMetrics(Arduino arduino){
+	try{
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(getMetricsName(arduino));
+	} catch(InstanceNotFoundException ignored){
+	} catch(JMException e){
+		e.printStackTrace();
+	}
+}
+//@}
+
+/** Forwards events of managed Arduinos. Called on the dispatcher thread already, hence the listeners are notified directly. */
 @Override
 public void connectionStateChanged(int state, Arduino arduino){
-	fireActivityListeners(state, arduino);
+	for(ArduinoActivityListener listener : listeners){
+		listener.connectionStateChanged(state, arduino);
+	}
 }
 }
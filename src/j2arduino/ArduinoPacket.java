@@ -3,6 +3,7 @@ package j2arduino;
 import j2arduino.devices.Arduino;
 
 import java.io.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  ArduinoPackets are used as lightweight data exchange objects in {@link j2arduino} and while communicating with its clients.
@@ -29,9 +30,35 @@ public ArduinoResponseListener listener;
  @see j2arduino.devices.Arduino.ArduinoWorker#run() */
 public IOException ex;
 
+/** \defgroup packettiming Packet timing
+ Monotonic timestamps (System.nanoTime()) of the processing steps of a request, set by j2arduino. Steps that were not reached (yet) are 0.
+ */
+//@{
+/** Time when this packet was queued for sending. */
+public long enqueued;
+/** Time when the worker (or event loop) took this packet from the queue. */
+public long dequeued;
+/** Time when the frame of this packet was handed to the transport completely. */
+public long written;
+/** Time when the first byte was received after writing (usually the first byte of the reply). */
+public long firstByte;
+/** Time when the reply frame was decoded. */
+public long decoded;
+/**
+ Time when the processing finished and the reply is handed to the listener and waiting threads. It is set before the listener is called (inline
+ or on the callback executor), so listeners see complete timings; the time spent in listeners is not included.
+ */
+public long completed;
+//@}
+
 /** Constant used internally in j2arduino to distinguish processed from unprocessed packets. */
 public static final int PROCESSING = 0x100; // == 256
 
+/** The thread waiting in {@link #await} for this packet to be processed, if any. */
+private volatile Thread waiter;
+/** Indicates if the processing of this packet is finished. */
+private volatile boolean done;
+
 /**
  Creates a new ArduinoPacket and sets field cmd to \a cmd.
 
@@ -63,6 +90,64 @@ public ArduinoPacket(int command, byte[] payload, ArduinoResponseListener l){
 	ex = null;
 }
 
+/** \defgroup packetcompletion Packet completion methods
+ Used internally in j2arduino to let a sending thread wait for the processing of a packet. They park the waiting thread instead of using a monitor,
+ thus waiting virtual threads do not pin their carrier threads.
+ */
+//@{
+
+/** Marks this packet as being processed, i.e. resets the effects of {@link #markDone()}. */
+public void markPending(){
+	done = false;
+}
+
+/** Marks this packet as processed and wakes up the thread waiting in {@link #await}, if any. */
+public void markDone(){
+	done = true;
+	Thread w = waiter;
+	if(w != null)
+		LockSupport.unpark(w);
+}
+
+/**
+ Returns if the processing of this packet is finished.
+
+ @return true if {@link #markDone()} was called since the last call of {@link #markPending()} */
+public boolean isDone(){
+	return done;
+}
+
+/**
+ Waits until this packet is processed or the timeout expires. Only one thread at a time may wait for a packet.
+
+ @param nanos the maximum time to wait in nanoseconds, 0 waits forever
+ @return true if the packet was processed, false if the timeout expired
+ @throws InterruptedException if the calling thread is interrupted while waiting */
+public boolean await(long nanos) throws InterruptedException{
+	if(done)
+		return true;
+	waiter = Thread.currentThread();
+	try{
+		final long deadline = System.nanoTime() + nanos;
+		while(!done){
+			if(Thread.interrupted())
+				throw new InterruptedException();
+			if(nanos == 0){
+				LockSupport.park(this);
+			} else{
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0)
+					return false;
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		return true;
+	} finally{
+		waiter = null;
+	}
+}
+//@}
+
 /** Prints the content of various fields in human readable format to stderr. */
 public void print(){
 	PrintStream stream = System.err;
@@ -82,6 +167,63 @@ public void print(){
 	stream.println();
 }
 
+/** \addtogroup packettiming */
+//@{
+
+/** Resets all timestamps and sets {@link #enqueued} to now. Called by j2arduino when queueing this packet. */
+public void markEnqueued(){
+	dequeued = written = firstByte = decoded = completed = 0;
+	enqueued = System.nanoTime();
+}
+
+private static long span(long from, long to){
+	return (from == 0 || to == 0) ? -1 : to - from;
+}
+
+/** @return the time spent in the send queue in nanoseconds or -1 if unknown */
+public long getQueueTime(){
+	return span(enqueued, dequeued);
+}
+
+/** @return the time needed to encode and write the frame in nanoseconds or -1 if unknown */
+public long getWriteTime(){
+	return span(dequeued, written);
+}
+
+/** @return the time from writing until the first byte of the reply arrived (link latency plus processing on the device) in nanoseconds or -1 */
+public long getDeviceTime(){
+	return span(written, firstByte);
+}
+
+/** @return the time needed to receive and decode the rest of the reply in nanoseconds or -1 if unknown */
+public long getReceiveTime(){
+	return span(firstByte, decoded);
+}
+
+/** @return the time from decoding the reply until handing it over (excluding listeners) in nanoseconds or -1 if unknown */
+public long getCompletionTime(){
+	return span(decoded, completed);
+}
+
+/** @return the time from queueing until the processing finished in nanoseconds or -1 if unknown */
+public long getTotalTime(){
+	return span(enqueued, completed);
+}
+
+/**
+ Returns a human readable breakdown of the processing time, e.g. for logging slow calls.
+
+ @return the durations of all steps in milliseconds ("?" for unknown ones) */
+public String getTimingBreakdown(){
+	return "total " + ms(getTotalTime()) + " = queue " + ms(getQueueTime()) + " + write " + ms(getWriteTime()) + " + device " +
+	       ms(getDeviceTime()) + " + receive " + ms(getReceiveTime()) + " + completion " + ms(getCompletionTime());
+}
+
+private static String ms(long nanos){
+	return (nanos < 0) ? "?" : String.format("%.3f ms", nanos / 1e6);
+}
+//@}
+
 /** \defgroup packethelpers Packet creation helper methods
  The two helper methods {@link #readUnsignedInteger} and {@link #writeUnsignedInteger} use little-endian,
  because Atmel's AVRs use that (most of the time) when they have to deal with multibyte integers.
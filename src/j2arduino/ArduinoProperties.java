@@ -32,6 +32,14 @@ public void setFuncOffset(short offset){
 	this.funcOffset = offset;
 }
 
+/**
+ Returns the offset that is used to query remote Arduinos for properties.
+
+ @return the offset or a negative value if properties are not queried */
+public short getFuncOffset(){
+	return funcOffset;
+}
+
 /**
  Tries to fetch the properties from the remote device represented by parameter \a arduino with a default timeout.
 
@@ -54,7 +62,15 @@ public void fetch(Arduino arduino, int timeout) throws IOException, InterruptedE
 		return;
 	}
 
-	byte[] msg = arduino.sendSyncWait(new ArduinoPacket(funcOffset, null, null), timeout).msg;
+	update(arduino.sendSyncWait(new ArduinoPacket(funcOffset, null, null), timeout).msg);
+}
+
+/**
+ Replaces all properties with the pairs encoded in \a msg (the reply of the remote properties function).
+
+ @param msg the NUL-separated keys and values */
+public synchronized void update(byte[] msg){
+	ht.clear();
 	if(msg.length == 0)
 		return;
 	StringBuilder sb = new StringBuilder();
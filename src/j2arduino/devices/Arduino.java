@@ -2,9 +2,14 @@ package j2arduino.devices;
 
 import j2arduino.*;
 import j2arduino.util.*;
+import j2arduino.util.TimeoutException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  Represents one remote device. After {@link #connect connecting} various methods to send data or "call" methods are available. To listen for link
@@ -19,6 +24,57 @@ public abstract class Arduino{
 public static final int PACKET_TIMEOUT = 2500;
 /** Default timeout in milliseconds  for a connecting attempt. 0 will block forever. */
 public static final int CONNECTING_TIMEOUT = 3000;
+/**
+ Setting selecting how {@link ArduinoResponseListener}s are called back by default:
+ <ul>
+ <li>{@code inline} (default): directly on the worker thread; on a per-device executor backed by the shared callback pool for Arduinos served
+ by an event loop, since listeners must not block the loop (e.g. by calling sendSync),</li>
+ <li>{@code serial}: in order, on a per-device executor backed by the shared callback pool,</li>
+ <li>{@code shared}: on the shared callback pool without any ordering guarantees.</li>
+ </ul>
+
+ @see #setCallbackExecutor(java.util.concurrent.Executor) */
+public static final String J2ARDUINO_CALLBACKS = "j2arduino.callbacks";
+/** Setting for the number of threads of the shared callback pool (defaults to the number of available processors). */
+public static final String J2ARDUINO_CALLBACK_THREADS = "j2arduino.callbacks.threads";
+/**
+ Setting enabling the shared event loop transport (default: false). If enabled, Arduinos providing {@link #openReadChannel() non-blocking
+ channels} are served by a few shared event loop threads instead of one worker thread each. Other Arduinos still use worker threads.
+ */
+public static final String J2ARDUINO_EVENTLOOP = "j2arduino.eventloop";
+/** Setting for the number of event loop threads (default: 1). */
+public static final String J2ARDUINO_EVENTLOOP_THREADS = "j2arduino.eventloop.threads";
+/** Setting for the number of requests that can be queued per Arduino before senders block (default: 8). */
+public static final String J2ARDUINO_QUEUE_SIZE = "j2arduino.queue.size";
+/**
+ Setting enabling automatic reconnects (default: false). If enabled, a connection whose link breaks is reopened in the background with exponential
+ backoff instead of being torn down. Meanwhile requests stay queued (up to {@link #J2ARDUINO_QUEUE_SIZE}) and the function mapping and properties
+ are kept; they are validated with one round trip after reopening. Only the request in flight when the link broke fails. Applies to worker threads
+ only, links on the {@link #J2ARDUINO_EVENTLOOP shared event loop} are still torn down.
+ */
+public static final String J2ARDUINO_RECONNECT = "j2arduino.reconnect";
+/** Setting for the number of reconnecting attempts before giving up and disconnecting (default: 10). */
+public static final String J2ARDUINO_RECONNECT_ATTEMPTS = "j2arduino.reconnect.attempts";
+/** Setting for the delay in milliseconds before the first reconnecting attempt, doubled after every failed attempt (default: 50). */
+public static final String J2ARDUINO_RECONNECT_DELAY = "j2arduino.reconnect.delay";
+/** Setting for the maximum delay in milliseconds between two reconnecting attempts (default: 2000). */
+public static final String J2ARDUINO_RECONNECT_MAX_DELAY = "j2arduino.reconnect.maxdelay";
+/**
+ Setting for the name of a function called without payload to probe idle links (e.g. {@code a2jEcho}; default: none, which disables heartbeats).
+ The worker thread sends it whenever no request was queued for {@link #J2ARDUINO_HEARTBEAT_INTERVAL} milliseconds and feeds the results into the
+ {@link #getLinkQuality() link quality} estimate. A heartbeat times out after the {@link ArduinoLinkQuality#getSuggestedTimeout() suggested
+ timeout}, but waits at most {@link #PACKET_TIMEOUT} / ({@link #J2ARDUINO_HEARTBEAT_FAILURES} + 1), so a request queued behind it keeps most of
+ its own timeout. A heartbeat that times out counts as late for the estimate (backing off its suggested timeout) and is followed by the next one
+ right away unless requests are queued. If {@link #J2ARDUINO_HEARTBEAT_FAILURES} heartbeats or requests in a row time out or fail, the link is
+ considered broken and reconnected (see {@link #J2ARDUINO_RECONNECT}) or disconnected, which for an idle link happens within one {@link
+ #PACKET_TIMEOUT} after the first failed heartbeat. Applies to worker threads only.
+ */
+public static final String J2ARDUINO_HEARTBEAT = "j2arduino.heartbeat.function";
+/** Setting for the idle time in milliseconds after which a heartbeat is sent (default: 1000). */
+public static final String J2ARDUINO_HEARTBEAT_INTERVAL = "j2arduino.heartbeat.interval";
+/** Setting for the number of consecutive failed heartbeats or timed out requests after which the link is considered broken (default: 2). */
+public static final String J2ARDUINO_HEARTBEAT_FAILURES = "j2arduino.heartbeat.failures";
+private static ExecutorService sharedCallbackExecutor = null;
 /**
  An unique identifier for the hardware device represented by this object. Usually a string representation of the hardware address of the associated
  device.
@@ -29,12 +85,22 @@ public final String address;
 public final String name;
 private final Collection<ArduinoActivityListener> listeners;
 private ConcurrentRingBuffer<ArduinoPacket> requests;
-/** Indicates connection state: 0 == disconnected, 1 == connecting, 2 == connected. */
-private byte connected;
-private Thread workerThread;
-private ArduinoWorker worker;
+/** Indicates connection state: 0 == disconnected, 1 == connecting, 2 == connected, 3 == reconnecting. */
+private volatile byte connected;
+/** The link of the current connection or null. */
+private volatile ArduinoLink link;
 private ArduinoFunctionMapping funcMapping;
 private ArduinoProperties props;
+/** A constant function mapping used by {@link #connect} if none is given explicitly. */
+private Hashtable<String, Byte> presetMapping;
+/** Executor used to call back ArduinoResponseListeners or null if they are called by the worker thread. */
+private volatile Executor callbackExecutor;
+/** Calls back listeners in order if #callbackExecutor is null but the Arduino is served by an event loop; null if event loops are disabled. */
+private final Executor loopCallbackExecutor;
+/** Number of callbacks handed over to #callbackExecutor that have not finished yet. */
+private final AtomicInteger pendingCallbacks = new AtomicInteger();
+private final ArduinoLinkQuality linkQuality = new ArduinoLinkQuality();
+private final ArduinoMetrics metrics;
 
 /**
  @addtogroup j2asizes java2arduino sizes */
@@ -45,7 +111,7 @@ public static final int A2J_MAX_PAYLOAD = 255;
 public static final int A2J_MANY_HEADER = 6;
 /** Maximum number of bytes to be transmitted as payload in a2jMany packets. */
 public static final int A2J_MANY_PAYLOAD = A2J_MAX_PAYLOAD - A2J_MANY_HEADER;
-/** The number of bytes to be buffered by the input and output streams connected to the underlying stream. */
+/** The size of the receive buffer of connections and the default packet size of {@link ArduinoStreamTransport}s. */
 public static final int BUFFER_SIZE = 300;
 //@}
 
@@ -59,11 +125,25 @@ public Arduino(String name, String address){
 	connected = (byte)0;
 	this.name = name;
 	funcMapping = null;
-	requests = new ConcurrentRingBuffer<ArduinoPacket>(8, "Connection closed");
+	requests = new ConcurrentRingBuffer<ArduinoPacket>(Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_QUEUE_SIZE, "8")),
+	                                                   "Connection closed");
 	this.address = address;
-	workerThread = null;
-	worker = null;
-	listeners = new ArrayList<ArduinoActivityListener>(1);
+	link = null;
+	listeners = new CopyOnWriteArrayList<ArduinoActivityListener>();
+	metrics = new ArduinoMetrics(this, requests);
+	final String callbacks = J2ArduinoSettings.getSetting(J2ARDUINO_CALLBACKS, "inline");
+	if(callbacks.equalsIgnoreCase("serial"))
+		callbackExecutor = new SerialExecutor(getSharedCallbackExecutor());
+	else if(callbacks.equalsIgnoreCase("shared"))
+		callbackExecutor = getSharedCallbackExecutor();
+	else if(callbacks.equalsIgnoreCase("inline"))
+		callbackExecutor = null;
+	else
+		throw new IllegalArgumentException("Unknown value of setting " + J2ARDUINO_CALLBACKS + ": " + callbacks);
+	if(Boolean.parseBoolean(J2ArduinoSettings.getSetting(J2ARDUINO_EVENTLOOP, "false")))
+		loopCallbackExecutor = new SerialExecutor(getSharedCallbackExecutor());
+	else
+		loopCallbackExecutor = null;
 }
 
 /**
@@ -90,9 +170,10 @@ public int hashCode(){
 /**
  Creates a new connection.
  <p/>
- Creates a connection including a working thread, function mapping and properties. If a (non-null) Hashtable is provided, it will be used as
+ Creates a connection including a working thread (or a link on a shared event loop, see {@link #J2ARDUINO_EVENTLOOP}), function mapping and
+ properties. If a (non-null) Hashtable is provided, it will be used as
  constant
- function mapping, else the Arduino will be queried for it.
+ function mapping, else the {@link #setPresetMapping preset mapping} is used. If there is none either, the Arduino will be queried for it.
  <p/>
  \ingroup arduinoConnection
 
@@ -101,22 +182,35 @@ public int hashCode(){
  @throws java.io.IOException  if no connection could be established.
  @throws InterruptedException If the calling thread is interrupted before the connecting attempt succeeded */
 public boolean connect(Hashtable functionMapping) throws IOException, InterruptedException{
+	final ArduinoEvents.Connect event = ArduinoEvents.beginConnect();
 	synchronized(this){
 		if(connected != 0)
 			return false;
 		fireActivityListeners(ArduinoActivityListener.STATE_ACTIVE);
+		ArduinoLink newLink = null;
+		// every link owns the capture of its connection and closes it itself, a new connection never shares it with an old link still closing
+		final ArduinoTrace trace = ArduinoTrace.open(this);
 		try{
-			final InputStream inputStream = openInputStream();
-			final OutputStream outputStream = openOutputStream();
-			worker = new ArduinoWorker(requests,
-			                           new BufferedInputStream(inputStream, BUFFER_SIZE),
-			                           new BufferedOutputStream(outputStream, BUFFER_SIZE));
+			if(Boolean.parseBoolean(J2ArduinoSettings.getSetting(J2ARDUINO_EVENTLOOP, "false"))){
+				final SelectableChannel readChannel = openReadChannel();
+				if(readChannel != null)
+					newLink = new ArduinoChannelLink(this, requests, readChannel, openWriteChannel(), ArduinoEventLoop.next(), trace);
+			}
+			if(newLink == null){
+				newLink = new ArduinoWorker(requests, openTransport(), trace);
+			}
+		} catch(IOException ex){
+			closeTrace(trace);
+			ArduinoEvents.connected(event, this, false, false);
+			throw ex;
 		} finally{
 			fireActivityListeners(ArduinoActivityListener.STATE_INACTIVE);
 		}
-		workerThread = new Thread(worker, address + "-Worker");
-		workerThread.start();
-		funcMapping = new ArduinoFunctionMapping(functionMapping);
+		requests.setEnabled(true);
+		linkQuality.reset();
+		link = newLink;
+		newLink.start();
+		funcMapping = new ArduinoFunctionMapping((functionMapping != null) ? functionMapping : presetMapping);
 		props = new ArduinoProperties(funcMapping.get("a2jGetPropsOffset"));
 		connected = 1;
 	}
@@ -138,6 +232,7 @@ public boolean connect(Hashtable functionMapping) throws IOException, Interrupte
 			e = ex;
 		} catch(IOException ex){
 			disconnect();
+			ArduinoEvents.connected(event, this, false, false);
 			throw ex;
 		} catch(InterruptedException ex){
 			ie = ex;
@@ -146,6 +241,7 @@ public boolean connect(Hashtable functionMapping) throws IOException, Interrupte
 
 		if(tries <= 0){
 			disconnect();
+			ArduinoEvents.connected(event, this, false, false);
 			if(e != null){
 				throw e;
 			} else{
@@ -154,6 +250,7 @@ public boolean connect(Hashtable functionMapping) throws IOException, Interrupte
 		}
 	}
 	connected = 2;
+	ArduinoEvents.connected(event, this, false, true);
 
 	fireActivityListeners(ArduinoActivityListener.STATE_CONNECTED);
 	return true;
@@ -167,6 +264,37 @@ protected abstract OutputStream openOutputStream() throws IOException;
 
 protected abstract InputStream openInputStream() throws IOException;
 
+/**
+ Opens the transport used by the worker thread of a new connection.
+ <p/>
+ The default implementation adapts the streams returned by {@link #openInputStream()} and {@link #openOutputStream()} without adding any
+ buffering. Kinds override this to report their packet size or to access the underlying protocol directly.
+
+ @return a new transport */
+protected ArduinoTransport openTransport() throws IOException{
+	return new ArduinoStreamTransport(openInputStream(), openOutputStream(), BUFFER_SIZE);
+}
+
+/**
+ Opens the channel from which replies are read when using the shared event loop.
+ <p/>
+ Kinds that can provide a non-blocking {@link java.nio.channels.ReadableByteChannel} (e.g. sockets or pipes) override this and
+ {@link #openWriteChannel()}. Both methods may return the same object.
+
+ @return a readable selectable channel or null if this Arduino does not support channels (the default)
+ @see #J2ARDUINO_EVENTLOOP */
+protected SelectableChannel openReadChannel() throws IOException{
+	return null;
+}
+
+/**
+ Opens the channel to which requests are written when using the shared event loop. Only called if {@link #openReadChannel()} returned a channel.
+
+ @return a writable selectable channel */
+protected SelectableChannel openWriteChannel() throws IOException{
+	return null;
+}
+
 protected abstract void releaseResources();
 
 /** Stops the working thread, tears down the connection, notifies all listeners. \ingroup arduinoConnection */
@@ -176,20 +304,49 @@ public void disconnect(){
 			return;
 		connected = 0;
 	}
-	if(workerThread != null){
-		worker.shutdown();
-		if(Thread.currentThread() != workerThread){
-			workerThread.interrupt();
-			while(workerThread.isAlive()){
-				try{
-					workerThread.join();
-				} catch(InterruptedException e){
-					System.err.println("Interrupted while waiting for ArduinoWorker to die!");
-					e.printStackTrace();
+	ArduinoLink l = link;
+	if(l != null){
+		l.shutdown();
+		link = null;
+	}
+}
+
+/**
+ Cleans up after the link of a connection has closed its streams or channels: releases resources, clears cached data, fails all queued requests
+ and notifies listeners.
+
+ @param sendQueue the queue of the closed link
+ @param lastEx    the last exception that occurred while transferring, if any */
+void linkClosed(ConcurrentRingBuffer<ArduinoPacket> sendQueue, Exception lastEx){
+	releaseResources();
+	ArduinoEvents.disconnected(this, lastEx);
+	funcMapping.clear();
+	props.clear();
+	synchronized(sendQueue){
+		sendQueue.setEnabled(false);
+		Iterator<ArduinoPacket> it = sendQueue.iterator();
+		IOException endEx = new IOException("Connection closed before the request was fully processed", lastEx);
+		while(it.hasNext()){
+			ArduinoPacket p = it.next();
+			if(p != null){
+				p.ex = endEx;
+				p.completed = System.nanoTime();
+				p.markDone();
+				synchronized(p){
+					p.notifyAll();
 				}
 			}
-			workerThread = null;
-			worker = null;
+		}
+	}
+	fireActivityListeners(ArduinoActivityListener.STATE_DISCONNECTED);
+}
+
+/** Closes the capture of a connection, if any. */
+static void closeTrace(ArduinoTrace t){
+	if(t != null){
+		try{
+			t.close();
+		} catch(IOException ignored){
 		}
 	}
 }
@@ -204,6 +361,36 @@ public boolean isConnected(){
 	return connected == 2;
 }
 
+/**
+ Returns if the link of this Arduino broke and it is reconnecting automatically.
+ <p/>
+ \ingroup arduinoConnection
+
+ @return true if a reconnect is in progress
+ @see #J2ARDUINO_RECONNECT */
+public boolean isReconnecting(){
+	return connected == 3;
+}
+
+/**
+ Returns the round trip time and loss rate estimate of the link to this Arduino. It is only updated if heartbeats are enabled.
+ <p/>
+ \ingroup arduinoConnection
+
+ @return the link quality of the current (or last) connection
+ @see #J2ARDUINO_HEARTBEAT */
+public ArduinoLinkQuality getLinkQuality(){
+	return linkQuality;
+}
+
+/**
+ Returns the counters and latency histograms of this Arduino. They are kept across connections.
+
+ @return the metrics of this Arduino */
+public ArduinoMetrics getMetrics(){
+	return metrics;
+}
+
 /**
  Returns the function mapping of this Arduino.
 
@@ -212,6 +399,22 @@ public ArduinoFunctionMapping getFuncMapping(){
 	return funcMapping;
 }
 
+/**
+ Sets a constant function mapping to be used by subsequent calls to {@link #connect} that do not specify one themselves.
+
+ @param mapping the mapping of function names to offsets, or null to query the Arduino for it */
+public void setPresetMapping(Hashtable<String, Byte> mapping){
+	presetMapping = mapping;
+}
+
+/**
+ Returns the constant function mapping set by {@link #setPresetMapping}.
+
+ @return the preset mapping or null if there is none */
+public Hashtable<String, Byte> getPresetMapping(){
+	return presetMapping;
+}
+
 /**
  Returns the properties of this Arduino.
 
@@ -220,11 +423,69 @@ public ArduinoProperties getProps(){
 	return props;
 }
 
+/** ArduinoResponseListener related. */
+//@{
+
+/**
+ Sets the Executor used to call back the {@link ArduinoResponseListener}s of requests sent to this Arduino.
+ <p/>
+ If \a executor is null, listeners are called directly on the worker thread, which blocks any further communication with the device until they
+ return; with an event loop they are called in order on a per-device executor instead. Use a {@link SerialExecutor} to preserve the order of
+ callbacks while running them elsewhere.
+
+ @param executor the executor to use or null
+ @see #J2ARDUINO_CALLBACKS */
+public void setCallbackExecutor(Executor executor){
+	callbackExecutor = executor;
+}
+
+/**
+ Returns the Executor used to call back ArduinoResponseListeners.
+
+ @return the executor or null if listeners are called on the worker thread */
+public Executor getCallbackExecutor(){
+	return callbackExecutor;
+}
+
+/**
+ Returns the number of listener callbacks handed over to the callback executor that have not finished yet.
+
+ @return the callback queue depth (including running callbacks) */
+public int getPendingCallbacks(){
+	return pendingCallbacks.get();
+}
+
+/**
+ Returns the callback pool shared by all Arduinos and creates it if necessary.
+
+ @return the shared executor
+ @see #J2ARDUINO_CALLBACK_THREADS */
+synchronized public static ExecutorService getSharedCallbackExecutor(){
+	if(sharedCallbackExecutor == null){
+		int threads = Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_CALLBACK_THREADS,
+		                                                            Integer.toString(Runtime.getRuntime().availableProcessors())));
+		sharedCallbackExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r){
+				Thread t = new Thread(r, "j2arduino-callback-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	return sharedCallbackExecutor;
+}
+//@}
+
 /** ArduinoActivityListener related. */
 //@{
 
 /**
  Adds \a l to the list of ArduinoActivityListeners that will get notified in the event of connection changes.
+ <p/>
+ Listeners are called back asynchronously by the {@link ArduinoActivityDispatcher}.
 
  @param l the element to add. */
 public void addActivityListener(ArduinoActivityListener l){
@@ -239,10 +500,8 @@ public void removeActivityListener(ArduinoActivityListener l){
 	listeners.remove(l);
 }
 
-private void fireActivityListeners(int newState){
-	for(ArduinoActivityListener listener : listeners){
-		listener.connectionStateChanged(newState, this);
-	}
+void fireActivityListeners(int newState){
+	ArduinoActivityDispatcher.getInstance().post(listeners, newState, this);
 }
 //@}
 
@@ -310,7 +569,12 @@ public void sendAsyncByName(String funcName, byte[] payload, ArduinoResponseList
  @throws IllegalStateException    if not connected. */
 public void sendAsync(ArduinoPacket req) throws IllegalArgumentException, IllegalStateException{
 	verifyRequest(req);
+	req.markEnqueued();
+	ArduinoEvents.enqueued(this, req, req.cmd, requests.size() + 1); // before the worker may change req
 	requests.putUninterruptible(req);
+	ArduinoLink l = link;
+	if(l != null)
+		l.requestQueued();
 }
 //@}
 
@@ -373,34 +637,35 @@ public ArduinoPacket sendSyncByName(String funcName, byte[] payload)
  if there is no answer received in time.
  @throws java.io.IOException      if an error occurred while sending, receiving or processing on the remote device.
  @throws InterruptedException     if the calling thread is interrupted while waiting for space in the sender queue or for the timeout
- @throws IllegalStateException    if not connected. */
+ @throws IllegalStateException    if not connected or called from an event loop thread, which would wait for itself. */
 public ArduinoPacket sendSyncWait(ArduinoPacket req, long milliseconds)
 		throws IOException, IllegalArgumentException, IllegalStateException, InterruptedException{
 	if(milliseconds <= 0)
 		throw new TimeoutException();
+	if(ArduinoEventLoop.inAnyLoop())
+		throw new IllegalStateException("Synchronous requests must not be sent from an event loop thread");
 	verifyRequest(req);
-	synchronized(req){
-		req.cmd = req.cmd + ArduinoPacket.PROCESSING; // 0-FF -> 100-1FF to distinguish processed from not processed packets later
-		requests.put(req);
-		long endTime = System.currentTimeMillis() + milliseconds;
-		while(true){
-			req.wait(milliseconds);
-			IOException ex = req.ex;
-			long curTime = System.currentTimeMillis();
-			if(ex != null){ // packet was processed, but an error occurred
-				throw ex;
-			} else if(req.cmd < ArduinoPacket.PROCESSING)// everything ok
-				return req;
-			if(endTime <= curTime && req.cmd >= ArduinoPacket.PROCESSING){ // packet should be done now but is not
-				workerThread.interrupt();
-				req.wait();
-				throw new TimeoutException("Processing the request took too long", req.ex);
-			} else{ // must be spurious interrupt
-				if(milliseconds != 0 && endTime - curTime != 0) // 0 is special
-					milliseconds = endTime - curTime;
-			}
-		}
+	req.cmd = req.cmd + ArduinoPacket.PROCESSING; // 0-FF -> 100-1FF to distinguish processed from not processed packets later
+	req.markPending();
+	req.markEnqueued();
+	ArduinoEvents.enqueued(this, req, req.cmd, requests.size() + 1); // before the worker may change req
+	requests.put(req);
+	ArduinoLink l = link;
+	if(l != null)
+		l.requestQueued();
+	if(!req.await(milliseconds * 1000000L)){ // packet should be done now but is not
+		l = link;
+		if(l != null)
+			l.abort(req);
+		req.await(0);
+		metrics.timeout();
+		throw new TimeoutException("Processing the request took too long", req.ex);
 	}
+	IOException ex = req.ex;
+	if(ex != null){ // packet was processed, but an error occurred
+		throw ex;
+	}
+	return req;
 }
 
 /**
@@ -441,6 +706,7 @@ public ArduinoPacket sendLongByName(String funcName, byte[] payload) throws IOEx
 		sendOff += curLen;
 		todo -= curLen;
 
+		final ArduinoEvents.LongTransferChunk chunk = ArduinoEvents.beginChunk();
 		ArduinoPacket ans = sendSyncByName("a2jMany", curPayload);
 
 		if(ans.cmd != 0)
@@ -449,6 +715,7 @@ public ArduinoPacket sendLongByName(String funcName, byte[] payload) throws IOEx
 		rcvOff = ArduinoPacket.readUnsignedInteger(rcvBytes, 2, 4);
 		// todo: use rcvOff
 		replies.append(rcvBytes, A2J_MANY_HEADER);
+		ArduinoEvents.chunkCompleted(chunk, this, funcOff, sendOff - curLen, curLen, rcvBytes.length - A2J_MANY_HEADER, sendLast == 1);
 		if(sendLast == 1 && rcvBytes[1] == 1){
 			ans.msg = replies.getAll();
 			ans.cmd = rcvBytes[0];
@@ -458,57 +725,146 @@ public ArduinoPacket sendLongByName(String funcName, byte[] payload) throws IOEx
 }
 //@}
 
+/**
+ Notifies all listeners of an ArduinoPacket that the processing finished.
+ <p/>
+ If set the explicit listener of ArduinoPacket \a req will be called back to handle the answer (on the {@link #callbackExecutor} if any) and all
+ threads, that synchronize on \a req will be notified.
+
+ @param req the request that was processed
+ */
+void completeRequest(final ArduinoPacket req){
+	req.completed = System.nanoTime(); // before handing off, the listener may read the timings
+	final ArduinoResponseListener listener = req.listener;
+	if(listener != null){
+		Executor executor = callbackExecutor;
+		if(executor == null && ArduinoEventLoop.inAnyLoop())
+			executor = loopCallbackExecutor;
+		if(executor == null){
+			callListener(listener, req);
+		} else{
+			pendingCallbacks.incrementAndGet();
+			try{
+				executor.execute(new Runnable(){
+					@Override
+					public void run(){
+						try{
+							callListener(listener, req);
+						} finally{
+							pendingCallbacks.decrementAndGet();
+						}
+					}
+				});
+			} catch(RejectedExecutionException e){
+				// the executor is shut down or saturated, fall back to calling back directly
+				pendingCallbacks.decrementAndGet();
+				callListener(listener, req);
+			}
+		}
+	}
+	req.markDone();
+	synchronized(req){
+		req.notifyAll();
+	}
+}
+
+private void callListener(ArduinoResponseListener listener, ArduinoPacket req){
+	final ArduinoEvents.CallbackFinished event = ArduinoEvents.beginCallback();
+	listener.handleResponse(req);
+	ArduinoEvents.callbackFinished(event, this, req);
+}
+
 /**
  Implements the actual transceiving. An instance of this class is used to create a Thread for each connection (i.e. if the device is disconnected,
  there is no additional thread running).
  */
-private class ArduinoWorker implements Runnable{
-	/** @addtogroup j2aframing java2arduino framing characters */
-	//@{
-	/** Start of a frame. */
-	static final private byte A2J_SOF = 0x12;
-	/** Escape character. */
-	static final private byte A2J_ESC = 0x7D;
-	//@}
-
-	/** @addtogroup j2acrc java2arduino crc constants */
-	//@{
-	/** Constant to be added to the command offset byte. */
-	public static final byte A2J_CRC_CMD = 11;
-	/** Constant to be added to the length byte. */
-	public static final byte A2J_CRC_LEN = 97;
-	//@}
-
-	/** @addtogroup j2aerrors java2arduino error values */
-	//@{
-	/** Function offset was out of bounds. */
-	static final private byte A2J_RET_OOB = (byte)0xF0;
-	/** Timeout while arduino2j#a2jProcess was receiving. */
-	static final private byte A2J_RET_TO = (byte)0xF2;
-	/** Checksum error while arduino2j#a2jProcess was receiving. */
-	static final private byte A2J_RET_CHKSUM = (byte)0xF3;
-	//@}
-
+private class ArduinoWorker implements ArduinoLink, Runnable{
 	final private ConcurrentRingBuffer<ArduinoPacket> sendQueue;
-	final private BufferedInputStream in;
-	final private BufferedOutputStream out;
-	private boolean run = true;
+	/** The transport of the current connection, null while reconnecting. */
+	private ArduinoTransport transport;
+	/** Holds the encoded frame to be sent. */
+	final private ByteBuffer frame = ByteBuffer.allocate(ArduinoFrameCodec.A2J_MAX_FRAME);
+	final private ByteBuffer[] frames = {frame};
+	/** Holds received bytes not decoded yet (in read mode). */
+	private ByteBuffer received;
+	final private ArduinoFrameCodec.Decoder decoder = new ArduinoFrameCodec.Decoder();
+	private volatile boolean run = true;
+	/** The request being transferred or null. */
+	private volatile ArduinoPacket current = null;
 	private byte seqNum = 0;
-
-	ArduinoWorker(ConcurrentRingBuffer<ArduinoPacket> senderQueue, BufferedInputStream inputStream, BufferedOutputStream outputStream)
-			throws IOException{
+	private Thread thread;
+	/** Timestamps of the last #transfer, see {@link ArduinoPacket#written} et al. */
+	private long written, firstByte, decoded;
+	/** The name of the heartbeat function or null if heartbeats are disabled. */
+	final private String heartbeat;
+	final private long heartbeatInterval;
+	final private int maxHeartbeatFailures;
+	/** The maximum time in milliseconds a heartbeat waits for its reply, so all failures needed to break the link fit into one #PACKET_TIMEOUT. */
+	final private long heartbeatTimeout;
+	/** Number of heartbeats or requests that failed in a row. */
+	private int heartbeatFailures = 0;
+	/** The capture of this connection or null if tracing is disabled, see {@link ArduinoTrace#J2ARDUINO_TRACE}. */
+	final private ArduinoTrace trace;
+
+	ArduinoWorker(ConcurrentRingBuffer<ArduinoPacket> senderQueue, ArduinoTransport transport, ArduinoTrace trace){
 		sendQueue = senderQueue;
-		in = inputStream;
-		out = outputStream;
+		this.transport = transport;
+		this.trace = trace;
+		received = ByteBuffer.allocate(Math.max(BUFFER_SIZE, transport.getPacketSize()));
+		received.flip();
+		heartbeat = J2ArduinoSettings.getSetting(J2ARDUINO_HEARTBEAT);
+		heartbeatInterval = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_HEARTBEAT_INTERVAL, "1000"));
+		maxHeartbeatFailures = Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_HEARTBEAT_FAILURES, "2"));
+		heartbeatTimeout = Math.max(1, PACKET_TIMEOUT / (maxHeartbeatFailures + 1));
+	}
+
+	@Override
+	public void start(){
+		thread = WorkerThreads.newThread(this, address + "-Worker");
+		thread.start();
+	}
+
+	@Override
+	public void requestQueued(){
+		// the worker is blocked in take() anyway
+	}
+
+	/** Fails \a req right away if it is still queued (e.g. while reconnecting), else interrupts its transfer. */
+	@Override
+	public void abort(ArduinoPacket req){
+		if(sendQueue.remove(req)){
+			req.ex = new InterruptedIOException("Transfer aborted");
+			req.cmd = req.cmd - ArduinoPacket.PROCESSING; // marks the packet as done
+			completeRequest(req);
+			return;
+		}
+		// taken by the worker, which publishes it as #current right after the take: wait for that unless it is done already
+		while(!req.isDone()){
+			if(current == req){
+				thread.interrupt();
+				return;
+			}
+			Thread.yield();
+		}
 	}
 
 	/**
-	 Tells this instance to exit before the next write/read iteration. If there is an immediate exit required, one has to interrupt the executing
-	 thread
-	 afterwards.
+	 Tells this instance to exit before the next write/read iteration and waits for the thread to die, unless called by the worker thread itself.
 	 */
-	private void shutdown(){
+	@Override
+	public void shutdown(){
 		run = false;
+		if(Thread.currentThread() != thread){
+			thread.interrupt();
+			while(thread.isAlive()){
+				try{
+					thread.join();
+				} catch(InterruptedException e){
+					System.err.println("Interrupted while waiting for ArduinoWorker to die!");
+					e.printStackTrace();
+				}
+			}
+		}
 	}
 
 	@Override
@@ -517,70 +873,33 @@ private class ArduinoWorker implements Runnable{
 		while(run){
 			final ArduinoPacket req;
 			try{
-				req = sendQueue.take();
+				// after a failure the link is probed again right away unless requests are queued
+				req = (heartbeat == null) ? sendQueue.take() : sendQueue.poll((heartbeatFailures > 0) ? 0 : heartbeatInterval);
 			} catch(InterruptedException e){
 				// lets reevaluate the run condition
 				continue;
 			}
+			if(req == null){
+				sendHeartbeat();
+				continue;
+			}
+			current = req;
 			byte cmd = (byte)(req.cmd - ArduinoPacket.PROCESSING);
-			int len = (req.msg == null) ? 0 : req.msg.length;
-			byte seq = seqNum;
-			byte cSum = seq;
-			seqNum++;
-			cSum ^= A2J_CRC_CMD + (byte)req.cmd;
-			cSum ^= A2J_CRC_LEN + len;
+			req.dequeued = System.nanoTime();
+			final long queueWait = req.dequeued - req.enqueued;
+			metrics.dequeued(cmd, queueWait);
+			ArduinoEvents.dequeued(Arduino.this, req, cmd, seqNum, queueWait);
+			boolean broken = false;
+			boolean timedOut = false;
 
 			try{
 				fireActivityListeners(ArduinoActivityListener.STATE_ACTIVE);
-				out.write(A2J_SOF);
-				writeByte(seq);
-				writeByte(cmd);
-				writeByte(len);
-
-				for(int i = 0; i < len; i++){
-					int tmp = req.msg[i];
-					writeByte(tmp);
-					cSum ^= tmp;
-				}
-				writeByte(cSum);
-				out.flush();
-
-
-				// receiving...
-				while(run){
-					while(run && in.read() != A2J_SOF){
-					}
-					if(seq == readByte()){
-						break;
-					}
-				}
-				cmd = readByte();
-				len = readByte()&0xFF; // read length of data array
-				cSum = seq;
-				cSum ^= A2J_CRC_CMD + cmd;
-				cSum ^= A2J_CRC_LEN + len;
-				byte[] msg = new byte[len];
-				if(len > 0){
-					for(int i = 0; i < len; i++){
-						byte tmp = readByte();
-						msg[i] = tmp;
-						cSum ^= tmp;
-					}
-				}
-				byte rSum = readByte();
-				if(rSum != cSum){
-					throw new EOFException("Checksum of received frame mismatched");
-				}
+				cmd = transfer(cmd, req.msg, 0);
+				byte[] msg = decoder.getMsg();
 				req.msg = msg;
-				switch(cmd){
-					case A2J_RET_OOB:
-						throw new EOFException("Function offset was out of bounds");
-					case A2J_RET_TO:
-						int line = ((msg[0]&0xff)<<8) + (msg[1]&0xff);
-						throw new TimeoutException("Timeout while peer was receiving around line " + line);
-					case A2J_RET_CHKSUM:
-						throw new EOFException("Checksum of sent frame mismatched");
-				}
+				IOException retEx = ArduinoFrameCodec.getReturnException(cmd, msg);
+				if(retEx != null)
+					throw retEx;
 			} catch(EOFException e){
 				// thrown by malformed frames... lets reevaluate the run condition
 //				e.printStackTrace();
@@ -589,102 +908,240 @@ private class ArduinoWorker implements Runnable{
 				// thrown by read timeouts... lets reevaluate the run condition
 //				e.printStackTrace();
 				lastEx = req.ex = e;
+				timedOut = true;
 			} catch(InterruptedIOException e){
-				// thrown by interrupted i/o operations... lets reevaluate the run condition
+				// thrown by interrupted i/o operations (e.g. aborts of timed out requests)... lets reevaluate the run condition
 //				e.printStackTrace();
 				lastEx = req.ex = e;
+				timedOut = run;
 			} catch(IOException e){
-				// thrown if the connection aborts (not interrupted) while we are reading, we better shutdown...?
+				// thrown if the connection aborts (not interrupted) while we are reading: reconnect if enabled, else shutdown
 				lastEx = req.ex = e;
-				disconnect();
+				broken = true;
 			} catch(RuntimeException e){
 				e.printStackTrace(); // thrown by negative array indices etc. should not happen
 				lastEx = req.ex = new IOException("Internal j2Arduino error in Worker: " + e.getMessage(), e);
 			} finally{
+				// failed requests keep the timestamps of the steps they reached
+				req.written = written;
+				req.firstByte = firstByte;
+				req.decoded = decoded;
+				current = null;
 				req.cmd = cmd; // marks the packet as done
-				notifyListeners(req); // listeners of req need to be informed in all cases (normal, shutdown interrupt, connection abort)
+				completeRequest(req); // listeners of req need to be informed in all cases (normal, shutdown interrupt, connection abort)
 				fireActivityListeners(ArduinoActivityListener.STATE_INACTIVE);
 			}
+			if(heartbeat != null && !broken){
+				// requests are probes too: a busy dead link is detected by them
+				if(timedOut)
+					broken = ++heartbeatFailures >= maxHeartbeatFailures;
+				else if(req.ex == null)
+					heartbeatFailures = 0;
+			}
+			if(broken)
+				linkBroken();
 		}
 
-		try{
-			in.close();
-		} catch(IOException ignored){
-		}
-		try{
-			out.close();
-		} catch(IOException ignored){
+		if(transport != null){
+			try{
+				transport.close();
+			} catch(IOException ignored){
+			}
 		}
-		releaseResources();
-		funcMapping.clear();
-		props.clear();
-		synchronized(sendQueue){
-			sendQueue.setEnabled(false);
-			Iterator<ArduinoPacket> it = sendQueue.iterator();
-			IOException endEx = new IOException("Connection closed before the request was fully processed", lastEx);
-			while(it.hasNext()){
-				ArduinoPacket p = it.next();
-				if(p != null){
-					p.ex = endEx;
-					synchronized(p){
-						p.notifyAll();
-					}
+		closeTrace(trace);
+		linkClosed(sendQueue, lastEx);
+	}
+
+	/**
+	 Sends one frame and reads until the matching reply frame is decoded. The payload of the reply is available from #decoder afterwards.
+
+	 @param cmd     the command byte to send
+	 @param msg     the payload to send (may be null)
+	 @param timeout the read timeout in milliseconds, 0 waits forever
+	 @return the command byte of the reply */
+	private byte transfer(byte cmd, byte[] msg, long timeout) throws IOException{
+		final byte seq = seqNum;
+		seqNum++;
+		frame.clear();
+		written = firstByte = decoded = 0;
+		final int escapes = ArduinoFrameCodec.encode(seq, cmd, msg, frame);
+		frame.flip();
+		final int length = frame.remaining();
+		final long start = System.nanoTime();
+		final ArduinoEvents.FrameFlushed flushed = ArduinoEvents.beginFlush();
+		transport.write(frames, timeout);
+		written = System.nanoTime();
+		if(trace != null)
+			trace.record(ArduinoTrace.DIRECTION_SENT, seq, written, frame, 0, length);
+		metrics.frameSent(length, escapes);
+		ArduinoEvents.flushed(flushed, Arduino.this, current, cmd, seq, msg, length, escapes);
+		final ArduinoEvents.ReplyDecoded reply = ArduinoEvents.beginReply();
+
+		// receiving...
+		decoder.reset(seq&0xFF);
+		while(true){
+			if(!run)
+				throw new InterruptedIOException("Worker is shutting down");
+			if(!received.hasRemaining()){
+				received.clear();
+				int n = transport.read(received, timeout);
+				received.flip();
+				if(n < 0)
+					throw new IOException("Connection closed by peer");
+				final long now = System.nanoTime();
+				if(firstByte == 0 && n > 0)
+					firstByte = now;
+				metrics.bytesReceived(n);
+				if(trace != null)
+					trace.record(ArduinoTrace.DIRECTION_RECEIVED, seq, now, received, 0, n);
+			}
+			try{
+				if(decoder.decode(received)){
+					decoded = System.nanoTime();
+					final byte ret = decoder.getCmd();
+					metrics.replied(cmd, decoded - start);
+					metrics.frameReceived(ret);
+					ArduinoEvents.decoded(reply, Arduino.this, current, cmd, seq, ret, decoder.getMsg());
+					return ret;
 				}
+			} catch(EOFException e){
+				metrics.frameError(e instanceof ArduinoFrameCodec.ChecksumException);
+				throw e;
 			}
 		}
-		fireActivityListeners(ArduinoActivityListener.STATE_DISCONNECTED);
 	}
 
-	/**
-	 Notifies all listeners of an ArduinoPacket that the processing finished.
-	 <p/>
-	 If set the explicit listener of ArduinoPacket \a req will be called back to handle the answer and all threads, that synchronize on \a req will be
-	 notified.
+	/** Reconnects if enabled and connected, else disconnects. */
+	private void linkBroken(){
+		if(connected == 2 && Boolean.parseBoolean(J2ArduinoSettings.getSetting(J2ARDUINO_RECONNECT, "false")))
+			reconnect();
+		else
+			disconnect();
+	}
 
-	 @param req the request that was processed
-	 */
-	private void notifyListeners(ArduinoPacket req){
-		if(req.listener != null){
-			req.listener.handleResponse(req);
-		}
-		synchronized(req){
-			req.notifyAll();
+	/** Probes the idle link with the heartbeat function and updates #linkQuality. */
+	private void sendHeartbeat(){
+		if(connected != 2)
+			return;
+		final byte offset = funcMapping.get(heartbeat);
+		if(offset < 0)
+			return;
+		final long timeout = Math.min(heartbeatTimeout, linkQuality.getSuggestedTimeout());
+		final long start = System.nanoTime();
+		try{
+			call(offset, timeout);
+			linkQuality.sample(System.nanoTime() - start);
+			heartbeatFailures = 0;
+			return;
+		} catch(TimeoutException e){
+			// the reply is late or lost, a late reply is skipped by the decoder; the estimate counts it as late, the detection as a failure
+			linkQuality.late();
+			if(++heartbeatFailures >= maxHeartbeatFailures)
+				linkBroken();
+			return;
+		} catch(EOFException e){
+			// malformed reply
+		} catch(InterruptedIOException e){
+			if(!run)
+				return;
+		} catch(IOException e){
+			linkQuality.lost();
+			linkBroken();
+			return;
 		}
+		linkQuality.lost();
+		if(++heartbeatFailures >= maxHeartbeatFailures)
+			linkBroken();
 	}
 
 	/**
-	 Writes a byte to the OutputStream.
-	 <p/>
-	 If the given argument has to be escaped, it writes #A2J_ESC first and then \a data-1. @see a2jframing
-
-	 @param data the byte to write
-	 @throws java.io.IOException if an I/O error occurs
+	 Reopens the transport with exponential backoff while the queued requests wait. Disconnects if all attempts fail; returns early if the worker
+	 is shut down meanwhile.
 	 */
-	private void writeByte(int data) throws IOException{
-		if(data == A2J_SOF || data == A2J_ESC){
-			out.write(A2J_ESC);
-			out.write(data - 1);
-		} else{
-			out.write(data);
+	private void reconnect(){
+		synchronized(Arduino.this){
+			if(connected != 2)
+				return;
+			connected = 3;
+		}
+		fireActivityListeners(ArduinoActivityListener.STATE_RECONNECTING);
+		closeTransport();
+		final int attempts = Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_RECONNECT_ATTEMPTS, "10"));
+		final long maxDelay = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_RECONNECT_MAX_DELAY, "2000"));
+		long delay = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_RECONNECT_DELAY, "50"));
+		for(int i = 0; i < attempts; i++){
+			try{
+				Thread.sleep(delay);
+			} catch(InterruptedException ignored){
+				// lets reevaluate the run condition
+			}
+			if(!run)
+				return;
+			delay = Math.min(delay * 2, maxDelay);
+			final ArduinoEvents.Connect event = ArduinoEvents.beginConnect();
+			try{
+				transport = openTransport();
+				if(received.capacity() < transport.getPacketSize())
+					received = ByteBuffer.allocate(transport.getPacketSize());
+				received.clear();
+				received.flip();
+				validate();
+			} catch(IOException e){
+				closeTransport();
+				ArduinoEvents.connected(event, Arduino.this, true, false);
+				continue;
+			}
+			synchronized(Arduino.this){
+				if(connected != 3)
+					return; // disconnect() is in progress
+				connected = 2;
+			}
+			heartbeatFailures = 0;
+			metrics.reconnected();
+			ArduinoEvents.connected(event, Arduino.this, true, true);
+			fireActivityListeners(ArduinoActivityListener.STATE_CONNECTED);
+			return;
 		}
+		disconnect();
 	}
 
 	/**
-	 Reads one byte from the InputStream.
-	 <p/>
-	 Tries to read a byte from the InputStream with a timeout of #READ_TIMEOUT ms. If that byte indicates escaping, another byte is read and returned
-	 after it has been incremented.
+	 Checks the cached function mapping and properties against the device with one round trip: the mapping is fetched if it is not fixed, and only
+	 if it changed the properties are fetched too. With a fixed mapping the properties are fetched instead (if they can be).
+
+	 @throws IOException if the device does not reply properly */
+	private void validate() throws IOException{
+		final ArduinoFunctionMapping mapping = funcMapping;
+		if(!mapping.isFixedMapping()){
+			byte[] msg = call(ArduinoFunctionMapping.defaultOffset, CONNECTING_TIMEOUT);
+			if(!mapping.update(msg))
+				return;
+			props.setFuncOffset(mapping.get("a2jGetProperties"));
+		}
+		final short propsOffset = props.getFuncOffset();
+		if(propsOffset >= 0)
+			props.update(call((byte)propsOffset, CONNECTING_TIMEOUT));
+	}
 
-	 @return The next byte after de-escaping
-	 @throws java.io.IOException If an I/O error occurs or #A2J_SOF is read first
-	 */
-	private byte readByte() throws IOException{
-		byte data = (byte)(in.read());
-		if(data == A2J_SOF)
-			throw new EOFException("Unescaped delimiter character inside frame");
-		if(data == A2J_ESC)
-			data = (byte)(in.read() + 1);
-		return data;
+	/** Calls the function at \a offset without payload on behalf of the worker itself and returns the payload of its reply. */
+	private byte[] call(byte offset, long timeout) throws IOException{
+		byte cmd = transfer(offset, null, timeout);
+		byte[] msg = decoder.getMsg();
+		IOException retEx = ArduinoFrameCodec.getReturnException(cmd, msg);
+		if(retEx != null)
+			throw retEx;
+		return msg;
+	}
+
+	private void closeTransport(){
+		if(transport != null){
+			try{
+				transport.close();
+			} catch(IOException ignored){
+			}
+			transport = null;
+		}
+		releaseResources();
 	}
 }
 }
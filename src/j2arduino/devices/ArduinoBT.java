@@ -1,26 +1,54 @@
 package j2arduino.devices;
 
+import j2arduino.util.J2ArduinoSettings;
+
 import javax.microedition.io.*;
 import java.io.*;
 
 public class ArduinoBT extends Arduino{
 
+/** Setting for the RFCOMM channel of the serial port service of ArduinoBTs (default: 1). */
+public static final String J2ARDUINO_BT_CHANNEL = "j2arduino.bt.channel";
+
+/** The connection shared by the input and output stream of the current connection, or null. */
+private StreamConnection connection;
+/** The connection URL, computed once and reused by every (re)connect. */
+private final String url;
+
 public ArduinoBT(String name, String address){
 	super(name, address);
+	url = "btspp://" + address + ':' + J2ArduinoSettings.getSetting(J2ARDUINO_BT_CHANNEL, "1");
+}
+
+/**
+ Returns the RFCOMM connection of this Arduino and opens it if necessary.
+
+ @return the connection used by both streams */
+private synchronized StreamConnection getConnection() throws IOException{
+	if(connection == null)
+		connection = (StreamConnection)Connector.open(url, Connector.READ_WRITE);
+	return connection;
 }
 
 @Override
 protected OutputStream openOutputStream() throws IOException{
-	return ((OutputConnection)Connector.open("btspp://" + address + ":1", Connector.READ_WRITE)).openOutputStream();
+	return getConnection().openOutputStream();
 }
 
 @Override
 protected InputStream openInputStream() throws IOException{
-	return ((InputConnection)Connector.open("btspp://" + address + ":1", Connector.READ_WRITE)).openInputStream();
+	return getConnection().openInputStream();
 }
 
 @Override
-protected void releaseResources(){
+protected synchronized void releaseResources(){
+	if(connection != null){
+		try{
+			connection.close();
+		} catch(IOException ignored){
+		}
+		connection = null;
+	}
 }
 
 @Override
@@ -63,6 +63,11 @@ public HashSet<Arduino> getAvailableArduinos(boolean updateNow) throws IOExcepti
 	return arduinos;
 }
 
+@Override
+public Arduino getArduino(String name, String address){
+	return new ArduinoBT(name, address.toUpperCase());
+}
+
 @Override
 public void deviceDiscovered(RemoteDevice btDevice, DeviceClass deviceClass){
 	String address = btDevice.getBluetoothAddress().toUpperCase();
@@ -71,7 +76,7 @@ public void deviceDiscovered(RemoteDevice btDevice, DeviceClass deviceClass){
 			String name = btDevice.getFriendlyName(false);
 			if(name != null && name.startsWith(BT_PREFIX)){
 				synchronized(arduinos){
-					Arduino arduino = new ArduinoBT(address, name);
+					Arduino arduino = new ArduinoBT(name, address);
 					arduinos.add(arduino);
 				}
 			}
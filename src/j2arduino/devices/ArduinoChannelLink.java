@@ -0,0 +1,299 @@
+package j2arduino.devices;
+
+import j2arduino.*;
+import j2arduino.util.ConcurrentRingBuffer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ Transfers the requests of one Arduino over non-blocking channels on a shared {@link ArduinoEventLoop}.
+ <p/>
+ Semantically equivalent to the blocking worker thread: one request is in flight at a time, it is completed when the reply frame with the
+ matching sequence number is decoded, and the connection is torn down if a channel fails. All fields are confined to the loop thread.
+ */
+final class ArduinoChannelLink implements ArduinoLink{
+
+private final Arduino arduino;
+private final ConcurrentRingBuffer<ArduinoPacket> sendQueue;
+private final ArduinoEventLoop loop;
+private final SelectableChannel readChannel;
+private final SelectableChannel writeChannel;
+private SelectionKey readKey;
+private SelectionKey writeKey;
+private final ByteBuffer out = ByteBuffer.allocate(ArduinoFrameCodec.A2J_MAX_FRAME);
+private final ByteBuffer in = ByteBuffer.allocate(Arduino.BUFFER_SIZE);
+private final ArduinoFrameCodec.Decoder decoder = new ArduinoFrameCodec.Decoder();
+private final ArduinoMetrics metrics;
+/** Time (System.nanoTime()) when the frame of #current was queued for writing. */
+private long sent;
+/** The function, sequence number, size and number of escapes of the frame of #current. */
+private byte currentCmd, currentSeq;
+private int frameSize, frameEscapes;
+/** The JFR events of #current: the flush is pending until #out is written completely, the reply afterwards. */
+private ArduinoEvents.FrameFlushed flushEvent;
+/** If the frame of #current is not completely written yet. */
+private boolean flushPending;
+private ArduinoEvents.ReplyDecoded replyEvent;
+/** The request in flight or null. */
+private ArduinoPacket current;
+private byte seqNum = 0;
+private boolean closed = false;
+private IOException lastEx = null;
+/** The capture of this connection or null if tracing is disabled, see {@link ArduinoTrace#J2ARDUINO_TRACE}. */
+private final ArduinoTrace trace;
+/** Indicates if #pumpTask is scheduled already (to avoid waking up the loop for every queued request). */
+private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+private final Runnable pumpTask = new Runnable(){
+	@Override
+	public void run(){
+		pumpScheduled.set(false);
+		pump();
+	}
+};
+
+/**
+ Creates a new link. The channels have to be a {@link ReadableByteChannel} and a {@link WritableByteChannel} respectively; they may be the same
+ object.
+ */
+ArduinoChannelLink(Arduino arduino, ConcurrentRingBuffer<ArduinoPacket> sendQueue, SelectableChannel readChannel, SelectableChannel writeChannel,
+                   ArduinoEventLoop loop, ArduinoTrace trace){
+	if(!(readChannel instanceof ReadableByteChannel) || !(writeChannel instanceof WritableByteChannel))
+		throw new IllegalArgumentException("Channels need to be readable and writable byte channels respectively");
+	this.arduino = arduino;
+	this.sendQueue = sendQueue;
+	this.readChannel = readChannel;
+	this.writeChannel = writeChannel;
+	this.loop = loop;
+	this.trace = trace;
+	metrics = arduino.getMetrics();
+}
+
+@Override
+public void start(){
+	loop.execute(new Runnable(){
+		@Override
+		public void run(){
+			try{
+				readChannel.configureBlocking(false);
+				writeChannel.configureBlocking(false);
+				readKey = loop.register(readChannel, SelectionKey.OP_READ, ArduinoChannelLink.this);
+				writeKey = (writeChannel == readChannel) ? readKey : loop.register(writeChannel, 0, ArduinoChannelLink.this);
+			} catch(IOException e){
+				failed(e);
+				return;
+			}
+			pump();
+		}
+	});
+}
+
+@Override
+public void requestQueued(){
+	if(pumpScheduled.compareAndSet(false, true))
+		loop.execute(pumpTask);
+}
+
+@Override
+public void abort(final ArduinoPacket req){
+	loop.execute(new Runnable(){
+		@Override
+		public void run(){
+			if(current == req){
+				finish(new InterruptedIOException("Transfer aborted"));
+			}
+		}
+	});
+}
+
+@Override
+public void shutdown(){
+	if(loop.inLoop()){
+		close();
+		return;
+	}
+	final CountDownLatch done = new CountDownLatch(1);
+	loop.execute(new Runnable(){
+		@Override
+		public void run(){
+			close();
+			done.countDown();
+		}
+	});
+	while(true){
+		try{
+			done.await();
+			return;
+		} catch(InterruptedException e){
+			System.err.println("Interrupted while waiting for ArduinoChannelLink to close!");
+			e.printStackTrace();
+		}
+	}
+}
+
+/** Starts transferring the next queued request if there is none in flight. */
+private void pump(){
+	if(closed || current != null || readKey == null)
+		return;
+	ArduinoPacket req = sendQueue.poll();
+	if(req == null)
+		return;
+	current = req;
+	arduino.fireActivityListeners(ArduinoActivityListener.STATE_ACTIVE);
+	final byte cmd = (byte)(req.cmd - ArduinoPacket.PROCESSING);
+	sent = System.nanoTime();
+	req.dequeued = sent;
+	metrics.dequeued(cmd, sent - req.enqueued);
+	final byte seq = seqNum++;
+	ArduinoEvents.dequeued(arduino, req, cmd, seq, sent - req.enqueued);
+	out.clear();
+	final int escapes = ArduinoFrameCodec.encode(seq, req.cmd, req.msg, out);
+	out.flip();
+	metrics.frameSent(out.remaining(), escapes);
+	currentCmd = cmd;
+	currentSeq = seq;
+	frameSize = out.remaining();
+	frameEscapes = escapes;
+	flushEvent = ArduinoEvents.beginFlush();
+	flushPending = true;
+	decoder.reset(seq&0xFF);
+	try{
+		write();
+	} catch(IOException e){
+		failed(e);
+	}
+}
+
+/** Writes as much of #out as possible and registers interest in writability if anything remains. */
+private void write() throws IOException{
+	((WritableByteChannel)writeChannel).write(out);
+	if(!out.hasRemaining() && flushPending){
+		flushPending = false;
+		current.written = System.nanoTime();
+		if(trace != null)
+			trace.record(ArduinoTrace.DIRECTION_SENT, currentSeq, current.written, out, 0, frameSize);
+		ArduinoEvents.flushed(flushEvent, arduino, current, currentCmd, currentSeq, current.msg, frameSize, frameEscapes);
+		flushEvent = null;
+		replyEvent = ArduinoEvents.beginReply();
+	}
+	int ops = writeKey.interestOps();
+	if(out.hasRemaining())
+		writeKey.interestOps(ops|SelectionKey.OP_WRITE);
+	else if((ops&SelectionKey.OP_WRITE) != 0)
+		writeKey.interestOps(ops&~SelectionKey.OP_WRITE);
+}
+
+/**
+ Handles readiness of one of the channels. Called by the loop.
+
+ @param key the selected key */
+void handle(SelectionKey key){
+	try{
+		if(key.isValid() && key.isWritable())
+			write();
+		if(key.isValid() && key.isReadable())
+			read();
+	} catch(IOException e){
+		failed(e);
+	}
+}
+
+private void read() throws IOException{
+	int n = ((ReadableByteChannel)readChannel).read(in);
+	if(n < 0)
+		throw new EOFException("Connection closed by peer");
+	metrics.bytesReceived(n);
+	final long now = System.nanoTime();
+	if(n > 0 && current != null && current.written != 0 && current.firstByte == 0)
+		current.firstByte = now;
+	if(trace != null)
+		trace.record(ArduinoTrace.DIRECTION_RECEIVED, currentSeq, now, in, 0, n);
+	in.flip();
+	while(in.hasRemaining()){
+		if(current == null){
+			// nobody is waiting for these bytes (e.g. the rest of an aborted reply)
+			in.position(in.limit());
+			break;
+		}
+		try{
+			if(decoder.decode(in)){
+				byte[] msg = decoder.getMsg();
+				byte cmd = decoder.getCmd();
+				current.decoded = System.nanoTime();
+				metrics.replied(currentCmd, current.decoded - sent);
+				metrics.frameReceived(cmd);
+				ArduinoEvents.decoded(replyEvent, arduino, current, currentCmd, currentSeq, cmd, msg);
+				replyEvent = null;
+				current.msg = msg;
+				finish(cmd, ArduinoFrameCodec.getReturnException(cmd, msg));
+			}
+		} catch(EOFException e){
+			metrics.frameError(e instanceof ArduinoFrameCodec.ChecksumException);
+			finish(e);
+		}
+	}
+	in.clear();
+}
+
+/** Completes the current request unsuccessfully. */
+private void finish(IOException ex){
+	finish((byte)(current.cmd - ArduinoPacket.PROCESSING), ex);
+}
+
+/** Completes the current request and starts the next one. */
+private void finish(byte cmd, IOException ex){
+	complete(cmd, ex);
+	pump();
+}
+
+/** Completes the current request. */
+private void complete(byte cmd, IOException ex){
+	ArduinoPacket req = current;
+	current = null;
+	flushEvent = null;
+	flushPending = false;
+	replyEvent = null;
+	if(ex != null)
+		lastEx = ex;
+	req.ex = ex;
+	req.cmd = cmd; // marks the packet as done
+	arduino.completeRequest(req); // listeners of req need to be informed in all cases (normal, abort, connection abort)
+	arduino.fireActivityListeners(ArduinoActivityListener.STATE_INACTIVE);
+}
+
+/** Handles a failure of the underlying connection like the blocking worker does: by disconnecting. */
+private void failed(IOException e){
+	lastEx = e;
+	if(current != null)
+		complete((byte)(current.cmd - ArduinoPacket.PROCESSING), e);
+	arduino.disconnect();
+	close(); // in case we were disconnected already
+}
+
+/** Closes the channels, fails the request in flight and reports the closed link to the Arduino. */
+private void close(){
+	if(closed)
+		return;
+	closed = true;
+	if(readKey != null)
+		readKey.cancel();
+	if(writeKey != null)
+		writeKey.cancel();
+	try{
+		readChannel.close();
+	} catch(IOException ignored){
+	}
+	try{
+		writeChannel.close();
+	} catch(IOException ignored){
+	}
+	if(current != null)
+		complete((byte)(current.cmd - ArduinoPacket.PROCESSING),
+		         new IOException("Connection closed before the request was fully processed", lastEx));
+	Arduino.closeTrace(trace);
+	arduino.linkClosed(sendQueue, lastEx);
+}
+}
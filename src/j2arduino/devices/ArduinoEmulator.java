@@ -0,0 +1,108 @@
+package j2arduino.devices;
+
+import j2arduino.util.MemoryPipe;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ An Arduino emulated inside the JVM by an {@link EmulatedDevice}. Useful to test and load applications without hardware.
+ <p/>
+ Every connection starts a new device thread serving the emulated device over in-memory pipes (or NIO pipes when the shared event loop is used).
+ The device keeps its functions and properties across connections.
+ */
+public class ArduinoEmulator extends Arduino{
+
+private static final int PIPE_CAPACITY = 4096;
+private final EmulatedDevice device;
+private MemoryPipe toDevice;
+private MemoryPipe fromDevice;
+private Pipe toDeviceChannel;
+private Pipe fromDeviceChannel;
+
+/**
+ Creates an Arduino instance emulating a device with the built-in functions only.
+
+ @param name    a String used in GUIs to identify this Arduino
+ @param address a String identifying this Arduino */
+public ArduinoEmulator(String name, String address){
+	this(name, address, new EmulatedDevice(name));
+}
+
+/**
+ Creates an Arduino instance.
+
+ @param name    a String used in GUIs to identify this Arduino
+ @param address a String identifying this Arduino
+ @param device  the emulated device */
+public ArduinoEmulator(String name, String address, EmulatedDevice device){
+	super(name, address);
+	this.device = device;
+}
+
+/** @return the emulated device, e.g. to add functions or change its fault injection parameters */
+public EmulatedDevice getDevice(){
+	return device;
+}
+
+private synchronized void openPipes(){
+	if(toDevice == null){
+		toDevice = new MemoryPipe(PIPE_CAPACITY);
+		fromDevice = new MemoryPipe(PIPE_CAPACITY);
+		device.start(toDevice.in, fromDevice.out);
+	}
+}
+
+private synchronized void openChannels() throws IOException{
+	if(toDeviceChannel == null){
+		Pipe to = Pipe.open();
+		Pipe from = Pipe.open();
+		device.start(Channels.newInputStream(to.source()), Channels.newOutputStream(from.sink()));
+		toDeviceChannel = to;
+		fromDeviceChannel = from;
+	}
+}
+
+@Override
+protected OutputStream openOutputStream() throws IOException{
+	openPipes();
+	return toDevice.out;
+}
+
+@Override
+protected InputStream openInputStream() throws IOException{
+	openPipes();
+	return fromDevice.in;
+}
+
+@Override
+protected SelectableChannel openReadChannel() throws IOException{
+	openChannels();
+	return fromDeviceChannel.source();
+}
+
+@Override
+protected SelectableChannel openWriteChannel() throws IOException{
+	openChannels();
+	return toDeviceChannel.sink();
+}
+
+@Override
+protected synchronized void releaseResources(){
+	if(toDevice != null){
+		toDevice.close();
+		fromDevice.close();
+	}
+	try{
+		if(toDeviceChannel != null){
+			toDeviceChannel.sink().close();
+			fromDeviceChannel.source().close();
+		}
+	} catch(IOException ignored){
+	}
+	toDevice = null;
+	fromDevice = null;
+	toDeviceChannel = null;
+	fromDeviceChannel = null;
+}
+}
@@ -0,0 +1,39 @@
+package j2arduino.devices;
+
+import j2arduino.util.J2ArduinoSettings;
+
+import java.util.HashSet;
+
+/**
+ Arduinos emulated inside the JVM (see {@link ArduinoEmulator}). {@link #getAvailableArduinos(boolean)} returns as many emulators as given by the
+ setting {@link #J2ARDUINO_EMULATOR_DEVICES}, with the addresses {@code EMU-0}, {@code EMU-1} and so on.
+ */
+public class ArduinoEmulatorKind implements ArduinoKind{
+
+/** Setting for the number of emulated Arduinos (default: 1). */
+public static final String J2ARDUINO_EMULATOR_DEVICES = "j2arduino.emulator.devices";
+private final HashSet<Arduino> arduinos = new HashSet<Arduino>(1);
+
+public ArduinoEmulatorKind(){
+}
+
+@Override
+public boolean isAvailable(){
+	return true;
+}
+
+@Override
+public HashSet<Arduino> getAvailableArduinos(boolean updateNow){
+	final int count = Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_DEVICES, "1"));
+	synchronized(arduinos){
+		for(int i = arduinos.size(); i < count; i++)
+			arduinos.add(new ArduinoEmulator("Emulator " + i, "EMU-" + i));
+	}
+	return arduinos;
+}
+
+@Override
+public Arduino getArduino(String name, String address){
+	return new ArduinoEmulator(name, address);
+}
+}
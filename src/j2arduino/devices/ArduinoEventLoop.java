@@ -0,0 +1,116 @@
+package j2arduino.devices;
+
+import j2arduino.util.J2ArduinoSettings;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ A thread multiplexing the non-blocking channels of many {@link ArduinoChannelLink}s with one {@link Selector}.
+ <p/>
+ A small fixed set of loops (see {@link Arduino#J2ARDUINO_EVENTLOOP_THREADS}) is shared by all Arduinos; links are assigned round-robin. All
+ state of a link is only touched by the thread of its loop; other threads hand over work with {@link #execute(Runnable)}.
+ */
+final class ArduinoEventLoop implements Runnable{
+
+private static volatile ArduinoEventLoop[] loops = null;
+private static int next = 0;
+
+private final Selector selector;
+private final Thread thread;
+private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+private ArduinoEventLoop(String name) throws IOException{
+	selector = Selector.open();
+	thread = new Thread(this, name);
+	thread.setDaemon(true);
+	thread.start();
+}
+
+/**
+ Returns the loop to be used by the next link and creates the loops if necessary.
+
+ @return an event loop
+ @throws IOException if a selector can not be opened */
+synchronized static ArduinoEventLoop next() throws IOException{
+	if(loops == null){
+		int count = Integer.parseInt(J2ArduinoSettings.getSetting(Arduino.J2ARDUINO_EVENTLOOP_THREADS, "1"));
+		if(count < 1)
+			throw new IllegalArgumentException(Arduino.J2ARDUINO_EVENTLOOP_THREADS + " has to be positive");
+		ArduinoEventLoop[] l = new ArduinoEventLoop[count];
+		for(int i = 0; i < count; i++)
+			l[i] = new ArduinoEventLoop("j2arduino-eventloop-" + i);
+		loops = l;
+	}
+	ArduinoEventLoop loop = loops[next];
+	next = (next + 1) % loops.length;
+	return loop;
+}
+
+/** @return true if the calling thread is the thread of this loop */
+boolean inLoop(){
+	return Thread.currentThread() == thread;
+}
+
+/** @return true if the calling thread is the thread of any loop */
+static boolean inAnyLoop(){
+	final ArduinoEventLoop[] l = loops;
+	if(l != null){
+		for(ArduinoEventLoop loop : l){
+			if(loop.inLoop())
+				return true;
+		}
+	}
+	return false;
+}
+
+/**
+ Runs \a task on the thread of this loop as soon as possible.
+
+ @param task the task to run */
+void execute(Runnable task){
+	tasks.add(task);
+	selector.wakeup();
+}
+
+/**
+ Registers \a channel with the selector of this loop. Must be called on the loop thread.
+
+ @return the new key */
+SelectionKey register(SelectableChannel channel, int ops, ArduinoChannelLink link) throws ClosedChannelException{
+	return channel.register(selector, ops, link);
+}
+
+@Override
+public void run(){
+	while(true){
+		try{
+			selector.select();
+		} catch(IOException e){
+			System.err.println(thread.getName() + " could not select:");
+			e.printStackTrace();
+			continue;
+		}
+		Runnable task;
+		while((task = tasks.poll()) != null){
+			try{
+				task.run();
+			} catch(RuntimeException e){
+				e.printStackTrace();
+			}
+		}
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while(it.hasNext()){
+			SelectionKey key = it.next();
+			it.remove();
+			try{
+				((ArduinoChannelLink)key.attachment()).handle(key);
+			} catch(RuntimeException e){
+				e.printStackTrace();
+			}
+		}
+	}
+}
+}
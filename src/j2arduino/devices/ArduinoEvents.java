@@ -0,0 +1,372 @@
+package j2arduino.devices;
+
+import j2arduino.*;
+import jdk.jfr.*;
+
+/**
+ JDK Flight Recorder events of the request lifecycle (category "j2arduino").
+ <p/>
+ Events of one request can be correlated by the {@code request} field (the identity hash code of its ArduinoPacket), which all events of
+ requests carry, and the wire events with the records of {@link ArduinoTrace}s by {@code sequence}. The begin methods return events that are
+ already begun, or null if the event type is disabled; the completing methods accept null. Thus disabled events cost a check of a cached
+ {@link EventType} and no allocation, which matters for events spanning blocking I/O since their allocations can not be eliminated.
+ */
+final class ArduinoEvents{
+
+private ArduinoEvents(){
+}
+
+@Name("j2arduino.RequestEnqueued")
+@Label("Request Enqueued")
+@Category("j2arduino")
+@Description("A request was put into the send queue of an Arduino")
+@StackTrace(false)
+static final class RequestEnqueued extends Event{
+	@Label("Address")
+	String address;
+	@Label("Function")
+	int function;
+	@Label("Function Name")
+	String functionName;
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	@Label("Request")
+	int request;
+	@Label("Queue Depth")
+	int queueDepth;
+}
+
+@Name("j2arduino.RequestDequeued")
+@Label("Request Dequeued")
+@Category("j2arduino")
+@Description("A request was taken from the send queue to be transferred")
+@StackTrace(false)
+static final class RequestDequeued extends Event{
+	@Label("Address")
+	String address;
+	@Label("Function")
+	int function;
+	@Label("Function Name")
+	String functionName;
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	@Label("Request")
+	int request;
+	@Label("Sequence Number")
+	int sequence;
+	@Label("Queue Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueWait;
+}
+
+@Name("j2arduino.FrameFlushed")
+@Label("Frame Flushed")
+@Category("j2arduino")
+@Description("A request frame was written to the transport")
+@StackTrace(false)
+static final class FrameFlushed extends Event{
+	@Label("Address")
+	String address;
+	@Label("Function")
+	int function;
+	@Label("Function Name")
+	String functionName;
+	@Label("Sequence Number")
+	int sequence;
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	@Label("Frame Size")
+	@DataAmount
+	int frameSize;
+	@Label("Escapes")
+	int escapes;
+	@Label("Request")
+	int request;
+}
+
+@Name("j2arduino.ReplyDecoded")
+@Label("Reply Decoded")
+@Category("j2arduino")
+@Description("The reply frame to a request was decoded; the duration is the time waited for it after flushing the request")
+@StackTrace(false)
+static final class ReplyDecoded extends Event{
+	@Label("Address")
+	String address;
+	@Label("Function")
+	int function;
+	@Label("Function Name")
+	String functionName;
+	@Label("Sequence Number")
+	int sequence;
+	@Label("Return Value")
+	int returnValue;
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	@Label("Request")
+	int request;
+}
+
+@Name("j2arduino.CallbackFinished")
+@Label("Callback Finished")
+@Category("j2arduino")
+@Description("An ArduinoResponseListener returned from handling a reply (the function is known from the other events of the request)")
+@StackTrace(false)
+static final class CallbackFinished extends Event{
+	@Label("Address")
+	String address;
+	@Label("Return Value")
+	int returnValue;
+	@Label("Payload Size")
+	@DataAmount
+	int payloadSize;
+	@Label("Request")
+	int request;
+}
+
+@Name("j2arduino.LongTransferChunk")
+@Label("Long Transfer Chunk")
+@Category("j2arduino")
+@Description("One chunk of an a2jMany transfer was acknowledged")
+@StackTrace(false)
+static final class LongTransferChunk extends Event{
+	@Label("Address")
+	String address;
+	@Label("Function")
+	int function;
+	@Label("Function Name")
+	String functionName;
+	@Label("Offset")
+	@DataAmount
+	int offset;
+	@Label("Chunk Size")
+	@DataAmount
+	int chunkSize;
+	@Label("Reply Size")
+	@DataAmount
+	int replySize;
+	@Label("Last Chunk")
+	boolean last;
+}
+
+@Name("j2arduino.Connect")
+@Label("Connect")
+@Category("j2arduino")
+@Description("A connecting attempt including fetching the function mapping and properties")
+@StackTrace(false)
+static final class Connect extends Event{
+	@Label("Address")
+	String address;
+	@Label("Name")
+	String name;
+	@Label("Reconnect")
+	boolean reconnect;
+	@Label("Succeeded")
+	boolean succeeded;
+}
+
+@Name("j2arduino.Disconnect")
+@Label("Disconnect")
+@Category("j2arduino")
+@Description("The connection to an Arduino was closed")
+@StackTrace(false)
+static final class Disconnect extends Event{
+	@Label("Address")
+	String address;
+	@Label("Cause")
+	String cause;
+}
+
+private static final EventType ENQUEUED = EventType.getEventType(RequestEnqueued.class);
+private static final EventType DEQUEUED = EventType.getEventType(RequestDequeued.class);
+private static final EventType FLUSHED = EventType.getEventType(FrameFlushed.class);
+private static final EventType DECODED = EventType.getEventType(ReplyDecoded.class);
+private static final EventType CALLBACK = EventType.getEventType(CallbackFinished.class);
+private static final EventType CHUNK = EventType.getEventType(LongTransferChunk.class);
+private static final EventType CONNECT = EventType.getEventType(Connect.class);
+private static final EventType DISCONNECT = EventType.getEventType(Disconnect.class);
+
+/** Returns the name of the function at \a offset in the mapping of \a arduino, if any. */
+private static String functionName(Arduino arduino, int offset){
+	final ArduinoFunctionMapping mapping = arduino.getFuncMapping();
+	return (mapping != null) ? mapping.getName((byte)offset) : null;
+}
+
+private static int size(byte[] msg){
+	return (msg == null) ? 0 : msg.length;
+}
+
+/** Returns the id of \a req used in the {@code request} fields, 0 for none (e.g. heartbeats). */
+private static int id(ArduinoPacket req){
+	return (req == null) ? 0 : System.identityHashCode(req);
+}
+
+/** @param function the function offset (without {@link ArduinoPacket#PROCESSING}) */
+static void enqueued(Arduino arduino, ArduinoPacket req, int function, int queueDepth){
+	if(!ENQUEUED.isEnabled())
+		return;
+	RequestEnqueued e = new RequestEnqueued();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.function = function&0xFF;
+		e.functionName = functionName(arduino, function);
+		e.payloadSize = size(req.msg);
+		e.request = id(req);
+		e.queueDepth = queueDepth;
+		e.commit();
+	}
+}
+
+/** @param seq the sequence number of the frame the request is sent with */
+static void dequeued(Arduino arduino, ArduinoPacket req, byte function, byte seq, long queueWait){
+	if(!DEQUEUED.isEnabled())
+		return;
+	RequestDequeued e = new RequestDequeued();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.function = function&0xFF;
+		e.functionName = functionName(arduino, function);
+		e.payloadSize = size(req.msg);
+		e.request = id(req);
+		e.sequence = seq&0xFF;
+		e.queueWait = queueWait;
+		e.commit();
+	}
+}
+
+/** @return the begun event or null if it is disabled */
+static FrameFlushed beginFlush(){
+	if(!FLUSHED.isEnabled())
+		return null;
+	FrameFlushed e = new FrameFlushed();
+	e.begin();
+	return e;
+}
+
+/** @param req the request or null for internal frames (e.g. heartbeats) */
+static void flushed(FrameFlushed e, Arduino arduino, ArduinoPacket req, byte function, byte seq, byte[] msg, int frameSize, int escapes){
+	if(e == null)
+		return;
+	e.end();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.function = function&0xFF;
+		e.functionName = functionName(arduino, function);
+		e.sequence = seq&0xFF;
+		e.payloadSize = size(msg);
+		e.frameSize = frameSize;
+		e.escapes = escapes;
+		e.request = id(req);
+		e.commit();
+	}
+}
+
+/** @return the begun event or null if it is disabled */
+static ReplyDecoded beginReply(){
+	if(!DECODED.isEnabled())
+		return null;
+	ReplyDecoded e = new ReplyDecoded();
+	e.begin();
+	return e;
+}
+
+/** @param req the request or null for internal frames (e.g. heartbeats) */
+static void decoded(ReplyDecoded e, Arduino arduino, ArduinoPacket req, byte function, byte seq, byte ret, byte[] msg){
+	if(e == null)
+		return;
+	e.end();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.function = function&0xFF;
+		e.functionName = functionName(arduino, function);
+		e.sequence = seq&0xFF;
+		e.returnValue = ret&0xFF;
+		e.payloadSize = size(msg);
+		e.request = id(req);
+		e.commit();
+	}
+}
+
+/** @return the begun event or null if it is disabled */
+static CallbackFinished beginCallback(){
+	if(!CALLBACK.isEnabled())
+		return null;
+	CallbackFinished e = new CallbackFinished();
+	e.begin();
+	return e;
+}
+
+static void callbackFinished(CallbackFinished e, Arduino arduino, ArduinoPacket req){
+	if(e == null)
+		return;
+	e.end();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.returnValue = req.cmd&0xFF;
+		e.payloadSize = size(req.msg);
+		e.request = id(req);
+		e.commit();
+	}
+}
+
+/** @return the begun event or null if it is disabled */
+static LongTransferChunk beginChunk(){
+	if(!CHUNK.isEnabled())
+		return null;
+	LongTransferChunk e = new LongTransferChunk();
+	e.begin();
+	return e;
+}
+
+static void chunkCompleted(LongTransferChunk e, Arduino arduino, byte function, int offset, int chunkSize, int replySize, boolean last){
+	if(e == null)
+		return;
+	e.end();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.function = function&0xFF;
+		e.functionName = functionName(arduino, function);
+		e.offset = offset;
+		e.chunkSize = chunkSize;
+		e.replySize = replySize;
+		e.last = last;
+		e.commit();
+	}
+}
+
+/** @return the begun event or null if it is disabled */
+static Connect beginConnect(){
+	if(!CONNECT.isEnabled())
+		return null;
+	Connect e = new Connect();
+	e.begin();
+	return e;
+}
+
+static void connected(Connect e, Arduino arduino, boolean reconnect, boolean succeeded){
+	if(e == null)
+		return;
+	e.end();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.name = arduino.name;
+		e.reconnect = reconnect;
+		e.succeeded = succeeded;
+		e.commit();
+	}
+}
+
+static void disconnected(Arduino arduino, Exception cause){
+	if(!DISCONNECT.isEnabled())
+		return;
+	Disconnect e = new Disconnect();
+	if(e.shouldCommit()){
+		e.address = arduino.address;
+		e.cause = (cause != null) ? cause.toString() : null;
+		e.commit();
+	}
+}
+}
@@ -0,0 +1,233 @@
+package j2arduino.devices;
+
+import j2arduino.util.TimeoutException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ Encodes and decodes java2arduino frames.
+ <p/>
+ A frame consists of #A2J_SOF followed by the sequence number, the command (function offset or return value), the length of the payload, the
+ payload itself and a checksum. All bytes following #A2J_SOF are escaped: if they equal #A2J_SOF or #A2J_ESC, #A2J_ESC is sent followed by the
+ original value decremented by one.
+ */
+public final class ArduinoFrameCodec{
+
+/** @addtogroup j2aframing java2arduino framing characters */
+//@{
+/** Start of a frame. */
+public static final byte A2J_SOF = 0x12;
+/** Escape character. */
+public static final byte A2J_ESC = 0x7D;
+//@}
+
+/** @addtogroup j2acrc java2arduino crc constants */
+//@{
+/** Constant to be added to the command offset byte. */
+public static final byte A2J_CRC_CMD = 11;
+/** Constant to be added to the length byte. */
+public static final byte A2J_CRC_LEN = 97;
+//@}
+
+/** @addtogroup j2aerrors java2arduino error values */
+//@{
+/** Function offset was out of bounds. */
+public static final byte A2J_RET_OOB = (byte)0xF0;
+/** Timeout while arduino2j#a2jProcess was receiving. */
+public static final byte A2J_RET_TO = (byte)0xF2;
+/** Checksum error while arduino2j#a2jProcess was receiving. */
+public static final byte A2J_RET_CHKSUM = (byte)0xF3;
+//@}
+
+/** Maximum number of bytes of an encoded frame (i.e. if every byte but #A2J_SOF needs to be escaped). */
+public static final int A2J_MAX_FRAME = 1 + 2 * (3 + Arduino.A2J_MAX_PAYLOAD + 1);
+
+private ArduinoFrameCodec(){
+}
+
+/**
+ Encodes a frame into \a dst.
+
+ @param seq the sequence number
+ @param cmd the command byte (only the lowest 8 bits are used)
+ @param msg the payload (may be null)
+ @param dst the buffer to write to, needs to have at least #A2J_MAX_FRAME bytes remaining
+ @return the number of escaped bytes */
+public static int encode(byte seq, int cmd, byte[] msg, ByteBuffer dst){
+	final int len = (msg == null) ? 0 : msg.length;
+	byte cSum = seq;
+	cSum ^= A2J_CRC_CMD + (byte)cmd;
+	cSum ^= A2J_CRC_LEN + len;
+	int escapes = 0;
+	dst.put(A2J_SOF);
+	escapes += put(dst, seq);
+	escapes += put(dst, (byte)cmd);
+	escapes += put(dst, (byte)len);
+	for(int i = 0; i < len; i++){
+		byte tmp = msg[i];
+		escapes += put(dst, tmp);
+		cSum ^= tmp;
+	}
+	escapes += put(dst, cSum);
+	return escapes;
+}
+
+/**
+ Puts a byte into \a dst, escaping it if necessary.
+
+ @return 1 if the byte was escaped, 0 otherwise */
+private static int put(ByteBuffer dst, byte data){
+	if(data == A2J_SOF || data == A2J_ESC){
+		dst.put(A2J_ESC);
+		dst.put((byte)(data - 1));
+		return 1;
+	}
+	dst.put(data);
+	return 0;
+}
+
+/**
+ Returns the exception corresponding to an error value returned by arduino2j.
+
+ @param cmd the command byte of a received frame
+ @param msg the payload of that frame
+ @return the exception describing the error or null if \a cmd is not an error value */
+public static IOException getReturnException(byte cmd, byte[] msg){
+	switch(cmd){
+		case A2J_RET_OOB:
+			return new EOFException("Function offset was out of bounds");
+		case A2J_RET_TO:
+			int line = (msg.length < 2) ? -1 : ((msg[0]&0xff)<<8) + (msg[1]&0xff);
+			return new TimeoutException("Timeout while peer was receiving around line " + line);
+		case A2J_RET_CHKSUM:
+			return new EOFException("Checksum of sent frame mismatched");
+	}
+	return null;
+}
+
+/** Thrown by {@link Decoder#decode} if the checksum of a received frame mismatches. */
+public static final class ChecksumException extends EOFException{
+	private static final long serialVersionUID = 1L;
+
+	public ChecksumException(String s){
+		super(s);
+	}
+}
+
+/**
+ Incremental frame decoder. Bytes may be fed in arbitrary chunks; frames with unexpected sequence numbers and bytes between frames are skipped.
+ Instances are not thread-safe.
+ */
+public static final class Decoder{
+	private static final int HUNT = 0;
+	private static final int SEQ = 1;
+	private static final int CMD = 2;
+	private static final int LEN = 3;
+	private static final int DATA = 4;
+	private static final int CSUM = 5;
+
+	private int state = HUNT;
+	private boolean escaped;
+	/** The sequence number of the frame to accept or -1 to accept any. */
+	private int expectedSeq = -1;
+	private byte seq;
+	private byte cmd;
+	private byte cSum;
+	private byte[] msg;
+	private int pos;
+
+	/**
+	 Discards any partially decoded frame and starts looking for a new one.
+
+	 @param expectedSequence the sequence number of the frame to be decoded next or -1 to accept any */
+	public void reset(int expectedSequence){
+		expectedSeq = expectedSequence;
+		state = HUNT;
+		escaped = false;
+	}
+
+	/**
+	 Consumes bytes from \a src until a complete frame is decoded or \a src is exhausted.
+	 <p/>
+	 After a frame was decoded, the following bytes remain in \a src and the decoder looks for the next frame with the same expected sequence
+	 number.
+
+	 @param src the bytes received
+	 @return true if a frame was completed, its fields are available from the getters until the next call
+	 @throws EOFException if the frame is malformed (the decoder then looks for the next frame) */
+	public boolean decode(ByteBuffer src) throws EOFException{
+		while(src.hasRemaining()){
+			byte data = src.get();
+			if(state == HUNT){
+				if(data == A2J_SOF)
+					state = SEQ;
+				continue;
+			}
+			if(data == A2J_SOF){
+				state = HUNT;
+				escaped = false;
+				throw new EOFException("Unescaped delimiter character inside frame");
+			}
+			if(data == A2J_ESC && !escaped){
+				escaped = true;
+				continue;
+			}
+			if(escaped){
+				data++;
+				escaped = false;
+			}
+			switch(state){
+				case SEQ:
+					if(expectedSeq >= 0 && data != (byte)expectedSeq){
+						state = HUNT;
+						break;
+					}
+					seq = data;
+					state = CMD;
+					break;
+				case CMD:
+					cmd = data;
+					state = LEN;
+					break;
+				case LEN:
+					int len = data&0xFF;
+					msg = new byte[len];
+					pos = 0;
+					cSum = seq;
+					cSum ^= A2J_CRC_CMD + cmd;
+					cSum ^= A2J_CRC_LEN + len;
+					state = (len > 0) ? DATA : CSUM;
+					break;
+				case DATA:
+					msg[pos++] = data;
+					cSum ^= data;
+					if(pos == msg.length)
+						state = CSUM;
+					break;
+				case CSUM:
+					state = HUNT;
+					if(data != cSum)
+						throw new ChecksumException("Checksum of received frame mismatched");
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return the sequence number of the last decoded frame */
+	public byte getSeq(){
+		return seq;
+	}
+
+	/** @return the command byte of the last decoded frame */
+	public byte getCmd(){
+		return cmd;
+	}
+
+	/** @return the payload of the last decoded frame (a new array for every frame) */
+	public byte[] getMsg(){
+		return msg;
+	}
+}
+}
@@ -20,4 +20,13 @@ boolean isAvailable();
  @param updateNow if true the set must be updated before returning it.
  @return a set including all currently known Arduinos usable via the underlying protocol of this kind. */
 HashSet<Arduino> getAvailableArduinos(boolean updateNow) throws IOException, InterruptedException;
+
+/**
+ Creates an Arduino of this kind for a known device without doing any discovery (e.g. for devices preconfigured in the settings).
+
+ @param name    a String used in GUIs to identify the Arduino
+ @param address the address of the device as it would be reported by {@link #getAvailableArduinos(boolean)}
+ @return the new Arduino instance
+ @throws IOException if the device can not be represented (e.g. it is not attached). */
+Arduino getArduino(String name, String address) throws IOException;
 }
@@ -0,0 +1,26 @@
+package j2arduino.devices;
+
+import j2arduino.ArduinoPacket;
+
+/**
+ The machinery of one established connection: it takes requests from the send queue of an {@link Arduino}, transfers them and completes them.
+ <p/>
+ Implementations tear the connection down themselves if the underlying connection fails and report that to the Arduino.
+ */
+interface ArduinoLink{
+
+/** Starts processing queued requests. */
+void start();
+
+/** Called after a request was added to the send queue. */
+void requestQueued();
+
+/**
+ Aborts the processing of \a req, if it is in progress. The request then fails with an {@link java.io.InterruptedIOException}.
+
+ @param req the request that took too long */
+void abort(ArduinoPacket req);
+
+/** Stops processing and tears the connection down. Blocks until that is done, unless called from within the link itself. */
+void shutdown();
+}
@@ -0,0 +1,137 @@
+package j2arduino.devices;
+
+import j2arduino.util.J2ArduinoSettings;
+
+/**
+ Live estimate of the round trip time and loss rate of the link to one Arduino, fed by its heartbeat (see {@link Arduino#J2ARDUINO_HEARTBEAT}).
+ <p/>
+ The round trip time is smoothed like TCP does (RFC 6298): the smoothed RTT and the mean deviation are moving averages with gains of 1/8 and 1/4.
+ The loss rate is a moving average of lost heartbeats with a gain of 1/16. A heartbeat that exceeds its timeout is counted as late, not lost,
+ since its reply may still arrive, and doubles the suggested timeout until the next successful probe (like the RTO backoff of RFC 6298); for
+ detecting broken links it counts as a failure nevertheless. All methods are thread-safe.
+
+ @see Arduino#getLinkQuality() */
+public final class ArduinoLinkQuality{
+
+/**
+ Setting for the lower bound of {@link #getSuggestedTimeout()} in milliseconds (default: half of {@link Arduino#PACKET_TIMEOUT}). It keeps
+ scheduling or USB/BT hiccups of healthy links from being taken for losses; RFC 6298 uses 1 s for the same reason.
+ */
+public static final String J2ARDUINO_MIN_TIMEOUT = "j2arduino.link.timeout.min";
+
+private final long minTimeout;
+/** The factor applied to the suggested timeout after late probes. */
+private int backoff = 1;
+
+/** Smoothed RTT in nanoseconds or -1 if there is no sample yet. */
+private long srtt = -1;
+/** Mean deviation of the RTT in nanoseconds. */
+private long rttvar = 0;
+private long lastRtt = -1;
+private double lossRate = 0;
+private long probes = 0;
+private long lost = 0;
+private long late = 0;
+
+ArduinoLinkQuality(){
+	minTimeout = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_MIN_TIMEOUT, Long.toString(Arduino.PACKET_TIMEOUT / 2)));
+}
+
+/**
+ Adds the RTT of a successful probe.
+
+ @param rtt the round trip time in nanoseconds */
+synchronized void sample(long rtt){
+	probes++;
+	lastRtt = rtt;
+	if(srtt < 0){
+		srtt = rtt;
+		rttvar = rtt / 2;
+	} else{
+		rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+		srtt += (rtt - srtt) / 8;
+	}
+	lossRate -= lossRate / 16;
+	backoff = 1;
+}
+
+/** Records a probe that exceeded its timeout; doubles the suggested timeout. */
+synchronized void late(){
+	probes++;
+	late++;
+	if(backoff < 1<<16)
+		backoff <<= 1;
+}
+
+/** Records a probe that got no (valid) reply. */
+synchronized void lost(){
+	probes++;
+	lost++;
+	lossRate += (1 - lossRate) / 16;
+}
+
+/** Forgets all samples. Called when a new connection is established. */
+synchronized void reset(){
+	srtt = -1;
+	rttvar = 0;
+	lastRtt = -1;
+	lossRate = 0;
+	probes = 0;
+	lost = 0;
+	late = 0;
+	backoff = 1;
+}
+
+/** @return the smoothed round trip time in milliseconds or -1 if it is unknown */
+public synchronized double getSmoothedRtt(){
+	return (srtt < 0) ? -1 : srtt / 1e6;
+}
+
+/** @return the mean deviation of the round trip time in milliseconds */
+public synchronized double getRttVariation(){
+	return rttvar / 1e6;
+}
+
+/** @return the round trip time of the last successful probe in milliseconds or -1 if there was none */
+public synchronized double getLastRtt(){
+	return (lastRtt < 0) ? -1 : lastRtt / 1e6;
+}
+
+/** @return the moving average of the fraction of lost probes [0, 1] */
+public synchronized double getLossRate(){
+	return lossRate;
+}
+
+/** @return the number of probes sent since connecting */
+public synchronized long getProbes(){
+	return probes;
+}
+
+/** @return the number of probes lost since connecting */
+public synchronized long getLostProbes(){
+	return lost;
+}
+
+/** @return the number of probes since connecting that exceeded the suggested timeout but were not counted as lost */
+public synchronized long getLateProbes(){
+	return late;
+}
+
+/**
+ Returns a timeout for requests that is exceeded by healthy links only rarely: the smoothed RTT plus four times its deviation, but at least
+ {@link #J2ARDUINO_MIN_TIMEOUT}, multiplied by the backoff after late probes. Functions that take considerable time to run on the device need to
+ add that time.
+
+ @return the timeout in milliseconds, or {@link Arduino#PACKET_TIMEOUT} if the RTT is unknown */
+public synchronized long getSuggestedTimeout(){
+	if(srtt < 0)
+		return Arduino.PACKET_TIMEOUT;
+	return Math.max(minTimeout, (srtt + 4 * rttvar + 999999) / 1000000) * backoff;
+}
+
+@Override
+public synchronized String toString(){
+	return String.format("rtt %.2f ms (+/- %.2f ms), loss %.1f%% (%d of %d probes, %d late)", getSmoothedRtt(), getRttVariation(), lossRate * 100,
+	                     lost, probes, late);
+}
+}
@@ -0,0 +1,294 @@
+package j2arduino.devices;
+
+import j2arduino.*;
+import j2arduino.util.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ Counters and latency histograms of the link to one Arduino.
+ <p/>
+ Updated by the worker thread (or event loop) of the Arduino without locks or allocations, apart from creating the histograms of a function the
+ first time it is called. Queue wait is the time from queueing a request until its transfer starts, round trip time (RTT) the time from writing a
+ frame until the reply is decoded. Both are kept in total and per function offset.
+
+ @see Arduino#getMetrics() */
+public final class ArduinoMetrics implements ArduinoMetricsMBean{
+
+private final Arduino arduino;
+private final ConcurrentRingBuffer<ArduinoPacket> queue;
+
+private final AtomicLong framesSent = new AtomicLong();
+private final AtomicLong bytesSent = new AtomicLong();
+private final AtomicLong escapesSent = new AtomicLong();
+private final AtomicLong framesReceived = new AtomicLong();
+private final AtomicLong bytesReceived = new AtomicLong();
+private final AtomicLong checksumErrorsSent = new AtomicLong();
+private final AtomicLong checksumErrorsReceived = new AtomicLong();
+private final AtomicLong framingErrors = new AtomicLong();
+private final AtomicLong outOfBounds = new AtomicLong();
+private final AtomicLong deviceTimeouts = new AtomicLong();
+private final AtomicLong timeouts = new AtomicLong();
+private final AtomicLong reconnects = new AtomicLong();
+private final LatencyHistogram queueWait = new LatencyHistogram();
+private final LatencyHistogram rtt = new LatencyHistogram();
+private final AtomicReferenceArray<LatencyHistogram> functionQueueWait = new AtomicReferenceArray<LatencyHistogram>(256);
+private final AtomicReferenceArray<LatencyHistogram> functionRtt = new AtomicReferenceArray<LatencyHistogram>(256);
+
+ArduinoMetrics(Arduino arduino, ConcurrentRingBuffer<ArduinoPacket> queue){
+	this.arduino = arduino;
+	this.queue = queue;
+}
+
+/** Records a frame handed to the transport. */
+void frameSent(int bytes, int escapes){
+	framesSent.incrementAndGet();
+	bytesSent.addAndGet(bytes);
+	escapesSent.addAndGet(escapes);
+}
+
+void bytesReceived(int bytes){
+	bytesReceived.addAndGet(bytes);
+}
+
+/** Records a decoded reply frame with return value \a cmd. */
+void frameReceived(byte cmd){
+	framesReceived.incrementAndGet();
+	switch(cmd){
+		case ArduinoFrameCodec.A2J_RET_OOB:
+			outOfBounds.incrementAndGet();
+			break;
+		case ArduinoFrameCodec.A2J_RET_TO:
+			deviceTimeouts.incrementAndGet();
+			break;
+		case ArduinoFrameCodec.A2J_RET_CHKSUM:
+			checksumErrorsSent.incrementAndGet();
+			break;
+	}
+}
+
+/** Records a received frame that could not be decoded. */
+void frameError(boolean checksum){
+	if(checksum)
+		checksumErrorsReceived.incrementAndGet();
+	else
+		framingErrors.incrementAndGet();
+}
+
+void timeout(){
+	timeouts.incrementAndGet();
+}
+
+void reconnected(){
+	reconnects.incrementAndGet();
+}
+
+/** Records the queue wait of a request for function \a offset that is about to be transferred. */
+void dequeued(byte offset, long nanos){
+	queueWait.record(nanos);
+	histogram(functionQueueWait, offset).record(nanos);
+}
+
+/** Records the round trip time of a call of function \a offset. */
+void replied(byte offset, long nanos){
+	rtt.record(nanos);
+	histogram(functionRtt, offset).record(nanos);
+}
+
+private static LatencyHistogram histogram(AtomicReferenceArray<LatencyHistogram> histograms, byte offset){
+	final int i = offset&0xFF;
+	LatencyHistogram h = histograms.get(i);
+	if(h == null){
+		histograms.compareAndSet(i, null, new LatencyHistogram());
+		h = histograms.get(i);
+	}
+	return h;
+}
+
+/** @return the queue wait of all requests */
+public LatencyHistogram getQueueWait(){
+	return queueWait;
+}
+
+/** @return the round trip times of all calls */
+public LatencyHistogram getRtt(){
+	return rtt;
+}
+
+/**
+ Returns the queue wait of the requests for one function.
+
+ @param offset the function offset
+ @return the histogram or null if the function was not called yet */
+public LatencyHistogram getQueueWait(byte offset){
+	return functionQueueWait.get(offset&0xFF);
+}
+
+/**
+ Returns the round trip times of the calls of one function.
+
+ @param offset the function offset
+ @return the histogram or null if the function was not called yet */
+public LatencyHistogram getRtt(byte offset){
+	return functionRtt.get(offset&0xFF);
+}
+
+@Override
+public String getAddress(){
+	return arduino.address;
+}
+
+@Override
+public String getName(){
+	return arduino.name;
+}
+
+@Override
+public boolean isConnected(){
+	return arduino.isConnected();
+}
+
+@Override
+public long getFramesSent(){
+	return framesSent.get();
+}
+
+@Override
+public long getBytesSent(){
+	return bytesSent.get();
+}
+
+@Override
+public long getEscapesSent(){
+	return escapesSent.get();
+}
+
+@Override
+public long getFramesReceived(){
+	return framesReceived.get();
+}
+
+@Override
+public long getBytesReceived(){
+	return bytesReceived.get();
+}
+
+@Override
+public long getChecksumErrorsSent(){
+	return checksumErrorsSent.get();
+}
+
+@Override
+public long getChecksumErrorsReceived(){
+	return checksumErrorsReceived.get();
+}
+
+@Override
+public long getFramingErrors(){
+	return framingErrors.get();
+}
+
+@Override
+public long getOutOfBounds(){
+	return outOfBounds.get();
+}
+
+@Override
+public long getDeviceTimeouts(){
+	return deviceTimeouts.get();
+}
+
+@Override
+public long getTimeouts(){
+	return timeouts.get();
+}
+
+@Override
+public long getReconnects(){
+	return reconnects.get();
+}
+
+@Override
+public int getQueueDepth(){
+	return queue.size();
+}
+
+@Override
+public int getPendingCallbacks(){
+	return arduino.getPendingCallbacks();
+}
+
+@Override
+public long getRequests(){
+	return queueWait.getCount();
+}
+
+@Override
+public double getQueueWaitMean(){
+	return queueWait.getMean() / 1e3;
+}
+
+@Override
+public double getQueueWaitP50(){
+	return queueWait.getPercentile(0.5) / 1e3;
+}
+
+@Override
+public double getQueueWaitP99(){
+	return queueWait.getPercentile(0.99) / 1e3;
+}
+
+@Override
+public double getQueueWaitMax(){
+	return queueWait.getMax() / 1e3;
+}
+
+@Override
+public double getRttMean(){
+	return rtt.getMean() / 1e3;
+}
+
+@Override
+public double getRttP50(){
+	return rtt.getPercentile(0.5) / 1e3;
+}
+
+@Override
+public double getRttP99(){
+	return rtt.getPercentile(0.99) / 1e3;
+}
+
+@Override
+public double getRttMax(){
+	return rtt.getMax() / 1e3;
+}
+
+@Override
+public String[] getFunctionLatencies(){
+	final ArduinoFunctionMapping mapping = arduino.getFuncMapping();
+	final List<String> lines = new ArrayList<String>();
+	for(int i = 0; i < 256; i++){
+		LatencyHistogram r = functionRtt.get(i);
+		LatencyHistogram w = functionQueueWait.get(i);
+		if(r == null && w == null)
+			continue;
+		String name = (mapping != null) ? mapping.getName((byte)i) : null;
+		lines.add(String.format("%d (%s): rtt %s; queue wait %s", i, (name != null) ? name : "?", r, w));
+	}
+	return lines.toArray(new String[lines.size()]);
+}
+
+@Override
+public void reset(){
+	for(AtomicLong counter : new AtomicLong[]{framesSent, bytesSent, escapesSent, framesReceived, bytesReceived, checksumErrorsSent,
+	                                          checksumErrorsReceived, framingErrors, outOfBounds, deviceTimeouts, timeouts, reconnects})
+		counter.set(0);
+	queueWait.reset();
+	rtt.reset();
+	for(int i = 0; i < 256; i++){
+		functionQueueWait.set(i, null);
+		functionRtt.set(i, null);
+	}
+}
+}
@@ -0,0 +1,73 @@
+package j2arduino.devices;
+
+/**
+ Management interface of {@link ArduinoMetrics}. Durations are reported in microseconds.
+
+ @see j2arduino.ArduinoGateway#J2ARDUINO_JMX */
+public interface ArduinoMetricsMBean{
+
+String getAddress();
+
+String getName();
+
+boolean isConnected();
+
+long getFramesSent();
+
+long getBytesSent();
+
+/** @return the number of bytes that needed to be escaped in sent frames */
+long getEscapesSent();
+
+long getFramesReceived();
+
+long getBytesReceived();
+
+/** @return the number of sent frames the device rejected because of a checksum mismatch */
+long getChecksumErrorsSent();
+
+/** @return the number of received frames with a checksum mismatch */
+long getChecksumErrorsReceived();
+
+/** @return the number of received frames that were malformed otherwise */
+long getFramingErrors();
+
+/** @return the number of requests the device rejected because their function offset was out of bounds */
+long getOutOfBounds();
+
+/** @return the number of requests the device rejected because it timed out while receiving them */
+long getDeviceTimeouts();
+
+/** @return the number of synchronous requests that were not answered in time */
+long getTimeouts();
+
+long getReconnects();
+
+int getQueueDepth();
+
+int getPendingCallbacks();
+
+long getRequests();
+
+double getQueueWaitMean();
+
+double getQueueWaitP50();
+
+double getQueueWaitP99();
+
+double getQueueWaitMax();
+
+double getRttMean();
+
+double getRttP50();
+
+double getRttP99();
+
+double getRttMax();
+
+/** @return one line per function that was called, with its count and queue wait and round trip time percentiles */
+String[] getFunctionLatencies();
+
+/** Resets all counters and histograms. */
+void reset();
+}
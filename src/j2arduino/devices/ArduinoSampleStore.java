@@ -0,0 +1,556 @@
+package j2arduino.devices;
+
+import j2arduino.util.J2ArduinoSettings;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ An append-only store of samples (timestamped replies) on disk, kept off the heap in memory-mapped segment files.
+ <p/>
+ Samples are grouped in series, one per Arduino address and function name, each in its own directory below the directory of the store. A series
+ is a sequence of segment files of a fixed number of records; when a segment is full the next one is started and the oldest segments beyond
+ the configured maximum are deleted. Segments are laid out in columns, each of fixed width: timestamps, lengths, return values and payloads. Thus
+ appending is a few stores into a mapped buffer and range reads are binary searches that return views of the mapped files, e.g. a
+ {@link ShortBuffer} of 16 bit samples, without copying anything onto the heap.
+ <p/>
+ Timestamps are positive, non-decreasing longs in a unit of the caller's choice ({@link ArduinoSampler} uses nanoseconds since the epoch). The
+ timestamp of a record is stored last, and the records of a segment end at the first zero timestamp, so a series can be reopened after a crash
+ of the JVM and contains all records appended until then; see {@link Series#force()} for crashes of the operating system.
+ <p/>
+ Segment file format (little endian): the magic {@code "A2JSTORE"}, the version (int, 1), the payload width (int), the number of records
+ (int), the length of the key (int) and the key ({@code address + '\0' + function}, UTF-8), padded to a multiple of 8 bytes. Then the columns:
+ the timestamps (long), the lengths of the payloads (unsigned short), the return values (byte) and the payloads (width bytes each, truncated or
+ zero-padded). Files are named after the hexadecimal timestamp of their first record and a running number.
+ \code
+ ArduinoSampleStore store = new ArduinoSampleStore(new File("samples"));
+ ArduinoSampleStore.Series adc = store.getSeries(arduino, "readAdc", 2);
+ adc.append(time, reply.cmd, reply.msg, 0, reply.msg.length);
+ ...
+ for(ArduinoSampleStore.Range r : adc.read(from, to))
+ 	process(r.timestamps(), r.asShorts());
+ \endcode
+ */
+public final class ArduinoSampleStore implements Closeable{
+
+/** Setting for the number of records per segment file (default: 65536). */
+public static final String J2ARDUINO_STORE_SEGMENT = "j2arduino.store.segment";
+/** Setting for the maximum number of segment files per series, older ones are deleted (default: 0, i.e. unlimited). */
+public static final String J2ARDUINO_STORE_SEGMENTS = "j2arduino.store.segments";
+private static final byte[] MAGIC = {'A', '2', 'J', 'S', 'T', 'O', 'R', 'E'};
+private static final int VERSION = 1;
+private static final int HEADER = MAGIC.length + 16;
+private static final String SUFFIX = ".a2jseg";
+
+private final File dir;
+private final int segmentRecords;
+private final int maxSegments;
+private final Map<String, Series> series = new HashMap<String, Series>();
+
+/**
+ Opens a store with the segment size and count of the settings {@link #J2ARDUINO_STORE_SEGMENT} and {@link #J2ARDUINO_STORE_SEGMENTS}.
+
+ @param dir the directory of the store, it is created if needed
+ @throws IOException if the directory can not be created */
+public ArduinoSampleStore(File dir) throws IOException{
+	this(dir, Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_STORE_SEGMENT, "65536")),
+	     Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_STORE_SEGMENTS, "0")));
+}
+
+/**
+ Opens a store.
+
+ @param dir            the directory of the store, it is created if needed
+ @param segmentRecords the number of records per segment file (rounded up to a multiple of 8)
+ @param maxSegments    the maximum number of segment files per series, 0 for no limit
+ @throws IOException if the directory can not be created */
+public ArduinoSampleStore(File dir, int segmentRecords, int maxSegments) throws IOException{
+	if(segmentRecords <= 0 || maxSegments < 0)
+		throw new IllegalArgumentException("Invalid segment size or count");
+	if(!dir.isDirectory() && !dir.mkdirs())
+		throw new IOException("Could not create directory " + dir);
+	this.dir = dir;
+	this.segmentRecords = (segmentRecords + 7)&~7;
+	this.maxSegments = maxSegments;
+}
+
+/**
+ Returns the series of samples of \a arduino and \a function, opening or creating it if needed.
+
+ @see #getSeries(String, String, int) */
+public Series getSeries(Arduino arduino, String function, int width) throws IOException{
+	return getSeries(arduino.address, function, width);
+}
+
+/**
+ Returns the series of samples of the Arduino with address \a address and \a function, opening or creating it if needed. Segments of an
+ existing series are recovered, appending continues in its last segment if that is not full and has the same width.
+
+ @param address  the address of the Arduino
+ @param function the name of the function
+ @param width    the number of payload bytes kept per sample
+ @return the series
+ @throws IOException              if the series can not be opened
+ @throws IllegalArgumentException if the series is open with another width */
+public synchronized Series getSeries(String address, String function, int width) throws IOException{
+	if(width < 0 || width > 0xFFFF)
+		throw new IllegalArgumentException("Invalid width " + width);
+	final String key = address + '\0' + function;
+	Series s = series.get(key);
+	if(s == null){
+		s = new Series(new File(new File(dir, sanitize(address)), sanitize(function)), key, width, segmentRecords, maxSegments);
+		series.put(key, s);
+	} else if(s.width != width)
+		throw new IllegalArgumentException("Series " + function + " of " + address + " is open with width " + s.width);
+	return s;
+}
+
+private static String sanitize(String name){
+	return name.replaceAll("[^A-Za-z0-9.-]", "_");
+}
+
+/**
+ Writes all series back to the storage device.
+
+ @throws IOException if an I/O error occurs */
+public synchronized void force() throws IOException{
+	for(Series s : series.values())
+		s.force();
+}
+
+/** Closes all series. */
+@Override
+public synchronized void close() throws IOException{
+	for(Series s : series.values())
+		s.close();
+	series.clear();
+}
+
+/** The layout of a segment file. */
+private static final class Layout{
+	final int width;
+	final int capacity;
+	final int timestamps;
+	final int lengths;
+	final int returnValues;
+	final int payloads;
+	final int size;
+
+	Layout(int keyLength, int width, int capacity){
+		this.width = width;
+		this.capacity = capacity;
+		timestamps = (HEADER + keyLength + 7)&~7;
+		lengths = timestamps + 8 * capacity;
+		returnValues = lengths + 2 * capacity;
+		payloads = returnValues + capacity;
+		final long end = payloads + (long)capacity * width;
+		if(end > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Segments of " + capacity + " records of " + width + " bytes exceed 2 GiB");
+		size = (int)end;
+	}
+}
+
+/** A segment file of a series. */
+private static final class Segment{
+	final File file;
+	final long first;
+	Layout layout;
+	/** The number of records, -1 if not known yet. */
+	int count = -1;
+	/** The writable mapping if this is the segment being appended to. */
+	MappedByteBuffer buf;
+
+	Segment(File file, long first){
+		this.file = file;
+		this.first = first;
+	}
+
+	/** Maps the file and checks its header. */
+	ByteBuffer map(byte[] key, boolean writable) throws IOException{
+		final RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try{
+			final FileChannel channel = raf.getChannel();
+			ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER + key.length));
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			final byte[] magic = new byte[MAGIC.length];
+			if(b.remaining() < HEADER)
+				throw new EOFException("Not a segment file: " + file);
+			b.get(magic);
+			if(!Arrays.equals(magic, MAGIC)) // zero or torn, the header was never written completely
+				throw new EOFException("No segment header: " + file);
+			if(b.getInt() != VERSION)
+				throw new IOException("Not a segment file of version " + VERSION + ": " + file);
+			final int width = b.getInt();
+			final int capacity = b.getInt();
+			final byte[] k = new byte[b.getInt()];
+			if(k.length != key.length || b.remaining() < k.length)
+				throw new IOException("Segment file of another series: " + file);
+			b.get(k);
+			if(!Arrays.equals(k, key))
+				throw new IOException("Segment file of another series: " + file);
+			layout = new Layout(key.length, width, capacity);
+			if(channel.size() < layout.size)
+				throw new EOFException("Truncated segment file: " + file);
+			b = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, layout.size);
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			if(count < 0){
+				// the records end at the first zero timestamp
+				int n = 0;
+				while(n < capacity && b.getLong(layout.timestamps + 8 * n) != 0)
+					n++;
+				count = n;
+			}
+			return b;
+		} finally{
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	/** Creates the file; its header is written back before any record is appended, so recovery finds either a valid header or an incomplete file. */
+	void create(byte[] key, int width, int capacity) throws IOException{
+		layout = new Layout(key.length, width, capacity);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, layout.size);
+		} finally{
+			raf.close();
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(width);
+		buf.putInt(capacity);
+		buf.putInt(key.length);
+		buf.put(key);
+		buf.force();
+		count = 0;
+	}
+
+	long timestamp(ByteBuffer b, int i){
+		return b.getLong(layout.timestamps + 8 * i);
+	}
+
+	/** Returns the index of the first record of \a b with a timestamp of at least \a t. */
+	int search(ByteBuffer b, long t){
+		int lo = 0;
+		int hi = count;
+		while(lo < hi){
+			final int mid = (lo + hi)>>>1;
+			if(timestamp(b, mid) < t)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
+
+/**
+ The samples of one function of one Arduino. Appending and reading are thread-safe, though samples are usually appended by one thread.
+ */
+public static final class Series implements Closeable{
+	private final File dir;
+	private final String address;
+	private final String function;
+	private final byte[] key;
+	private final int width;
+	private final int capacity;
+	private final int maxSegments;
+	/** The segments in order, the last one is appended to. */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/** The segment being appended to or null if the next record starts a new one. */
+	private Segment active;
+	private long last;
+	private int next;
+	private boolean closed;
+
+	Series(File dir, String key, int width, int capacity, int maxSegments) throws IOException{
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create directory " + dir);
+		this.dir = dir;
+		final int sep = key.indexOf('\0');
+		address = key.substring(0, sep);
+		function = key.substring(sep + 1);
+		this.key = key.getBytes("UTF-8");
+		this.width = width;
+		this.capacity = capacity;
+		this.maxSegments = maxSegments;
+		recover();
+	}
+
+	/** Lists the existing segments and reopens the last one. */
+	private void recover() throws IOException{
+		final File[] files = dir.listFiles();
+		if(files != null){
+			Arrays.sort(files);
+			for(File f : files){
+				final String n = f.getName();
+				if(!n.endsWith(SUFFIX) || n.length() != 16 + 1 + 8 + SUFFIX.length())
+					continue;
+				try{
+					segments.add(new Segment(f, Long.parseLong(n.substring(0, 16), 16)));
+					next = Integer.parseInt(n.substring(17, 25), 16) + 1;
+				} catch(NumberFormatException ignored){
+					// not ours
+				}
+			}
+		}
+		while(!segments.isEmpty()){
+			final Segment s = segments.get(segments.size() - 1);
+			final ByteBuffer b;
+			try{
+				b = s.map(key, true);
+			} catch(EOFException e){
+				// crashed while creating it: too short or without a (complete) header
+				System.err.println("Deleting incomplete segment " + s.file + ": " + e.getMessage());
+				delete(s);
+				continue;
+			}
+			if(s.count == 0){
+				delete(s);
+				continue;
+			}
+			last = s.timestamp(b, s.count - 1);
+			if(s.count < s.layout.capacity && s.layout.width == width){
+				s.buf = (MappedByteBuffer)b;
+				active = s;
+			}
+			break;
+		}
+	}
+
+	private void delete(Segment s){
+		segments.remove(s);
+		if(!s.file.delete())
+			System.err.println("Could not delete segment " + s.file);
+	}
+
+	/** @return the address of the Arduino */
+	public String getAddress(){
+		return address;
+	}
+
+	/** @return the name of the function */
+	public String getFunction(){
+		return function;
+	}
+
+	/** @return the number of payload bytes kept per sample */
+	public int getWidth(){
+		return width;
+	}
+
+	/** @return the timestamp of the last sample or 0 if there is none */
+	public synchronized long getLastTimestamp(){
+		return last;
+	}
+
+	/** @return the timestamp of the first sample or 0 if there is none */
+	public synchronized long getFirstTimestamp(){
+		return segments.isEmpty() ? 0 : segments.get(0).first;
+	}
+
+	/**
+	 Appends a sample.
+
+	 @param timestamp   the time of the sample, positive and not less than the one of the previous sample
+	 @param returnValue the return value of the function
+	 @param payload     the reply payload, only the first {@link #getWidth()} bytes are kept
+	 @param offset      the index of the first byte of the payload in \a payload
+	 @param length      the length of the payload
+	 @throws IOException if the next segment file can not be created */
+	public synchronized void append(long timestamp, int returnValue, byte[] payload, int offset, int length) throws IOException{
+		final MappedByteBuffer b = prepare(timestamp);
+		final Layout l = active.layout;
+		final int i = active.count;
+		final int n = Math.min(length, width);
+		if(n > 0){
+			b.position(l.payloads + i * width);
+			b.put(payload, offset, n);
+		}
+		store(b, l, i, timestamp, returnValue, n);
+	}
+
+	/**
+	 Appends a sample with the remaining bytes of \a payload as payload.
+
+	 @see #append(long, int, byte[], int, int) */
+	public synchronized void append(long timestamp, int returnValue, ByteBuffer payload) throws IOException{
+		final MappedByteBuffer b = prepare(timestamp);
+		final Layout l = active.layout;
+		final int i = active.count;
+		final int n = Math.min(payload.remaining(), width);
+		if(n > 0){
+			final ByteBuffer src = payload.duplicate();
+			src.limit(src.position() + n);
+			b.position(l.payloads + i * width);
+			b.put(src);
+		}
+		store(b, l, i, timestamp, returnValue, n);
+	}
+
+	/** Checks \a timestamp and returns the mapping of the segment to append to. */
+	private MappedByteBuffer prepare(long timestamp) throws IOException{
+		if(closed)
+			throw new IllegalStateException("Series is closed");
+		if(timestamp <= 0)
+			throw new IllegalArgumentException("Timestamps need to be positive");
+		if(timestamp < last)
+			throw new IllegalArgumentException("Timestamps must not decrease");
+		if(active == null || active.count == active.layout.capacity)
+			rotate(timestamp);
+		return active.buf;
+	}
+
+	private void store(MappedByteBuffer b, Layout l, int i, long timestamp, int returnValue, int n){
+		b.putShort(l.lengths + 2 * i, (short)n);
+		b.put(l.returnValues + i, (byte)returnValue);
+		b.putLong(l.timestamps + 8 * i, timestamp); // marks the record as complete
+		active.count = i + 1;
+		last = timestamp;
+	}
+
+	/** Starts a new segment whose first record has timestamp \a first and deletes the oldest segments beyond the maximum. */
+	private void rotate(long first) throws IOException{
+		if(active != null){
+			active.buf = null;
+			active = null;
+		}
+		final Segment s = new Segment(new File(dir, String.format("%016x-%08x", first, next) + SUFFIX), first);
+		s.create(key, width, capacity);
+		next++;
+		segments.add(s);
+		active = s;
+		while(maxSegments > 0 && segments.size() > maxSegments)
+			delete(segments.get(0));
+	}
+
+	/**
+	 Returns the samples with timestamps in [\a from, \a to) as views of the segment files, one range per segment.
+	 <p/>
+	 The views stay valid after the segments are rotated out or the series is closed; on platforms that do not allow deleting mapped files,
+	 deleting old segments fails while views of them are in use.
+
+	 @param from the first timestamp to include
+	 @param to   the first timestamp to exclude
+	 @return the ranges in order, empty if there are no such samples
+	 @throws IOException if a segment can not be mapped */
+	public synchronized List<Range> read(long from, long to) throws IOException{
+		final List<Range> ranges = new ArrayList<Range>();
+		for(int j = 0; j < segments.size(); j++){
+			final Segment s = segments.get(j);
+			if(s.first >= to)
+				break;
+			// the records of a segment are not newer than the first of the next one
+			if(j + 1 < segments.size() && segments.get(j + 1).first < from)
+				continue;
+			final ByteBuffer b = (s.buf != null) ? s.buf.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN) : s.map(key, false);
+			final int lo = s.search(b, from);
+			final int hi = s.search(b, to);
+			if(lo < hi)
+				ranges.add(new Range(b, s.layout, lo, hi - lo));
+		}
+		return ranges;
+	}
+
+	/**
+	 Writes the samples back to the storage device, so that they survive crashes of the operating system too.
+
+	 @throws IOException if an I/O error occurs */
+	public synchronized void force() throws IOException{
+		if(active != null)
+			active.buf.force();
+	}
+
+	/** Closes the series; the segment files are kept. */
+	@Override
+	public synchronized void close() throws IOException{
+		closed = true;
+		if(active != null){
+			active.buf = null;
+			active = null;
+		}
+	}
+}
+
+/**
+ Consecutive samples of one segment, read through views of the mapped file. Indices are relative to the range, [0, {@link #size()}).
+ */
+public static final class Range{
+	private final ByteBuffer buf;
+	private final Layout layout;
+	private final int start;
+	private final int size;
+
+	Range(ByteBuffer buf, Layout layout, int start, int size){
+		this.buf = buf;
+		this.layout = layout;
+		this.start = start;
+		this.size = size;
+	}
+
+	private ByteBuffer slice(int offset, int length){
+		final ByteBuffer b = buf.duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** @return the number of samples */
+	public int size(){
+		return size;
+	}
+
+	/** @return the number of payload bytes kept per sample */
+	public int getWidth(){
+		return layout.width;
+	}
+
+	/** @return the timestamp of sample \a i */
+	public long getTimestamp(int i){
+		return buf.getLong(layout.timestamps + 8 * (start + i));
+	}
+
+	/** @return the return value of sample \a i */
+	public int getReturnValue(int i){
+		return buf.get(layout.returnValues + start + i)&0xFF;
+	}
+
+	/** @return the length of the payload of sample \a i (at most {@link #getWidth()}) */
+	public int getLength(int i){
+		return buf.getShort(layout.lengths + 2 * (start + i))&0xFFFF;
+	}
+
+	/** @return the payload of sample \a i */
+	public ByteBuffer getPayload(int i){
+		return slice(layout.payloads + (start + i) * layout.width, getLength(i));
+	}
+
+	/** @return the timestamps of all samples */
+	public LongBuffer timestamps(){
+		return slice(layout.timestamps + 8 * start, 8 * size).asLongBuffer();
+	}
+
+	/** @return the payloads of all samples, {@link #getWidth()} bytes each */
+	public ByteBuffer payloads(){
+		return slice(layout.payloads + start * layout.width, size * layout.width);
+	}
+
+	/** @return the payloads of all samples as int16_t/uint16_t values, {@link #getWidth()} / 2 per sample */
+	public ShortBuffer asShorts(){
+		return payloads().asShortBuffer();
+	}
+
+	/** @return the payloads of all samples as int32_t/uint32_t values, {@link #getWidth()} / 4 per sample */
+	public IntBuffer asInts(){
+		return payloads().asIntBuffer();
+	}
+
+	/** @return the payloads of all samples as floats, {@link #getWidth()} / 4 per sample */
+	public FloatBuffer asFloats(){
+		return payloads().asFloatBuffer();
+	}
+}
+}
@@ -0,0 +1,319 @@
+package j2arduino.devices;
+
+import j2arduino.ArduinoPacket;
+import j2arduino.util.*;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Calls a function of an Arduino at a fixed rate and keeps the replies in a preallocated ring.
+ <p/>
+ Calls are scheduled on an absolute time grid (start + n * period), so delays of single calls do not accumulate to drift. A call whose tick has
+ passed while the previous one was still in progress is an overrun, handled according to the {@link OverrunPolicy}. Each sample records the
+ scheduled time, the time the request frame was written, the time the reply was decoded (all System.nanoTime()), the return value and the reply
+ payload; failed calls are recorded too.
+ <p/>
+ The ring consists of primitive arrays allocated once; sampling allocates nothing apart from what a transfer allocates anyway. It is written by the
+ sampler thread only and read without locks: every slot carries the index of the sample it holds, which is invalidated before and published after
+ writing the slot, so readers detect samples that were overwritten while reading them (a seqlock; fences keep the plain accesses of the slot
+ between the accesses of its index). For keeping samples longer than the ring does, they can be appended to an {@link ArduinoSampleStore} too
+ ({@link #setStore}).
+ \code
+ ArduinoSampler s = new ArduinoSampler(arduino, "readAdc", new byte[]{3}, 10000000L, ArduinoSampler.OverrunPolicy.SKIP, 4096, 2);
+ s.start();
+ ArduinoSampler.Sample sample = new ArduinoSampler.Sample(2);
+ long next = 0;
+ ...
+ for(; next < s.getHead(); next++)
+ 	if(s.read(Math.max(next, s.getTail()), sample))
+ 		process(sample);
+ \endcode
+ */
+public final class ArduinoSampler{
+
+/** How to handle ticks that passed while the previous call was still in progress. */
+public enum OverrunPolicy{
+	/** Skip the missed ticks and continue with the next one in the future, i.e. keep the phase of the grid. */
+	SKIP,
+	/** Issue calls for the missed ticks back to back until the schedule is met again (at most as many as the ring holds). */
+	CATCH_UP
+}
+
+/** A sample copied out of the ring. */
+public static final class Sample{
+	/** The index of the sample (counting from 0 since the start of the sampler). */
+	public long index;
+	/** The time the call was scheduled for (System.nanoTime()). */
+	public long scheduled;
+	/** The time the request frame was written (System.nanoTime()) or 0 if it was not. */
+	public long sent;
+	/** The time the reply was decoded or the call failed (System.nanoTime()). */
+	public long replied;
+	/** The return value of the function or -1 if the call failed. */
+	public int returnValue;
+	/** The number of valid bytes in #payload; the reply payload may have been truncated to the payload size of the ring. */
+	public int length;
+	/** The reply payload. */
+	public final byte[] payload;
+
+	/** @param maxPayload the payload size of the sampler to read from */
+	public Sample(int maxPayload){
+		payload = new byte[maxPayload];
+	}
+}
+
+private final Arduino arduino;
+private final String function;
+private final byte[] request;
+private final long period;
+private final OverrunPolicy policy;
+private final int capacity;
+private final int maxPayload;
+
+// the ring
+private final AtomicLongArray slotIndex;
+private final long[] scheduled;
+private final long[] sent;
+private final long[] replied;
+private final int[] returnValues;
+private final int[] lengths;
+private final byte[] payloads;
+/** The index of the next sample to be written. */
+private final AtomicLong head = new AtomicLong();
+
+private final AtomicLong errors = new AtomicLong();
+private final AtomicLong overruns = new AtomicLong();
+private final AtomicLong skipped = new AtomicLong();
+private final LatencyHistogram lateness = new LatencyHistogram();
+private volatile ArduinoSampleStore.Series store;
+private volatile boolean run = false;
+private Thread thread;
+
+/**
+ Creates a sampler. It is not started yet.
+
+ @param arduino     the Arduino to call
+ @param function    the name of the function to call
+ @param payload     the payload of every call (may be null)
+ @param periodNanos the period in nanoseconds
+ @param policy      the overrun policy
+ @param capacity    the number of samples the ring holds
+ @param maxPayload  the number of reply bytes kept per sample */
+public ArduinoSampler(Arduino arduino, String function, byte[] payload, long periodNanos, OverrunPolicy policy, int capacity, int maxPayload){
+	if(periodNanos <= 0 || capacity <= 0 || maxPayload < 0)
+		throw new IllegalArgumentException("Period and capacity need to be positive");
+	this.arduino = arduino;
+	this.function = function;
+	request = payload;
+	period = periodNanos;
+	this.policy = policy;
+	this.capacity = capacity;
+	this.maxPayload = maxPayload;
+	slotIndex = new AtomicLongArray(capacity);
+	for(int i = 0; i < capacity; i++)
+		slotIndex.set(i, -1);
+	scheduled = new long[capacity];
+	sent = new long[capacity];
+	replied = new long[capacity];
+	returnValues = new int[capacity];
+	lengths = new int[capacity];
+	payloads = new byte[capacity * maxPayload];
+}
+
+/** Starts sampling on a new thread, the first call is issued right away. */
+public synchronized void start(){
+	if(run)
+		return;
+	run = true;
+	thread = WorkerThreads.newThread(new Runnable(){
+		@Override
+		public void run(){
+			sample();
+		}
+	}, arduino.address + "-sampler-" + function);
+	thread.setDaemon(true);
+	thread.start();
+}
+
+/** Stops sampling and waits for the call in progress, if any. */
+public void stop(){
+	final Thread t;
+	synchronized(this){
+		run = false;
+		t = thread;
+		thread = null;
+	}
+	if(t != null && t != Thread.currentThread()){
+		LockSupport.unpark(t);
+		try{
+			t.join();
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
+
+/**
+ Sets a series to append the successful samples to, in addition to the ring. Timestamps are the reply times in nanoseconds since the epoch.
+
+ @param series the series or null to stop storing samples */
+public void setStore(ArduinoSampleStore.Series series){
+	store = series;
+}
+
+/** @return if the sampler is running; it stops by itself when the Arduino is disconnected or lacks the function */
+public boolean isRunning(){
+	return run;
+}
+
+private void sample(){
+	final ArduinoPacket req = new ArduinoPacket(0, null, null);
+	long next = System.nanoTime();
+	final long epoch = System.currentTimeMillis() * 1000000L - next;
+	while(run){
+		long now;
+		while((now = System.nanoTime()) < next){
+			LockSupport.parkNanos(next - now);
+			if(!run)
+				return;
+		}
+		lateness.record(now - next);
+		final byte offset = arduino.getFuncMapping().get(function);
+		if(offset < 0){
+			run = false;
+			if(arduino.isConnected()){ // else the mapping was cleared when disconnecting
+				errors.incrementAndGet();
+				System.err.println("Function name " + function + " not in mapping of " + arduino.address + ", sampler stopped");
+			}
+			return;
+		}
+		req.cmd = offset;
+		req.msg = request;
+		req.ex = null;
+		int ret;
+		try{
+			ret = arduino.sendSync(req).cmd&0xFF;
+		} catch(IOException e){
+			ret = -1;
+		} catch(IllegalStateException e){
+			// disconnected
+			run = false;
+			return;
+		} catch(InterruptedException e){
+			run = false;
+			return;
+		}
+		final long done = System.nanoTime();
+		if(ret >= 0){
+			final long replied = (req.decoded != 0) ? req.decoded : done;
+			record(next, req.written, replied, ret, req.msg);
+			store(epoch + replied, ret, req.msg);
+		} else
+			record(next, req.written, done, ret, null);
+
+		next += period;
+		if(done > next){
+			overruns.incrementAndGet();
+			final long missed = (done - next) / period;
+			if(policy == OverrunPolicy.SKIP || missed >= capacity){
+				// continue with the first tick in the future
+				next += (missed + 1) * period;
+				skipped.addAndGet(missed + 1);
+			}
+		}
+	}
+}
+
+/** Appends a sample to the store, if any. */
+private void store(long timestamp, int ret, byte[] msg){
+	final ArduinoSampleStore.Series s = store;
+	if(s == null)
+		return;
+	try{
+		// the clock offset may differ slightly from the one of a previous run appending to the same series
+		s.append(Math.max(timestamp, s.getLastTimestamp()), ret, msg, 0, (msg != null) ? msg.length : 0);
+	} catch(IOException e){
+		System.err.println("Could not store sample of " + function + ", not storing any more: " + e.getMessage());
+		store = null;
+	} catch(IllegalStateException e){
+		// the series was closed
+		store = null;
+	}
+}
+
+/** Writes a sample into the ring (sampler thread only). */
+private void record(long scheduledAt, long sentAt, long repliedAt, int ret, byte[] msg){
+	if(ret < 0)
+		errors.incrementAndGet();
+	final long index = head.get();
+	final int slot = (int)(index % capacity);
+	slotIndex.set(slot, -1); // invalidate the slot for readers
+	VarHandle.storeStoreFence(); // before any write to the slot becomes visible
+	scheduled[slot] = scheduledAt;
+	sent[slot] = sentAt;
+	replied[slot] = repliedAt;
+	returnValues[slot] = ret;
+	final int len = (msg != null) ? Math.min(msg.length, maxPayload) : 0;
+	lengths[slot] = len;
+	if(len > 0)
+		System.arraycopy(msg, 0, payloads, slot * maxPayload, len);
+	slotIndex.set(slot, index); // publishes the slot
+	head.set(index + 1);
+}
+
+/**
+ Copies the sample with index \a index into \a dst.
+
+ @return false if the sample was not written yet or was overwritten already (before or while copying) */
+public boolean read(long index, Sample dst){
+	if(index < 0 || index >= head.get())
+		return false;
+	final int slot = (int)(index % capacity);
+	if(slotIndex.get(slot) != index)
+		return false;
+	dst.index = index;
+	dst.scheduled = scheduled[slot];
+	dst.sent = sent[slot];
+	dst.replied = replied[slot];
+	dst.returnValue = returnValues[slot];
+	final int len = Math.min(lengths[slot], dst.payload.length);
+	System.arraycopy(payloads, slot * maxPayload, dst.payload, 0, len);
+	dst.length = len;
+	// the slot is valid only if it was not touched meanwhile; a volatile read alone would not keep the copies from moving after it
+	VarHandle.loadLoadFence();
+	return slotIndex.get(slot) == index;
+}
+
+/** @return the index of the next sample to be written, i.e. the number of samples taken */
+public long getHead(){
+	return head.get();
+}
+
+/** @return the index of the oldest sample still in the ring */
+public long getTail(){
+	return Math.max(0, head.get() - capacity);
+}
+
+/** @return the number of failed calls */
+public long getErrors(){
+	return errors.get();
+}
+
+/** @return the number of calls that finished after the next tick */
+public long getOverruns(){
+	return overruns.get();
+}
+
+/** @return the number of ticks skipped due to overruns */
+public long getSkipped(){
+	return skipped.get();
+}
+
+/** @return the distribution of the delays between the scheduled times and the actual issuing of the calls */
+public LatencyHistogram getLateness(){
+	return lateness;
+}
+}
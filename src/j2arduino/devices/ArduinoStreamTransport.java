@@ -0,0 +1,271 @@
+package j2arduino.devices;
+
+import j2arduino.util.TimeoutException;
+import j2arduino.util.WorkerThreads;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ Adapts a pair of blocking streams to the {@link ArduinoTransport} interface.
+ <p/>
+ Streams can not be read with a timeout, thus reads with a timeout block in the stream only if it reports available bytes. Otherwise the
+ blocking read is handed to a reader thread of this transport (started on first use) and the caller waits for its result up to the timeout;
+ if it expires, the read stays pending and its bytes are returned by the next read. A stream whose {@link InputStream#available()} always
+ returns 0 works too, at the cost of a thread hand-off per read.
+ <p/>
+ Writes with a timeout are guarded by a shared watchdog, which closes the transport if a write takes longer than its timeout (checked every
+ {@value #WATCHDOG_INTERVAL} ms); the write then fails with a {@link TimeoutException}. Unlike a read timeout this breaks the connection, since
+ a frame was possibly written partially.
+ */
+public class ArduinoStreamTransport implements ArduinoTransport{
+
+/** The interval of the write watchdog in milliseconds. */
+public static final int WATCHDOG_INTERVAL = 50;
+/** The transports with timed writes. */
+private static final Set<ArduinoStreamTransport> guarded =
+		Collections.newSetFromMap(new ConcurrentHashMap<ArduinoStreamTransport, Boolean>());
+private static ScheduledExecutorService watchdog;
+
+private final InputStream in;
+private final OutputStream out;
+private final int packetSize;
+/** Used to gather multiple buffers and to copy from buffers without accessible arrays. */
+private final byte[] scratch;
+
+// reads handed to the reader thread, guarded by #lock
+private final Object lock = new Object();
+private Thread reader;
+/** The buffer the reader thread reads into. */
+private final byte[] pumped;
+/** If a read of the reader thread is requested or in progress. */
+private boolean pumping;
+/** The range of unconsumed bytes in #pumped; #pumpedEnd is -1 after the end of the stream. */
+private int pumpedStart, pumpedEnd;
+private IOException pumpedEx;
+private boolean closed;
+
+/** The time (System.nanoTime()) a timed write in progress expires or 0. */
+private volatile long writeDeadline;
+private volatile boolean writeExpired;
+
+/**
+ Creates a new transport.
+
+ @param inputStream  the stream to read from
+ @param outputStream the stream to write to
+ @param packetSize   the packet size of the underlying protocol */
+public ArduinoStreamTransport(InputStream inputStream, OutputStream outputStream, int packetSize){
+	in = inputStream;
+	out = outputStream;
+	this.packetSize = packetSize;
+	scratch = new byte[Math.max(packetSize, ArduinoFrameCodec.A2J_MAX_FRAME)];
+	pumped = new byte[scratch.length];
+}
+
+@Override
+public int read(ByteBuffer dst, long timeout) throws IOException{
+	synchronized(lock){
+		if(timeout > 0 && !pumping && pumpedStart == pumpedEnd && pumpedEx == null && in.available() <= 0){
+			startReader();
+			pumping = true;
+			lock.notifyAll();
+		}
+		if(pumping || pumpedStart != pumpedEnd || pumpedEx != null)
+			return readPumped(dst, timeout);
+	}
+	// the reader thread is idle, thus this is the only thread reading
+	return readDirectly(dst);
+}
+
+/** Returns the result of the read of the reader thread, waiting for it up to \a timeout ms (call with #lock held). */
+private int readPumped(ByteBuffer dst, long timeout) throws IOException{
+	final long deadline = System.nanoTime() + timeout * 1000000L;
+	try{
+		while(pumping){
+			if(timeout <= 0)
+				lock.wait();
+			else{
+				final long left = deadline - System.nanoTime();
+				if(left <= 0)
+					throw new TimeoutException("No data received within " + timeout + " ms");
+				lock.wait(left / 1000000L, (int)(left % 1000000L));
+			}
+		}
+	} catch(InterruptedException e){
+		throw (InterruptedIOException)new InterruptedIOException("Interrupted while waiting for data").initCause(e);
+	}
+	if(pumpedEx != null){
+		final IOException e = pumpedEx;
+		pumpedEx = null;
+		throw e;
+	}
+	if(pumpedEnd < 0)
+		return -1;
+	final int n = Math.min(dst.remaining(), pumpedEnd - pumpedStart);
+	dst.put(pumped, pumpedStart, n);
+	pumpedStart += n;
+	return n;
+}
+
+private int readDirectly(ByteBuffer dst) throws IOException{
+	int n;
+	if(dst.hasArray()){
+		n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+		if(n > 0)
+			dst.position(dst.position() + n);
+	} else{
+		n = in.read(scratch, 0, Math.min(scratch.length, dst.remaining()));
+		if(n > 0)
+			dst.put(scratch, 0, n);
+	}
+	return n;
+}
+
+/** Starts the reader thread if it does not run yet (call with #lock held). */
+private void startReader(){
+	if(reader != null)
+		return;
+	reader = WorkerThreads.newThread(new Runnable(){
+		@Override
+		public void run(){
+			pump();
+		}
+	}, "j2arduino-transport-reader");
+	reader.setDaemon(true);
+	reader.start();
+}
+
+/** The loop of the reader thread: performs the requested reads until the end of the stream, an error or closing. */
+private void pump(){
+	while(true){
+		synchronized(lock){
+			try{
+				while(!pumping && !closed)
+					lock.wait();
+			} catch(InterruptedException e){
+				return;
+			}
+			if(closed)
+				return;
+		}
+		int n;
+		IOException ex = null;
+		try{
+			n = in.read(pumped, 0, pumped.length);
+		} catch(IOException e){
+			n = -1;
+			ex = e;
+		}
+		synchronized(lock){
+			pumpedStart = 0;
+			pumpedEnd = (ex == null) ? n : 0;
+			pumpedEx = ex;
+			pumping = false;
+			lock.notifyAll();
+		}
+		if(n < 0)
+			return;
+	}
+}
+
+@Override
+public long write(ByteBuffer[] srcs, long timeout) throws IOException{
+	if(timeout <= 0)
+		return writeDirectly(srcs);
+	if(guarded.add(this))
+		startWatchdog();
+	writeDeadline = System.nanoTime() + timeout * 1000000L;
+	try{
+		return writeDirectly(srcs);
+	} catch(IOException e){
+		if(writeExpired)
+			throw new TimeoutException("Could not write within " + timeout + " ms", e);
+		throw e;
+	} finally{
+		writeDeadline = 0;
+	}
+}
+
+private synchronized static void startWatchdog(){
+	if(watchdog != null)
+		return;
+	watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "j2arduino-transport-watchdog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	watchdog.scheduleWithFixedDelay(new Runnable(){
+		@Override
+		public void run(){
+			final long now = System.nanoTime();
+			for(ArduinoStreamTransport t : guarded){
+				final long d = t.writeDeadline;
+				if(d != 0 && now - d > 0){
+					t.writeExpired = true;
+					try{
+						t.close();
+					} catch(IOException ignored){
+					}
+				}
+			}
+		}
+	}, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+}
+
+private long writeDirectly(ByteBuffer[] srcs) throws IOException{
+	long total = 0;
+	if(srcs.length == 1 && srcs[0].hasArray()){
+		ByteBuffer src = srcs[0];
+		total = src.remaining();
+		out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+		src.position(src.limit());
+	} else{
+		// gather into as few stream writes as possible
+		int fill = 0;
+		for(ByteBuffer src : srcs){
+			while(src.hasRemaining()){
+				if(fill == scratch.length){
+					out.write(scratch, 0, fill);
+					fill = 0;
+				}
+				int n = Math.min(src.remaining(), scratch.length - fill);
+				src.get(scratch, fill, n);
+				fill += n;
+				total += n;
+			}
+		}
+		if(fill > 0)
+			out.write(scratch, 0, fill);
+	}
+	out.flush();
+	return total;
+}
+
+@Override
+public int getPacketSize(){
+	return packetSize;
+}
+
+@Override
+public void close() throws IOException{
+	guarded.remove(this);
+	try{
+		in.close();
+	} finally{
+		try{
+			out.close();
+		} finally{
+			synchronized(lock){
+				closed = true;
+				lock.notifyAll();
+			}
+		}
+	}
+}
+}
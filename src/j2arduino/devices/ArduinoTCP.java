@@ -0,0 +1,89 @@
+package j2arduino.devices;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/** An Arduino reachable through a TCP bridge (e.g. a serial-to-network server) that forwards the raw arduino2j byte stream. */
+public class ArduinoTCP extends Arduino{
+
+private final InetSocketAddress socketAddress;
+private Socket socket;
+private SocketChannel channel;
+
+/**
+ Creates an Arduino instance.
+
+ @param name    a String used in GUIs to identify this Arduino
+ @param address the address of the bridge in the form {@code host:port} */
+public ArduinoTCP(String name, String address){
+	super(name, address);
+	int sep = address.lastIndexOf(':');
+	if(sep <= 0)
+		throw new IllegalArgumentException("TCP addresses need to be of the form host:port");
+	socketAddress = InetSocketAddress.createUnresolved(address.substring(0, sep), Integer.parseInt(address.substring(sep + 1)));
+}
+
+private synchronized Socket getSocket() throws IOException{
+	if(socket == null){
+		Socket s = new Socket();
+		try{
+			s.connect(new InetSocketAddress(socketAddress.getHostString(), socketAddress.getPort()), CONNECTING_TIMEOUT);
+			s.setTcpNoDelay(true);
+		} catch(IOException e){
+			s.close();
+			throw e;
+		}
+		socket = s;
+	}
+	return socket;
+}
+
+private synchronized SocketChannel getChannel() throws IOException{
+	if(channel == null){
+		SocketChannel c = SocketChannel.open();
+		try{
+			c.socket().connect(new InetSocketAddress(socketAddress.getHostString(), socketAddress.getPort()), CONNECTING_TIMEOUT);
+			c.socket().setTcpNoDelay(true);
+		} catch(IOException e){
+			c.close();
+			throw e;
+		}
+		channel = c;
+	}
+	return channel;
+}
+
+@Override
+protected OutputStream openOutputStream() throws IOException{
+	return getSocket().getOutputStream();
+}
+
+@Override
+protected InputStream openInputStream() throws IOException{
+	return getSocket().getInputStream();
+}
+
+@Override
+protected SelectableChannel openReadChannel() throws IOException{
+	return getChannel();
+}
+
+@Override
+protected SelectableChannel openWriteChannel() throws IOException{
+	return getChannel();
+}
+
+@Override
+protected synchronized void releaseResources(){
+	try{
+		if(socket != null)
+			socket.close();
+		if(channel != null)
+			channel.close();
+	} catch(IOException ignored){
+	}
+	socket = null;
+	channel = null;
+}
+}
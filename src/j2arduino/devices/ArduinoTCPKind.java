@@ -0,0 +1,43 @@
+package j2arduino.devices;
+
+import j2arduino.util.J2ArduinoSettings;
+
+import java.util.HashSet;
+
+/**
+ Arduinos behind TCP bridges. There is no way to discover them, hence {@link #getAvailableArduinos(boolean)} returns the bridges listed in the
+ setting {@link #J2ARDUINO_TCP_ADDRESSES} only. Other bridges can be preconfigured with {@link j2arduino.ArduinoGateway#J2ARDUINO_DEVICES}.
+ */
+public class ArduinoTCPKind implements ArduinoKind{
+
+/** Setting listing {@code host:port} addresses of TCP bridges (separated by commas and/or whitespace). */
+public static final String J2ARDUINO_TCP_ADDRESSES = "j2arduino.tcp.addresses";
+private final HashSet<Arduino> arduinos = new HashSet<Arduino>(1);
+
+public ArduinoTCPKind(){
+}
+
+@Override
+public boolean isAvailable(){
+	return true;
+}
+
+@Override
+public HashSet<Arduino> getAvailableArduinos(boolean updateNow){
+	final String s = J2ArduinoSettings.getSetting(J2ARDUINO_TCP_ADDRESSES);
+	synchronized(arduinos){
+		if(s != null){
+			for(String address : s.split("[\\s,]+")){
+				if(!address.isEmpty())
+					arduinos.add(new ArduinoTCP(address, address));
+			}
+		}
+	}
+	return arduinos;
+}
+
+@Override
+public Arduino getArduino(String name, String address){
+	return new ArduinoTCP(name, address);
+}
+}
@@ -0,0 +1,201 @@
+package j2arduino.devices;
+
+import j2arduino.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ A binary capture of the bytes exchanged with one Arduino.
+ <p/>
+ If the setting {@link #J2ARDUINO_TRACE} names a directory, every connection appends to a new trace file there: each request frame as written
+ and each chunk of bytes as read from the transport, with a timestamp and the sequence number of the request in flight. The file is written
+ through a {@link MappedAppendFile}, so tracing costs a copy per frame and no system calls on the transfer path.
+ <p/>
+ File format (little endian): a header of the magic {@code "A2JTRACE"}, the version (int, 1), the length of the address (int), the wall clock
+ time of the start (long, milliseconds since the epoch) and the address (UTF-8), followed by records of the direction (byte, {@link
+ #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}), the sequence number (byte), the length of the data (unsigned short), the time since the start
+ (long, nanoseconds) and the data. A direction of 0 marks the end of the records. Traces are read back with {@link Reader}.
+ <p/>
+ A trace has a single writer and no locking: it belongs to the link of one connection, which appends the records and closes it on its own thread
+ (the worker or the event loop) when it closes, so a new connection of the same Arduino never shares it.
+ */
+public final class ArduinoTrace implements Closeable{
+
+/** Setting for the directory to write trace files into (default: none, which disables tracing). */
+public static final String J2ARDUINO_TRACE = "j2arduino.trace";
+/** Direction of records of bytes written to the Arduino. */
+public static final byte DIRECTION_SENT = 1;
+/** Direction of records of bytes read from the Arduino. */
+public static final byte DIRECTION_RECEIVED = 2;
+private static final byte[] MAGIC = {'A', '2', 'J', 'T', 'R', 'A', 'C', 'E'};
+private static final int VERSION = 1;
+private static final int RECORD_HEADER = 12;
+private static final int REGION_SIZE = 1<<22;
+
+private final MappedAppendFile file;
+private final long start;
+
+private ArduinoTrace(File f, String address) throws IOException{
+	file = new MappedAppendFile(f, 0, REGION_SIZE);
+	start = System.nanoTime();
+	final byte[] a = address.getBytes("UTF-8");
+	final ByteBuffer b = file.reserve(MAGIC.length + 16 + a.length);
+	b.put(MAGIC);
+	b.putInt(VERSION);
+	b.putInt(a.length);
+	b.putLong(System.currentTimeMillis());
+	b.put(a);
+}
+
+/**
+ Opens a new trace file for a connection to \a arduino if tracing is enabled.
+
+ @return the trace or null if tracing is disabled or the file could not be created */
+static ArduinoTrace open(Arduino arduino){
+	final String dir = J2ArduinoSettings.getSetting(J2ARDUINO_TRACE);
+	if(dir == null)
+		return null;
+	final String name = arduino.address.replaceAll("[^A-Za-z0-9.-]", "_") + '-' + System.currentTimeMillis() + ".a2jtrace";
+	try{
+		return new ArduinoTrace(new File(dir, name), arduino.address);
+	} catch(IOException e){
+		System.err.println("Could not create trace file " + name + " in " + dir + ": " + e.getMessage());
+		return null;
+	}
+}
+
+/**
+ Appends a record (link thread only). Failures lose the record silently rather than breaking the connection.
+
+ @param direction {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}
+ @param seq       the sequence number of the request in flight
+ @param nanos     the time (System.nanoTime()) of the transfer
+ @param src       the bytes
+ @param offset    the index of the first byte in \a src
+ @param length    the number of bytes */
+void record(byte direction, byte seq, long nanos, ByteBuffer src, int offset, int length){
+	if(length <= 0)
+		return;
+	try{
+		final ByteBuffer b = file.reserve(RECORD_HEADER + length);
+		b.put(direction);
+		b.put(seq);
+		b.putShort((short)length);
+		b.putLong(nanos - start);
+		final ByteBuffer data = src.duplicate();
+		data.limit(offset + length);
+		data.position(offset);
+		b.put(data);
+	} catch(IOException e){
+		// the disk is full or the like; the record is lost
+	}
+}
+
+@Override
+public void close() throws IOException{
+	file.close();
+}
+
+/** Reads the records of a trace file in order. */
+public static final class Reader implements Closeable{
+	private final RandomAccessFile raf;
+	private final ByteBuffer buf;
+	private final String address;
+	private final long startMillis;
+	private byte direction;
+	private byte seq;
+	private long nanos;
+	private ByteBuffer data;
+
+	/**
+	 Opens a trace file. The file is mapped as a whole, thus it is limited to 2 GiB.
+
+	 @throws IOException if the file can not be read or is no trace */
+	public Reader(File f) throws IOException{
+		raf = new RandomAccessFile(f, "r");
+		try{
+			final FileChannel channel = raf.getChannel();
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			final byte[] magic = new byte[MAGIC.length];
+			if(buf.remaining() < MAGIC.length + 16)
+				throw new EOFException("Not a trace file");
+			buf.get(magic);
+			if(!java.util.Arrays.equals(magic, MAGIC) || buf.getInt() != VERSION)
+				throw new IOException("Not a trace file of version " + VERSION);
+			final byte[] a = new byte[buf.getInt()];
+			startMillis = buf.getLong();
+			buf.get(a);
+			address = new String(a, "UTF-8");
+		} catch(IOException e){
+			raf.close();
+			throw e;
+		} catch(RuntimeException e){
+			raf.close();
+			throw new IOException("Malformed trace file", e);
+		}
+	}
+
+	/** @return the address of the traced Arduino */
+	public String getAddress(){
+		return address;
+	}
+
+	/** @return the wall clock time of the start of the trace in milliseconds since the epoch */
+	public long getStartMillis(){
+		return startMillis;
+	}
+
+	/**
+	 Advances to the next record.
+
+	 @return false if there are no more records */
+	public boolean next(){
+		if(buf.remaining() < RECORD_HEADER)
+			return false;
+		final int pos = buf.position();
+		direction = buf.get();
+		if(direction == 0){
+			buf.position(pos);
+			return false;
+		}
+		seq = buf.get();
+		final int length = buf.getShort()&0xFFFF;
+		nanos = buf.getLong();
+		if(buf.remaining() < length){ // truncated by a crash
+			buf.position(pos);
+			return false;
+		}
+		data = buf.slice();
+		data.limit(length);
+		buf.position(buf.position() + length);
+		return true;
+	}
+
+	/** @return the direction of the current record: {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED} */
+	public byte getDirection(){
+		return direction;
+	}
+
+	/** @return the sequence number of the request in flight at the time of the current record */
+	public byte getSeq(){
+		return seq;
+	}
+
+	/** @return the time of the current record in nanoseconds since the start of the trace */
+	public long getNanos(){
+		return nanos;
+	}
+
+	/** @return the bytes of the current record (a read-only view of the file, valid until the reader is closed) */
+	public ByteBuffer getData(){
+		return data;
+	}
+
+	@Override
+	public void close() throws IOException{
+		raf.close();
+	}
+}
+}
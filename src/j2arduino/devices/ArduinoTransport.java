@@ -0,0 +1,46 @@
+package j2arduino.devices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ The byte transport of a connection to a remote device as used by the worker thread of an {@link Arduino}.
+ <p/>
+ Implementations are expected to add no buffering of their own beyond what the underlying protocol needs: written bytes are handed to the
+ underlying protocol when {@link #write} returns and {@link #read} returns whatever was received so far. Read and write may be called
+ concurrently by different threads, but each of them by one thread at a time only.
+
+ @see Arduino#openTransport() */
+public interface ArduinoTransport{
+
+/**
+ Reads bytes into \a dst, blocking until at least one byte is available.
+
+ @param dst     the buffer to read into (starting at its position)
+ @param timeout the maximum time to wait in milliseconds, 0 waits forever
+ @return the number of bytes read or -1 if the connection was closed by the peer
+ @throws j2arduino.util.TimeoutException if no byte was received in time
+ @throws java.io.InterruptedIOException  if the calling thread was interrupted
+ @throws IOException                     if an I/O error occurs */
+int read(ByteBuffer dst, long timeout) throws IOException;
+
+/**
+ Writes the remaining bytes of all buffers in \a srcs (gathering write) and returns when all of them are handed to the underlying protocol.
+
+ @param srcs    the buffers to write
+ @param timeout the maximum time to wait in milliseconds, 0 waits forever (implementations that can not interrupt a write may ignore it)
+ @return the number of bytes written
+ @throws j2arduino.util.TimeoutException if the bytes could not be written in time
+ @throws IOException                     if an I/O error occurs */
+long write(ByteBuffer[] srcs, long timeout) throws IOException;
+
+/**
+ Returns the size of the packets of the underlying protocol (e.g. the maximum packet size of an USB endpoint). Writes of multiples of this size
+ and reads into buffers of at least this size are the most efficient.
+
+ @return the packet size in bytes */
+int getPacketSize();
+
+/** Closes the transport. Blocked reads and writes fail afterwards. */
+void close() throws IOException;
+}
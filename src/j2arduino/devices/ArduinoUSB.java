@@ -52,6 +52,13 @@ protected InputStream openInputStream() throws IOException{
 	}
 }
 
+/** Adapts the USB streams and reports the maximum packet size of the IN endpoint as packet size. */
+@Override
+protected ArduinoTransport openTransport() throws IOException{
+	final int packetSize = usbIF.getUsbEndpoint(USB_IN_EPNUM).getUsbEndpointDescriptor().wMaxPacketSize();
+	return new ArduinoStreamTransport(openInputStream(), openOutputStream(), packetSize);
+}
+
 @Override
 protected void releaseResources(){
 	try{
@@ -11,6 +11,8 @@ public class ArduinoUSBKind implements ArduinoKind{
 private final HashSet<Arduino> arduinos = new HashSet<Arduino>(1);
 public static final String USB_MANUF = "ims.tuwien.ac.at";
 public static final String USB_PROD = "USB Board";
+/** Prefix of the addresses of all USB Arduinos (followed by the serial number of the device). */
+public static final String USB_ADDRESS_PREFIX = "USB-";
 public static final byte USB_IF_CLASS = (byte)0xFF;
 public static final byte USB_IF_SUBCLASS = (byte)0x12;
 public static final byte USB_IF_PROTOCOL = (byte)0xEF;
@@ -58,36 +60,80 @@ public HashSet<Arduino> getAvailableArduinos(boolean updateNow) throws IOExcepti
 	return arduinos;
 }
 
+@Override
+public Arduino getArduino(String name, String address) throws IOException{
+	if(!address.startsWith(USB_ADDRESS_PREFIX))
+		throw new IOException("Not an USB address: " + address);
+	String serialNumberString = address.substring(USB_ADDRESS_PREFIX.length());
+	try{
+		UsbDevice dev = findUsbDevice(UsbHostManager.getUsbServices().getRootUsbHub(), serialNumberString);
+		if(dev == null)
+			throw new IOException("No compatible USB device with serial number '" + serialNumberString + "' attached");
+		return new ArduinoUSB(address, name, getA2JInterface(dev));
+	} catch(UsbException e){
+		throw new IOException(e);
+	}
+}
+
 private void addAttachedUsbDevices(UsbHub usbHub) throws UsbException, UnsupportedEncodingException{
 	for(UsbDevice dev : usbHub.getAttachedUsbDevices()){
 		if(dev.isUsbHub()){
 			addAttachedUsbDevices((UsbHub)dev);
 		} else{
-			UsbDeviceDescriptor devDescriptor = dev.getUsbDeviceDescriptor();
-			// check for vendor specific class
-			if(devDescriptor != null && devDescriptor.bDeviceClass() == (byte)0xff){
-				UsbConfiguration config = dev.getActiveUsbConfiguration();
-				if(config != null){
-					UsbInterface usbIf = config.getUsbInterface((byte)0);
-					if(usbIf != null){
-						UsbInterfaceDescriptor usbIfDesc = usbIf.getUsbInterfaceDescriptor();
-						if(config.isActive()
-						   && usbIfDesc.bInterfaceClass() == USB_IF_CLASS
-						   && usbIfDesc.bInterfaceSubClass() == USB_IF_SUBCLASS
-						   && usbIfDesc.bInterfaceProtocol() == USB_IF_PROTOCOL
-						   && usbIf.containsUsbEndpoint(ArduinoUSB.USB_IN_EPNUM)
-						   && usbIf.containsUsbEndpoint(ArduinoUSB.USB_OUT_EPNUM)){
-							final String serialNumberString = dev.getSerialNumberString();
-							final String id = ((serialNumberString.isEmpty()) ? UUID.randomUUID().toString() : serialNumberString);
-							synchronized(arduinos){
-								Arduino arduino = new ArduinoUSB("USB-" + id, dev.getProductString() + '-' + serialNumberString, usbIf);
-								arduinos.add(arduino);
-							}
-						}
-					}
+			UsbInterface usbIf = getA2JInterface(dev);
+			if(usbIf != null){
+				final String serialNumberString = dev.getSerialNumberString();
+				final String id = ((serialNumberString.isEmpty()) ? UUID.randomUUID().toString() : serialNumberString);
+				synchronized(arduinos){
+					Arduino arduino = new ArduinoUSB(USB_ADDRESS_PREFIX + id, dev.getProductString() + '-' + serialNumberString, usbIf);
+					arduinos.add(arduino);
 				}
 			}
 		}
 	}
 }
-}
\ No newline at end of file
+
+/**
+ Searches the tree below \a usbHub for a compatible device with the given serial number.
+
+ @return the device found or null */
+private UsbDevice findUsbDevice(UsbHub usbHub, String serialNumberString) throws UsbException, UnsupportedEncodingException{
+	for(UsbDevice dev : usbHub.getAttachedUsbDevices()){
+		if(dev.isUsbHub()){
+			UsbDevice found = findUsbDevice((UsbHub)dev, serialNumberString);
+			if(found != null)
+				return found;
+		} else if(getA2JInterface(dev) != null && serialNumberString.equals(dev.getSerialNumberString())){
+			return dev;
+		}
+	}
+	return null;
+}
+
+/**
+ Returns the interface of \a dev that speaks arduino2j.
+
+ @return the interface or null if \a dev is not compatible */
+private static UsbInterface getA2JInterface(UsbDevice dev){
+	UsbDeviceDescriptor devDescriptor = dev.getUsbDeviceDescriptor();
+	// check for vendor specific class
+	if(devDescriptor == null || devDescriptor.bDeviceClass() != (byte)0xff)
+		return null;
+	UsbConfiguration config = dev.getActiveUsbConfiguration();
+	if(config == null)
+		return null;
+	UsbInterface usbIf = config.getUsbInterface((byte)0);
+	if(usbIf == null)
+		return null;
+	UsbInterfaceDescriptor usbIfDesc = usbIf.getUsbInterfaceDescriptor();
+	if(config.isActive()
+	   && usbIfDesc.bInterfaceClass() == USB_IF_CLASS
+	   && usbIfDesc.bInterfaceSubClass() == USB_IF_SUBCLASS
+	   && usbIfDesc.bInterfaceProtocol() == USB_IF_PROTOCOL
+	   && usbIf.containsUsbEndpoint(ArduinoUSB.USB_IN_EPNUM)
+	   && usbIf.containsUsbEndpoint(ArduinoUSB.USB_OUT_EPNUM)){
+		return usbIf;
+	}
+	return null;
+}
+}
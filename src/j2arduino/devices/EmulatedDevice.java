@@ -0,0 +1,380 @@
+package j2arduino.devices;
+
+import j2arduino.ArduinoPacket;
+import j2arduino.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ The device side of arduino2j, emulated in Java.
+ <p/>
+ Speaks the exact framing of the firmware over a pair of streams: frames of any sequence number are accepted and answered with the same sequence
+ number, calls of offsets without function are answered with {@link ArduinoFrameCodec#A2J_RET_OOB} and frames with mismatching checksums with
+ {@link ArduinoFrameCodec#A2J_RET_CHKSUM}. The receive timeout of the firmware ({@link ArduinoFrameCodec#A2J_RET_TO}) is not emulated.
+ <p/>
+ The following functions are built in (in this order, i.e. at these offsets): {@code a2jGetMapping}, {@code a2jGetProperties}, {@code a2jMany},
+ {@code a2jDebug}, {@code a2jEcho} and {@code a2jEchoMany}. More can be added with {@link #addFunction(String, EmulatedFunction)}.
+ <p/>
+ The link can be degraded to emulate real transports: its throughput can be limited like a serial line ({@link #setBaudRate(int)}), replies can
+ be delayed ({@link #setLatency(double, double)}) and bytes can be corrupted or whole requests dropped. The defaults of these parameters are taken
+ from the settings {@link #J2ARDUINO_EMULATOR_BAUD} et al.
+ */
+public class EmulatedDevice{
+
+/** Setting for the emulated baud rate (10 bits per byte), 0 for unlimited throughput (default: 0). */
+public static final String J2ARDUINO_EMULATOR_BAUD = "j2arduino.emulator.baud";
+/** Setting for the latency added to each reply in milliseconds (default: 0). */
+public static final String J2ARDUINO_EMULATOR_LATENCY = "j2arduino.emulator.latency";
+/** Setting for the maximum deviation of the latency in milliseconds, uniformly distributed (default: 0). */
+public static final String J2ARDUINO_EMULATOR_JITTER = "j2arduino.emulator.jitter";
+/** Setting for the probability of each transferred byte to get one bit flipped (default: 0). */
+public static final String J2ARDUINO_EMULATOR_CORRUPT = "j2arduino.emulator.corrupt";
+/** Setting for the probability of each request to be dropped without reply (default: 0). */
+public static final String J2ARDUINO_EMULATOR_DROP = "j2arduino.emulator.drop";
+/** Setting for the seed of the random numbers used for jitter and fault injection (default: random). */
+public static final String J2ARDUINO_EMULATOR_SEED = "j2arduino.emulator.seed";
+
+private final String name;
+private final List<String> names = new CopyOnWriteArrayList<String>();
+private final List<EmulatedFunction> functions = new CopyOnWriteArrayList<EmulatedFunction>();
+private final Map<String, String> properties = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+private final StringBuffer debug = new StringBuffer();
+private final Random random;
+private volatile int baudRate;
+private volatile long latency;
+private volatile long jitter;
+private volatile double corruptRate;
+private volatile double dropRate;
+
+/** Marks the a2jMany entry of #functions, which is handled by the device itself. */
+private final EmulatedFunction many = new EmulatedFunction(){
+	@Override
+	public ArduinoPacket call(byte[] payload){
+		return callMany(payload);
+	}
+};
+/** Reassembles the payload of the current a2jMany call or null. */
+private ByteVector manyRequest;
+/** The reply payload of the current a2jMany call or null. */
+private byte[] manyReply;
+private int manyReplyOffset;
+private byte manyReturn;
+
+/**
+ Creates a new emulated device with the built-in functions.
+
+ @param name the name reported as property {@code name} */
+public EmulatedDevice(String name){
+	this.name = name;
+	final String seed = J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_SEED);
+	random = (seed != null) ? new Random(Long.parseLong(seed)) : new Random();
+	baudRate = Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_BAUD, "0"));
+	setLatency(Double.parseDouble(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_LATENCY, "0")),
+	           Double.parseDouble(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_JITTER, "0")));
+	corruptRate = Double.parseDouble(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_CORRUPT, "0"));
+	dropRate = Double.parseDouble(J2ArduinoSettings.getSetting(J2ARDUINO_EMULATOR_DROP, "0"));
+	properties.put("name", name);
+	properties.put("emulated", "true");
+
+	addFunction("a2jGetMapping", new EmulatedFunction(){
+		@Override
+		public ArduinoPacket call(byte[] payload){
+			ByteVector reply = new ByteVector(256);
+			for(String n : names){
+				reply.append(n.getBytes());
+				reply.append((byte)0);
+			}
+			return new ArduinoPacket(0, reply.getAll(), null);
+		}
+	});
+	addFunction("a2jGetProperties", new EmulatedFunction(){
+		@Override
+		public ArduinoPacket call(byte[] payload){
+			ByteVector reply = new ByteVector(256);
+			synchronized(properties){
+				for(Map.Entry<String, String> e : properties.entrySet()){
+					reply.append(e.getKey().getBytes());
+					reply.append((byte)0);
+					reply.append(e.getValue().getBytes());
+					reply.append((byte)0);
+				}
+			}
+			return new ArduinoPacket(0, reply.getAll(), null);
+		}
+	});
+	addFunction("a2jMany", many);
+	addFunction("a2jDebug", new EmulatedFunction(){
+		@Override
+		public ArduinoPacket call(byte[] payload){
+			synchronized(debug){
+				final int n = Math.min(debug.length(), Arduino.A2J_MAX_PAYLOAD);
+				final byte[] reply = debug.substring(0, n).getBytes();
+				debug.delete(0, n);
+				return new ArduinoPacket(0, reply, null);
+			}
+		}
+	});
+	final EmulatedFunction echo = new EmulatedFunction(){
+		@Override
+		public ArduinoPacket call(byte[] payload){
+			return new ArduinoPacket(0, payload, null);
+		}
+	};
+	addFunction("a2jEcho", echo);
+	addFunction("a2jEchoMany", echo);
+}
+
+/**
+ Adds a function at the next free offset. Functions should be added before connecting, since the mapping is cached by the host.
+
+ @param functionName the name listed in the function mapping
+ @param function     the implementation
+ @return the offset of the function */
+public synchronized byte addFunction(String functionName, EmulatedFunction function){
+	if(names.size() >= 256)
+		throw new IllegalStateException("arduino2j does not support more than 256 functions");
+	names.add(functionName);
+	functions.add(function);
+	return (byte)(names.size() - 1);
+}
+
+/**
+ Sets a property reported by {@code a2jGetProperties}.
+
+ @param key   the key
+ @param value the value */
+public void setProperty(String key, String value){
+	properties.put(key, value);
+}
+
+/**
+ Appends \a message to the debug output returned by {@code a2jDebug} calls.
+
+ @param message the text to append */
+public void debug(String message){
+	debug.append(message);
+}
+
+/** @param baud the baud rate to emulate (10 bits per byte) or 0 for unlimited throughput */
+public void setBaudRate(int baud){
+	baudRate = baud;
+}
+
+/**
+ Sets the latency added to each reply.
+
+ @param milliseconds the mean latency
+ @param jitter       the maximum deviation from the mean (uniformly distributed) */
+public void setLatency(double milliseconds, double jitter){
+	latency = (long)(milliseconds * 1e6);
+	this.jitter = (long)(jitter * 1e6);
+}
+
+/** @param probability the probability of each transferred byte to get a random bit flipped */
+public void setCorruptRate(double probability){
+	corruptRate = probability;
+}
+
+/** @param probability the probability of each request to be dropped without reply */
+public void setDropRate(double probability){
+	dropRate = probability;
+}
+
+/**
+ Serves the host on a new thread until the input reaches its end or one of the streams fails. Both streams are closed afterwards.
+
+ @param in  the stream carrying the requests of the host
+ @param out the stream to write replies to
+ @return the started thread */
+public Thread start(final InputStream in, final OutputStream out){
+	Thread t = WorkerThreads.newThread(new Runnable(){
+		@Override
+		public void run(){
+			try{
+				serve(in, out);
+			} catch(IOException ignored){
+				// the host closed the connection
+			} finally{
+				try{
+					in.close();
+					out.close();
+				} catch(IOException ignored){
+				}
+			}
+		}
+	}, name + "-device");
+	t.setDaemon(true);
+	t.start();
+	return t;
+}
+
+/**
+ Serves the host on the calling thread until the input reaches its end.
+
+ @param in  the stream carrying the requests of the host
+ @param out the stream to write replies to
+ @throws IOException if one of the streams fails */
+public void serve(InputStream in, OutputStream out) throws IOException{
+	final byte[] buf = new byte[Arduino.BUFFER_SIZE];
+	final ByteBuffer received = ByteBuffer.wrap(buf);
+	received.limit(0);
+	final ByteBuffer frame = ByteBuffer.allocate(ArduinoFrameCodec.A2J_MAX_FRAME);
+	final ArduinoFrameCodec.Decoder decoder = new ArduinoFrameCodec.Decoder();
+	decoder.reset(-1);
+	manyRequest = null;
+	manyReply = null;
+	while(true){
+		if(!received.hasRemaining()){
+			int n = in.read(buf, 0, buf.length);
+			if(n < 0)
+				return;
+			corrupt(buf, 0, n);
+			received.position(0);
+			received.limit(n);
+		}
+		byte ret;
+		byte[] reply;
+		try{
+			if(!decoder.decode(received))
+				continue;
+			final byte[] payload = decoder.getMsg();
+			transmit(payload.length + 5);
+			if(random(dropRate))
+				continue;
+			ArduinoPacket r = call(decoder.getCmd(), payload);
+			ret = (byte)r.cmd;
+			reply = r.msg;
+			if(reply != null && reply.length > Arduino.A2J_MAX_PAYLOAD) // a faulty function, the firmware would overflow its buffer here
+				reply = Arrays.copyOf(reply, Arduino.A2J_MAX_PAYLOAD);
+		} catch(ArduinoFrameCodec.ChecksumException e){
+			ret = ArduinoFrameCodec.A2J_RET_CHKSUM;
+			reply = null;
+		} catch(EOFException e){
+			// malformed frame, wait for the next one
+			continue;
+		}
+		frame.clear();
+		ArduinoFrameCodec.encode(decoder.getSeq(), ret, reply, frame);
+		frame.flip();
+		final byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		corrupt(bytes, 0, bytes.length);
+		delay();
+		transmit(bytes.length);
+		out.write(bytes);
+		out.flush();
+	}
+}
+
+private ArduinoPacket call(byte offset, byte[] payload){
+	final int i = offset&0xFF;
+	if(i >= functions.size())
+		return new ArduinoPacket(ArduinoFrameCodec.A2J_RET_OOB, null, null);
+	try{
+		return functions.get(i).call(payload);
+	} catch(RuntimeException e){
+		e.printStackTrace();
+		return new ArduinoPacket(-1, null, null);
+	}
+}
+
+/**
+ Implements a2jMany: reassembles the chunks of a call, calls the function given in the header with the complete payload and returns its reply in
+ chunks, one per (empty) request of the host.
+ */
+private ArduinoPacket callMany(byte[] payload){
+	if(payload.length < Arduino.A2J_MANY_HEADER)
+		return new ArduinoPacket(1, null, null);
+	if(manyReply == null){
+		if(manyRequest == null || ArduinoPacket.readUnsignedInteger(payload, 2, 4) == 0)
+			manyRequest = new ByteVector(512);
+		manyRequest.append(payload, Arduino.A2J_MANY_HEADER);
+		if(payload[1] == 0)
+			return manyChunk((byte)0, false, manyRequest.length(), payload, 0, 0);
+		final int i = payload[0]&0xFF;
+		final EmulatedFunction f = (i < functions.size()) ? functions.get(i) : null;
+		ArduinoPacket r;
+		if(f == null || f == many)
+			r = new ArduinoPacket(ArduinoFrameCodec.A2J_RET_OOB, null, null);
+		else{
+			try{
+				r = f.call(manyRequest.getAll());
+			} catch(RuntimeException e){
+				e.printStackTrace();
+				r = new ArduinoPacket(-1, null, null);
+			}
+		}
+		manyRequest = null;
+		manyReturn = (byte)r.cmd;
+		manyReply = (r.msg != null) ? r.msg : new byte[0];
+		manyReplyOffset = 0;
+	}
+	final int n = Math.min(Arduino.A2J_MANY_PAYLOAD, manyReply.length - manyReplyOffset);
+	final boolean last = manyReplyOffset + n == manyReply.length;
+	ArduinoPacket chunk = manyChunk(manyReturn, last, manyReplyOffset, manyReply, manyReplyOffset, n);
+	manyReplyOffset += n;
+	if(last)
+		manyReply = null;
+	return chunk;
+}
+
+private static ArduinoPacket manyChunk(byte ret, boolean last, int offset, byte[] src, int srcOffset, int length){
+	final byte[] chunk = new byte[Arduino.A2J_MANY_HEADER + length];
+	chunk[0] = ret;
+	chunk[1] = (byte)(last ? 1 : 0);
+	ArduinoPacket.writeUnsignedInteger(offset, chunk, 2, 4);
+	System.arraycopy(src, srcOffset, chunk, Arduino.A2J_MANY_HEADER, length);
+	return new ArduinoPacket(0, chunk, null);
+}
+
+private boolean random(double probability){
+	if(probability <= 0)
+		return false;
+	synchronized(random){
+		return random.nextDouble() < probability;
+	}
+}
+
+/** Flips a random bit of each byte in the given range with probability #corruptRate. */
+private void corrupt(byte[] b, int off, int len){
+	if(corruptRate <= 0)
+		return;
+	for(int i = off; i < off + len; i++){
+		if(random(corruptRate)){
+			synchronized(random){
+				b[i] ^= 1<<random.nextInt(8);
+			}
+		}
+	}
+}
+
+/** Waits for the latency of a reply. */
+private void delay(){
+	long nanos = latency;
+	if(jitter > 0){
+		synchronized(random){
+			nanos += (long)((random.nextDouble() * 2 - 1) * jitter);
+		}
+	}
+	park(nanos);
+}
+
+/** Waits as long as transmitting \a bytes takes at the emulated baud rate. */
+private void transmit(int bytes){
+	final int baud = baudRate;
+	if(baud > 0)
+		park(bytes * 10L * 1000000000L / baud);
+}
+
+private static void park(long nanos){
+	final long deadline = System.nanoTime() + nanos;
+	while(nanos > 0){
+		LockSupport.parkNanos(nanos);
+		nanos = deadline - System.nanoTime();
+	}
+}
+}
@@ -0,0 +1,20 @@
+package j2arduino.devices;
+
+import j2arduino.ArduinoPacket;
+
+/**
+ A function of an {@link EmulatedDevice}, i.e. the Java counterpart of an entry in the function pointer array of arduino2j.
+
+ @see EmulatedDevice#addFunction(String, EmulatedFunction) */
+public interface EmulatedFunction{
+
+/**
+ Handles one call.
+ <p/>
+ Called on the thread of the emulated device, one call at a time. For functions called through a2jMany \a payload is the reassembled payload of
+ all chunks and the returned payload may be of any length; otherwise it must not exceed {@link Arduino#A2J_MAX_PAYLOAD} bytes.
+
+ @param payload the payload of the request (never null)
+ @return the reply: its {@link ArduinoPacket#cmd cmd} is the return value, its {@link ArduinoPacket#msg msg} the payload (may be null) */
+ArduinoPacket call(byte[] payload);
+}
@@ -0,0 +1,26 @@
+package j2arduino.rpc;
+
+import java.lang.annotation.*;
+
+/**
+ Marks a method of an interface bound with {@link ArduinoRpc#bind(j2arduino.devices.Arduino, Class)} as stub of an arduino2j function.
+ <p/>
+ The parameters are marshaled in order into the payload of the request according to their {@link A2JParam} annotations or their Java types. The
+ return value is unmarshaled from the payload of the reply according to #returns or the return type of the method; a {@code void} method ignores
+ the payload. A method returning ArduinoPacket gets the raw reply; all other methods throw an IOException if the function returns a value other
+ than 0.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface A2JFunction{
+
+/** @return the name of the function in the function mapping, the name of the method if empty */
+String value() default "";
+
+/** @return true to call the function through a2jMany, allowing payloads of any length */
+boolean many() default false;
+
+/** @return the layout of the return value */
+A2JType returns() default A2JType.DEFAULT;
+}
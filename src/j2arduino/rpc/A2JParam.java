@@ -0,0 +1,13 @@
+package j2arduino.rpc;
+
+import java.lang.annotation.*;
+
+/** Specifies the wire layout of a parameter of an {@link A2JFunction} (e.g. {@code @A2JParam(A2JType.UINT16) int value}). */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface A2JParam{
+
+/** @return the layout of the parameter */
+A2JType value();
+}
@@ -0,0 +1,47 @@
+package j2arduino.rpc;
+
+/**
+ The wire layouts of parameters and return values of {@link A2JFunction}s (little endian, as laid out by avr-gcc).
+
+ @see j2arduino.util.PayloadWriter */
+public enum A2JType{
+	/** The layout implied by the Java type: boolean as uint8_t, byte as int8_t, short as int16_t, char as uint16_t, int as int32_t, long as
+	 int64_t, float and double as 4 byte float, String as NUL-terminated string, byte[] as raw bytes, short[], int[] and float[] as arrays. */
+	DEFAULT(0),
+	INT8(1),
+	UINT8(1),
+	INT16(2),
+	UINT16(2),
+	INT32(4),
+	UINT32(4),
+	INT64(8),
+	/** A 4 byte float. */
+	FLOAT(4),
+	/** An AVR double, i.e. a 4 byte float. */
+	DOUBLE(4),
+	/** An unsigned LEB128 varint. */
+	VARINT(-1),
+	/** A zigzag encoded (signed) varint. */
+	ZIGZAG(-1),
+	/** A NUL-terminated string of one byte per char. */
+	STRING(-1),
+	/** Raw bytes; as return value the whole payload. */
+	BYTES(-1),
+	/** An array of int16_t/uint16_t; as return value the whole payload. */
+	INT16_ARRAY(-1),
+	/** An array of int32_t/uint32_t; as return value the whole payload. */
+	INT32_ARRAY(-1),
+	/** An array of floats; as return value the whole payload. */
+	FLOAT_ARRAY(-1);
+
+	/** The number of bytes of the layout or -1 if it is variable. */
+	final int size;
+
+	A2JType(int size){
+		this.size = size;
+	}
+
+	boolean isIntegral(){
+		return ordinal() >= INT8.ordinal() && ordinal() <= INT64.ordinal() || this == VARINT || this == ZIGZAG;
+	}
+}
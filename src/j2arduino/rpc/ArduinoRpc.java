@@ -0,0 +1,401 @@
+package j2arduino.rpc;
+
+import j2arduino.*;
+import j2arduino.devices.Arduino;
+import j2arduino.util.*;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ Binds interfaces describing the functions of an Arduino to stubs calling them.
+ \code
+ interface Sensors{
+ 	@A2JFunction(value = "readAdc", returns = A2JType.UINT16)
+ 	int readAdc(@A2JParam(A2JType.UINT8) int channel) throws IOException, InterruptedException;
+ }
+ Sensors sensors = ArduinoRpc.bind(arduino, Sensors.class);
+ int value = sensors.readAdc(3);
+ \endcode
+ All layouts are checked and precomputed when binding, so mistakes show up right away instead of at the first call. The offsets of the functions
+ are resolved when binding to a connected Arduino and again whenever it (re)connects, so names missing from the mapping are reported then
+ rather than by the first call. Calls involve no reflection, string hashing or parsing: they look the offset up again only if the function
+ mapping changed otherwise, and marshaling just walks the precomputed layout into a buffer reused by the calling thread.
+ */
+public final class ArduinoRpc{
+
+/** The buffers payloads are marshaled into, one per calling thread; the payload sent is a copy. */
+private static final ThreadLocal<PayloadWriter> WRITER = new ThreadLocal<PayloadWriter>(){
+	@Override
+	protected PayloadWriter initialValue(){
+		return new PayloadWriter(64);
+	}
+};
+
+private ArduinoRpc(){
+}
+
+/**
+ Creates a stub of \a iface calling the functions of \a arduino. The stub can be bound before connecting; calls fail with an IllegalStateException
+ while \a arduino is not connected. Functions missing from the mapping of a later connection are reported on stderr when it is established and
+ fail with an IllegalArgumentException when called.
+
+ @param arduino the Arduino to call
+ @param iface   an interface whose methods are all annotated with {@link A2JFunction} and declare IOException and InterruptedException
+ @return the stub
+ @throws IllegalArgumentException if \a iface is no interface, one of its methods can not be bound or \a arduino is connected and lacks one of
+                                  the functions */
+public static <T> T bind(Arduino arduino, Class<T> iface){
+	if(!iface.isInterface())
+		throw new IllegalArgumentException(iface.getName() + " is not an interface");
+	final Method[] methods = iface.getMethods();
+	final Stub[] stubs = new Stub[methods.length];
+	for(int i = 0; i < methods.length; i++)
+		stubs[i] = new Stub(methods[i]);
+	final Handler handler = new Handler(arduino, iface, methods, stubs);
+	final Resolver resolver = new Resolver(handler);
+	arduino.addActivityListener(resolver);
+	if(arduino.isConnected()){
+		try{
+			for(Stub stub : stubs)
+				stub.resolve(arduino, true);
+		} catch(IllegalArgumentException e){
+			arduino.removeActivityListener(resolver);
+			throw e;
+		}
+	}
+	return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, handler));
+}
+
+/** Resolves the offsets of the stubs of a handler whenever its Arduino connects; removes itself once the handler is unreachable. */
+private static final class Resolver implements ArduinoActivityListener{
+	private final WeakReference<Handler> handler;
+
+	Resolver(Handler handler){
+		this.handler = new WeakReference<Handler>(handler);
+	}
+
+	@Override
+	public void connectionStateChanged(int state, Arduino arduino){
+		final Handler h = handler.get();
+		if(h == null){
+			arduino.removeActivityListener(this);
+			return;
+		}
+		if(state == STATE_CONNECTED && arduino.isConnected()){
+			for(Stub stub : h.stubs)
+				stub.resolve(arduino, false);
+		}
+	}
+}
+
+/** Dispatches calls of the proxy to the stubs of the methods. */
+private static final class Handler implements InvocationHandler{
+	private final Arduino arduino;
+	private final Class<?> iface;
+	private final Method[] methods;
+	private final Stub[] stubs;
+	/** The Method instances passed by the proxy, which are copies of #methods but the same on every call. */
+	private final AtomicReferenceArray<Method> proxyMethods;
+
+	Handler(Arduino arduino, Class<?> iface, Method[] methods, Stub[] stubs){
+		this.arduino = arduino;
+		this.iface = iface;
+		this.methods = methods;
+		this.stubs = stubs;
+		proxyMethods = new AtomicReferenceArray<Method>(methods.length);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+		// an identity scan is cheaper than hashing for the usual few methods
+		for(int i = 0; i < methods.length; i++){
+			if(proxyMethods.get(i) == method)
+				return stubs[i].call(arduino, args);
+		}
+		for(int i = 0; i < methods.length; i++){
+			if(methods[i].equals(method)){
+				proxyMethods.set(i, method);
+				return stubs[i].call(arduino, args);
+			}
+		}
+		if(method.getDeclaringClass() == Object.class){
+			if(method.getName().equals("equals"))
+				return proxy == args[0];
+			if(method.getName().equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if(method.getName().equals("toString"))
+				return iface.getName() + " of " + arduino.address;
+		}
+		throw new UnsupportedOperationException(method.toString());
+	}
+}
+
+/** The offset of a function in one version of a function mapping. */
+private static final class Binding{
+	final ArduinoFunctionMapping mapping;
+	final int version;
+	final byte offset;
+
+	Binding(ArduinoFunctionMapping mapping, int version, byte offset){
+		this.mapping = mapping;
+		this.version = version;
+		this.offset = offset;
+	}
+}
+
+/** The precomputed layouts of one method. */
+private static final class Stub{
+	private final String function;
+	private final boolean many;
+	private final A2JType[] params;
+	private final A2JType returns;
+	private final Class<?> returnType;
+	private volatile Binding binding;
+
+	Stub(Method m){
+		final A2JFunction f = m.getAnnotation(A2JFunction.class);
+		if(f == null)
+			throw new IllegalArgumentException(m + " is not annotated with @A2JFunction");
+		if(!declares(m, IOException.class) || !declares(m, InterruptedException.class))
+			throw new IllegalArgumentException(m + " has to declare IOException and InterruptedException");
+		function = f.value().isEmpty() ? m.getName() : f.value();
+		many = f.many();
+		final Class<?>[] types = m.getParameterTypes();
+		final Annotation[][] annotations = m.getParameterAnnotations();
+		params = new A2JType[types.length];
+		for(int i = 0; i < types.length; i++){
+			A2JType t = A2JType.DEFAULT;
+			for(Annotation a : annotations[i]){
+				if(a instanceof A2JParam)
+					t = ((A2JParam)a).value();
+			}
+			params[i] = layout(m, types[i], t);
+		}
+		returnType = m.getReturnType();
+		returns = (returnType == void.class || returnType == ArduinoPacket.class) ? null : layout(m, returnType, f.returns());
+	}
+
+	private static boolean declares(Method m, Class<?> exception){
+		for(Class<?> e : m.getExceptionTypes()){
+			if(e.isAssignableFrom(exception))
+				return true;
+		}
+		return false;
+	}
+
+	/** Resolves the default layout of \a type and checks that \a t fits it. */
+	private static A2JType layout(Method m, Class<?> type, A2JType t){
+		final A2JType def;
+		if(type == boolean.class || type == Boolean.class)
+			def = A2JType.UINT8;
+		else if(type == byte.class || type == Byte.class)
+			def = A2JType.INT8;
+		else if(type == short.class || type == Short.class)
+			def = A2JType.INT16;
+		else if(type == char.class || type == Character.class)
+			def = A2JType.UINT16;
+		else if(type == int.class || type == Integer.class)
+			def = A2JType.INT32;
+		else if(type == long.class || type == Long.class)
+			def = A2JType.INT64;
+		else if(type == float.class || type == Float.class)
+			def = A2JType.FLOAT;
+		else if(type == double.class || type == Double.class)
+			def = A2JType.DOUBLE;
+		else if(type == String.class)
+			def = A2JType.STRING;
+		else if(type == byte[].class)
+			def = A2JType.BYTES;
+		else if(type == short[].class)
+			def = A2JType.INT16_ARRAY;
+		else if(type == int[].class)
+			def = A2JType.INT32_ARRAY;
+		else if(type == float[].class)
+			def = A2JType.FLOAT_ARRAY;
+		else
+			throw new IllegalArgumentException(m + ": type " + type.getName() + " is not supported");
+		if(t == A2JType.DEFAULT || t == def)
+			return def;
+		if(t.isIntegral() && def.isIntegral())
+			return t;
+		if((t == A2JType.FLOAT || t == A2JType.DOUBLE) && (def == A2JType.FLOAT || def == A2JType.DOUBLE))
+			return t;
+		throw new IllegalArgumentException(m + ": layout " + t + " does not fit type " + type.getName());
+	}
+
+	/**
+	 Looks up the offset of #function in the current mapping of \a arduino.
+
+	 @param strict if a missing function throws an IllegalArgumentException rather than being reported on stderr */
+	void resolve(Arduino arduino, boolean strict){
+		final ArduinoFunctionMapping mapping = arduino.getFuncMapping();
+		if(mapping == null)
+			return;
+		final Binding b = new Binding(mapping, mapping.getVersion(), mapping.get(function));
+		binding = b;
+		if(b.offset < 0 && arduino.isConnected()){
+			if(strict)
+				throw new IllegalArgumentException("Function name " + function + " not in mapping of " + arduino.address);
+			System.err.println("Function name " + function + " not in mapping of " + arduino.address + ", calls will fail");
+		}
+	}
+
+	/** Returns the offset of #function in the current mapping of \a arduino, looking it up only if the mapping changed. */
+	private byte offset(Arduino arduino){
+		final ArduinoFunctionMapping mapping = arduino.getFuncMapping();
+		if(mapping == null)
+			throw new IllegalStateException("Arduino is not connected");
+		Binding b = binding;
+		if(b == null || b.mapping != mapping || b.version != mapping.getVersion()){
+			final int version = mapping.getVersion();
+			b = new Binding(mapping, version, mapping.get(function));
+			binding = b;
+		}
+		if(b.offset < 0){
+			if(!arduino.isConnected()) // the mapping is cleared when disconnecting
+				throw new IllegalStateException("Arduino is not connected");
+			throw new IllegalArgumentException("Function name " + function + " not in mapping");
+		}
+		return b.offset;
+	}
+
+	Object call(Arduino arduino, Object[] args) throws IOException, InterruptedException{
+		final PayloadWriter w = WRITER.get().reset();
+		for(int i = 0; i < params.length; i++)
+			write(w, params[i], args[i]);
+		final byte[] payload = w.toByteArray();
+		final ArduinoPacket reply;
+		if(many)
+			reply = arduino.sendLongByName(function, payload);
+		else
+			reply = arduino.sendSync(new ArduinoPacket(offset(arduino), payload, null));
+		if(returnType == ArduinoPacket.class)
+			return reply;
+		if(reply.cmd != 0)
+			throw new IOException("Function " + function + " returned " + (reply.cmd&0xFF));
+		if(returns == null)
+			return null;
+		return read(new PayloadReader((reply.msg != null) ? reply.msg : new byte[0]));
+	}
+
+	private static long integral(Object o){
+		if(o instanceof Boolean)
+			return ((Boolean)o) ? 1 : 0;
+		if(o instanceof Character)
+			return (Character)o;
+		return ((Number)o).longValue();
+	}
+
+	private static void write(PayloadWriter w, A2JType t, Object arg){
+		switch(t){
+			case INT8:
+			case UINT8:
+				w.writeInt8((int)integral(arg));
+				break;
+			case INT16:
+			case UINT16:
+				w.writeInt16((int)integral(arg));
+				break;
+			case INT32:
+			case UINT32:
+				w.writeInt32((int)integral(arg));
+				break;
+			case INT64:
+				w.writeInt64(integral(arg));
+				break;
+			case VARINT:
+				w.writeVarint(integral(arg));
+				break;
+			case ZIGZAG:
+				w.writeZigzag(integral(arg));
+				break;
+			case FLOAT:
+			case DOUBLE:
+				w.writeFloat(((Number)arg).floatValue());
+				break;
+			case STRING:
+				w.writeString((String)arg);
+				break;
+			case BYTES:
+				w.write((byte[])arg);
+				break;
+			case INT16_ARRAY:
+				w.writeInt16s((short[])arg, 0, ((short[])arg).length);
+				break;
+			case INT32_ARRAY:
+				w.writeInt32s((int[])arg, 0, ((int[])arg).length);
+				break;
+			case FLOAT_ARRAY:
+				w.writeFloats((float[])arg, 0, ((float[])arg).length);
+				break;
+			default:
+				throw new AssertionError(t);
+		}
+	}
+
+	private Object read(PayloadReader r){
+		switch(returns){
+			case FLOAT:
+			case DOUBLE:
+				final float f = r.readFloat();
+				return (returnType == double.class || returnType == Double.class) ? (Object)(double)f : (Object)f;
+			case STRING:
+				return r.readString();
+			case BYTES:
+				return r.read(new byte[r.remaining()], 0, r.remaining());
+			case INT16_ARRAY:
+				return r.readInt16s(new short[r.remaining() / 2], 0, r.remaining() / 2);
+			case INT32_ARRAY:
+				return r.readInt32s(new int[r.remaining() / 4], 0, r.remaining() / 4);
+			case FLOAT_ARRAY:
+				return r.readFloats(new float[r.remaining() / 4], 0, r.remaining() / 4);
+			default:
+				return box(readIntegral(r));
+		}
+	}
+
+	private long readIntegral(PayloadReader r){
+		switch(returns){
+			case INT8:
+				return r.readInt8();
+			case UINT8:
+				return r.readUInt8();
+			case INT16:
+				return r.readInt16();
+			case UINT16:
+				return r.readUInt16();
+			case INT32:
+				return r.readInt32();
+			case UINT32:
+				return r.readUInt32();
+			case INT64:
+				return r.readInt64();
+			case VARINT:
+				return r.readVarint();
+			case ZIGZAG:
+				return r.readZigzag();
+			default:
+				throw new AssertionError(returns);
+		}
+	}
+
+	/** Converts \a v to the (boxed) return type. */
+	private Object box(long v){
+		if(returnType == boolean.class || returnType == Boolean.class)
+			return v != 0;
+		if(returnType == byte.class || returnType == Byte.class)
+			return (byte)v;
+		if(returnType == short.class || returnType == Short.class)
+			return (short)v;
+		if(returnType == char.class || returnType == Character.class)
+			return (char)v;
+		if(returnType == int.class || returnType == Integer.class)
+			return (int)v;
+		return v;
+	}
+}
+}
@@ -0,0 +1,26 @@
+/**Provides typed stubs of arduino2j functions.
+
+ An interface declares the functions of a firmware with their parameter and return layouts ({@link j2arduino.rpc.A2JFunction}, {@link
+ j2arduino.rpc.A2JParam}); {@link j2arduino.rpc.ArduinoRpc#bind} turns it into a stub that marshals the arguments and calls the functions on an
+ {@link j2arduino.devices.Arduino}.
+
+ <h2>License</h2>
+
+ <pre>
+ Copyright (C) 2009-2011 Stefan Tauner
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+ </pre>
+
+ To read the full copy of the GNU General Public License version 3
+ see <a href="license.html">License</a>.
+ */
+package j2arduino.rpc;
@@ -10,6 +10,9 @@ import java.util.concurrent.*;
  uninterruptible blocking and uninterruptible blocking random access are provided. Only thread safety in the sense of serialized access to critical
  sections is guaranteed, producers as well as consumers may starve, if there are multiples of them.
  <p/>
+ Blocking is done with the locks of the backing queue only (no monitors), thus virtual threads blocked in its methods do not pin their carrier
+ threads.
+ <p/>
  It is possible to disable adding and removing elements globally, which will raise exception if it is tried. A custom string can be set as detail
  message for those exceptions.
 
@@ -17,7 +20,7 @@ import java.util.concurrent.*;
 public class ConcurrentRingBuffer<E>{
 
 private final BlockingQueue<E> buf;
-private boolean enabled;
+private volatile boolean enabled;
 private final String disabledMsg;
 
 /** Creates a new ring buffer with 8 elements and a default disabled message. */
@@ -68,6 +71,24 @@ public E take() throws InterruptedException{
 	return buf.take();
 }
 
+/**
+ Non-blocking take.
+
+ @return an object previously added to this buffer or null if the buffer is empty */
+public E poll(){
+	return buf.poll();
+}
+
+/**
+ Blocking take with a timeout.
+
+ @param milliseconds the maximum time to wait for an element
+ @return an object previously added to this buffer or null if none was added in time
+ @throws InterruptedException if the calling thread is interrupted, while it waits for a new element. */
+public E poll(long milliseconds) throws InterruptedException{
+	return buf.poll(milliseconds, TimeUnit.MILLISECONDS);
+}
+
 /**
  Uninterruptible blocking put.
  <p/>
@@ -95,6 +116,15 @@ public void put(E o) throws InterruptedException{
 	buf.put(o);
 }
 
+/**
+ Removes a single instance of \a o from this buffer, if it is present.
+
+ @param o the element to be removed
+ @return true if the element was removed */
+public boolean remove(E o){
+	return buf.remove(o);
+}
+
 public Iterator<E> iterator(){
 	return buf.iterator();
 }
@@ -1,20 +1,65 @@
 package j2arduino.util;
 
-import j2arduino.ArduinoPacket;
+import j2arduino.*;
 import j2arduino.devices.Arduino;
 
-import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
-/** A thread that polls its counterpart #a2jDebug periodically and prints the results to stderr. */
-public class Debug extends Thread{
+/**
+ Fetches the debug output of an Arduino from its counterpart #a2jDebug.
+ <p/>
+ #a2jDebug is polled asynchronously (no thread blocks on it) at an adaptive interval: it is polled again right away while it returns full
+ replies, at {@link #J2ARDUINO_DEBUG_MIN_INTERVAL} while it returns anything and with an interval doubling up to {@link
+ #J2ARDUINO_DEBUG_MAX_INTERVAL} while it returns nothing. Polls are deferred while other requests are queued, so debugging does not delay real
+ traffic.
+ <p/>
+ The output is split into lines which are kept in a bounded ring (see {@link #getMessages()}) and handed to a {@link DebugSink}, by default one
+ printing them to stderr.
+ */
+public class Debug implements ArduinoResponseListener{
+
+/** Setting for the interval in milliseconds at which #a2jDebug is polled while it returns output (default: 50). */
+public static final String J2ARDUINO_DEBUG_MIN_INTERVAL = "j2arduino.debug.interval.min";
+/** Setting for the maximum interval in milliseconds at which #a2jDebug is polled while it returns nothing (default: 15000). */
+public static final String J2ARDUINO_DEBUG_MAX_INTERVAL = "j2arduino.debug.interval.max";
+/** Setting for the number of lines kept by {@link #getMessages()} (default: 256). */
+public static final String J2ARDUINO_DEBUG_LINES = "j2arduino.debug.lines";
+/** The sink used unless another one is set: prints each line prefixed with the address of the Arduino to stderr. */
+public static final DebugSink STDERR = new DebugSink(){
+	@Override
+	public void message(Arduino arduino, String line){
+		System.err.println(arduino.address + " debug: " + line);
+	}
+};
+private static ScheduledExecutorService scheduler = null;
 
-private Arduino arduino;
-private boolean run = true;
+private final Arduino arduino;
+private volatile boolean run = false;
+/** If a chain of polls is alive, i.e. a poll is scheduled or in flight; there is never more than one. Guarded by this. */
+private boolean polling = false;
+private volatile DebugSink sink = STDERR;
 /** The offset of the a2j function to be queried. */
 public final int dbgCmd;
+private final long minInterval;
+private final long maxInterval;
+/** The delay before the next poll in milliseconds. */
+private long interval;
+/** The output after the last line terminator. */
+private final StringBuilder partial = new StringBuilder();
+/** Ring of the last lines, #ringStart is the index of the oldest. */
+private final String[] ring;
+private int ringStart = 0;
+private int ringCount = 0;
+private final Runnable poll = new Runnable(){
+	@Override
+	public void run(){
+		poll();
+	}
+};
 
 /**
- Creates a new Debug thread and fetches the offset of a2jDebug from the ArduinoFunctionMapping of Arduino \a a.
+ Creates a new Debug instance and fetches the offset of a2jDebug from the ArduinoFunctionMapping of Arduino \a a.
 
  @param a the Arduino to debug (and to provide the ArduinoFunctionMapping) */
 public Debug(Arduino a){
@@ -22,13 +67,12 @@ public Debug(Arduino a){
 }
 
 /**
- Creates a new Debug thread and sets the offset of a2jDebug. If \a debugCommand is less than -1, the actual offset will be fetched from the
+ Creates a new Debug instance and sets the offset of a2jDebug. If \a debugCommand is less than -1, the actual offset will be fetched from the
  ArduinoFunctionMapping of Arduino \a a.
 
  @param a            the Arduino to debug
  @param debugCommand the offset to be set */
 public Debug(Arduino a, int debugCommand){
-	super(a.address + "-debug-thread");
 	arduino = a;
 
 	if(debugCommand < 0){
@@ -38,60 +82,143 @@ public Debug(Arduino a, int debugCommand){
 		}
 	} else
 		dbgCmd = debugCommand;
+	minInterval = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_DEBUG_MIN_INTERVAL, "50"));
+	maxInterval = Long.parseLong(J2ArduinoSettings.getSetting(J2ARDUINO_DEBUG_MAX_INTERVAL, "15000"));
+	ring = new String[Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_DEBUG_LINES, "256"))];
+	interval = minInterval;
 }
 
-/** Fetches debug output from \a arduino. */
-@Override
-public void run(){
-	while(run){
-		try{
-			ArduinoPacket ans = arduino.sendSync(new ArduinoPacket(dbgCmd, null, null));
-			if(ans.msg == null){
-				continue;
+synchronized private static ScheduledExecutorService getScheduler(){
+	if(scheduler == null){
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "j2arduino-debug");
+				t.setDaemon(true);
+				return t;
 			}
-			byte[] msg = ans.msg;
-			int len = msg.length;
-			if(len > 0){
-				System.err.println("Debug: ");
-				for(int i = 0; i < len; i++){
-					System.err.print((char)msg[i]);
-				}
-				System.err.println();
-			}
-			sleep(15000);
-		} catch(IllegalStateException e){
-			// disconnect detected, shut down debug
-			System.err.println(getName() + " shutting down because: " + e.getMessage());
-			run = false;
-			// e.printStackTrace();
-		} catch(InterruptedException e){
-			// if sleep or sending get interrupted
-		} catch(InterruptedIOException e){
-			// if transfer gets interrupted
-			System.err.println(getName() + " transfer was interrupted, loss of debug messages possible");
-			e.printStackTrace();
-		} catch(TimeoutException e){
-			// if transfer times out
-			System.err.println(getName() + " transfer timed out, loss of debug messages possible");
-			e.printStackTrace();
-		} catch(IOException e){
-			// probably ignorable, because we will get shut down automatically anyway
-			System.err.println(getName() + " caught IOException: " + e.getMessage() + " - Shutting down.");
-			run = false;
-			// e.printStackTrace();
-		} catch(Exception e){
-			System.err.println(getName() + " caught general Exception: " + e.getMessage());
-			e.printStackTrace();
-		}
+		});
+	}
+	return scheduler;
+}
+
+/**
+ Sets the sink receiving the debug output.
+
+ @param sink the new sink, null discards the output (it is still kept in the ring) */
+public void setSink(DebugSink sink){
+	this.sink = sink;
+}
+
+/** Starts fetching debug output. If polling was stopped but the last poll has not finished yet, its chain simply continues. */
+public synchronized void start(){
+	run = true;
+	if(!polling){
+		polling = true;
+		getScheduler().execute(poll);
 	}
 }
 
-/** Schedules the shutdown of this thread. */
+/** Stops fetching debug output after the poll in progress, if any. */
 public void shutdown(){
-	if(run){
-		run = false;
-		this.interrupt();
-		System.err.println(getName() + " shut down externally");
+	run = false;
+}
+
+/** @return if debug output is being fetched */
+public boolean isRunning(){
+	return run;
+}
+
+/**
+ Returns the last lines of debug output.
+
+ @return the lines, oldest first */
+public synchronized List<String> getMessages(){
+	final List<String> lines = new ArrayList<String>(ringCount);
+	for(int i = 0; i < ringCount; i++)
+		lines.add(ring[(ringStart + i) % ring.length]);
+	return lines;
+}
+
+/** @return if the chain of polls continues; if not, it ends and #start may begin a new one */
+private synchronized boolean keepPolling(){
+	if(!run)
+		polling = false;
+	return polling;
+}
+
+/** Stops fetching debug output after the connection was closed. */
+private synchronized void stopPolling(){
+	run = false;
+	polling = false;
+}
+
+/** Sends a poll unless other requests are queued, in which case it is deferred. */
+private void poll(){
+	if(!keepPolling())
+		return;
+	if(arduino.getMetrics().getQueueDepth() > 0){
+		getScheduler().schedule(poll, minInterval, TimeUnit.MILLISECONDS);
+		return;
+	}
+	try{
+		arduino.sendAsync(new ArduinoPacket(dbgCmd, null, this));
+	} catch(IllegalStateException e){
+		// disconnect detected, shut down debug
+		stopPolling();
+	}
+}
+
+/** Handles the reply to a poll and schedules the next one. */
+@Override
+public void handleResponse(ArduinoPacket answer){
+	if(answer.ex != null){
+		if(!arduino.isConnected() && !arduino.isReconnecting()){
+			stopPolling();
+			return;
+		}
+	} else{
+		final byte[] msg = answer.msg;
+		final int len = (msg != null) ? msg.length : 0;
+		if(len == Arduino.A2J_MAX_PAYLOAD)
+			interval = 0;
+		else if(len > 0)
+			interval = minInterval;
+		else
+			interval = Math.min(Math.max(interval * 2, minInterval), maxInterval);
+		received(msg, len);
+	}
+	if(keepPolling())
+		getScheduler().schedule(poll, interval, TimeUnit.MILLISECONDS);
+}
+
+/** Splits the output into lines; a partial line is emitted when the Arduino has nothing more to say. */
+private void received(byte[] msg, int len){
+	for(int i = 0; i < len; i++){
+		final char c = (char)(msg[i]&0xFF);
+		if(c == '\n'){
+			line();
+		} else if(c != '\r')
+			partial.append(c);
+	}
+	if(len == 0 && partial.length() > 0)
+		line();
+}
+
+private void line(){
+	final String line = partial.toString();
+	partial.setLength(0);
+	synchronized(this){
+		if(ring.length > 0){
+			if(ringCount < ring.length)
+				ringCount++;
+			else
+				ringStart = (ringStart + 1) % ring.length;
+			ring[(ringStart + ringCount - 1) % ring.length] = line;
+		}
 	}
+	final DebugSink s = sink;
+	if(s != null)
+		s.message(arduino, line);
 }
 }
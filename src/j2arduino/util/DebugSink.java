@@ -0,0 +1,20 @@
+package j2arduino.util;
+
+import j2arduino.devices.Arduino;
+
+/**
+ Receives the debug output of Arduinos fetched by {@link Debug}.
+
+ @see Debug#setSink(DebugSink) */
+public interface DebugSink{
+
+/**
+ Handles one line of debug output (without line terminator).
+ <p/>
+ Called on the thread delivering replies of \a arduino (see {@link Arduino#setCallbackExecutor(java.util.concurrent.Executor)}), one line at a
+ time and in order; implementations should not block.
+
+ @param arduino the Arduino that printed the line
+ @param line    the line */
+void message(Arduino arduino, String line);
+}
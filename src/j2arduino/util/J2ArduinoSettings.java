@@ -1,7 +1,7 @@
 package j2arduino.util;
 
 import java.io.*;
-import java.util.Properties;
+import java.util.*;
 
 public class J2ArduinoSettings{
 
@@ -137,4 +137,38 @@ public static boolean addSetting(String key, String value){
 public static boolean containsSetting(String key){
 	return getSetting(key) != null;
 }
+
+/**
+ Returns a function mapping stored in the setting with the given key.
+ <p/>
+ The value has to be a list of {@code name:offset} pairs separated by commas and/or whitespace, e.g. {@code a2jGetMapping:0, a2jEcho:3}.
+
+ @param key The key.
+ @return a Hashtable mapping function names to their offsets (as Byte) suitable for {@link j2arduino.ArduinoFunctionMapping}, or null if the
+ setting does not exist.
+ @throws IllegalArgumentException if the value is malformed */
+public static Hashtable<String, Byte> getMappingSetting(String key){
+	String s = getSetting(key);
+	if(s == null)
+		return null;
+
+	Hashtable<String, Byte> mapping = new Hashtable<String, Byte>();
+	for(String pair : s.split("[\\s,]+")){
+		if(pair.isEmpty())
+			continue;
+		int sep = pair.lastIndexOf(':');
+		if(sep <= 0 || sep == pair.length() - 1)
+			throw new IllegalArgumentException("Malformed function mapping entry '" + pair + "' in setting " + key);
+		int offset;
+		try{
+			offset = Integer.parseInt(pair.substring(sep + 1));
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException("Malformed function offset in entry '" + pair + "' in setting " + key, e);
+		}
+		if(offset < 0 || offset > 255)
+			throw new IllegalArgumentException("Function offset out of range in entry '" + pair + "' in setting " + key);
+		mapping.put(pair.substring(0, sep), (byte)offset);
+	}
+	return mapping;
+}
 }
@@ -0,0 +1,92 @@
+package j2arduino.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ A histogram of durations with logarithmic (power of two) buckets.
+ <p/>
+ Recording is lock-free and does not allocate, thus it can be done on every transfer. Bucket \c i counts the durations in [2^(i-1), 2^i)
+ nanoseconds, so percentiles are reported as the upper bound of their bucket, i.e. with an error of less than a factor of two.
+ */
+public final class LatencyHistogram{
+
+private static final int BUCKETS = 64;
+
+private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+private final AtomicLong count = new AtomicLong();
+private final AtomicLong sum = new AtomicLong();
+private final AtomicLong max = new AtomicLong();
+
+/**
+ Adds a duration.
+
+ @param nanos the duration in nanoseconds (negative values are recorded as 0) */
+public void record(long nanos){
+	if(nanos < 0)
+		nanos = 0;
+	buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+	count.incrementAndGet();
+	sum.addAndGet(nanos);
+	long m;
+	while(nanos > (m = max.get()))
+		if(max.compareAndSet(m, nanos))
+			break;
+}
+
+/** @return the number of recorded durations */
+public long getCount(){
+	return count.get();
+}
+
+/** @return the mean of the recorded durations in nanoseconds or 0 if there are none */
+public long getMean(){
+	long c = count.get();
+	return (c == 0) ? 0 : sum.get() / c;
+}
+
+/** @return the longest recorded duration in nanoseconds */
+public long getMax(){
+	return max.get();
+}
+
+/**
+ Returns an upper bound of the duration below which the fraction \a p of all recorded durations lie.
+
+ @param p the percentile as fraction [0, 1]
+ @return the upper bound of the bucket containing the percentile in nanoseconds (at most the maximum recorded) or 0 if there are no durations */
+public long getPercentile(double p){
+	long c = 0;
+	long[] snapshot = new long[BUCKETS];
+	for(int i = 0; i < BUCKETS; i++){
+		snapshot[i] = buckets.get(i);
+		c += snapshot[i];
+	}
+	if(c == 0)
+		return 0;
+	long target = (long)Math.ceil(p * c);
+	if(target < 1)
+		target = 1;
+	long seen = 0;
+	for(int i = 0; i < BUCKETS; i++){
+		seen += snapshot[i];
+		if(seen >= target)
+			return Math.min((1L<<i) - 1, max.get());
+	}
+	return max.get();
+}
+
+/** Forgets all recorded durations. Durations recorded concurrently may be partially lost. */
+public void reset(){
+	for(int i = 0; i < BUCKETS; i++)
+		buckets.set(i, 0);
+	count.set(0);
+	sum.set(0);
+	max.set(0);
+}
+
+@Override
+public String toString(){
+	return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", getCount(), getMean() / 1e3, getPercentile(0.5) / 1e3,
+	                     getPercentile(0.99) / 1e3, getMax() / 1e3);
+}
+}
@@ -0,0 +1,202 @@
+package j2arduino.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+
+/**
+ A file that is appended to through memory mappings.
+ <p/>
+ Appending copies into a mapped region of the file, i.e. it costs about as much as copying into an array and does not involve system calls;
+ the operating system writes the pages back in the background. The region following the current one is mapped (and the file extended) ahead
+ of time by a shared background thread; it overlaps the current region by a quarter of the region size, so appending switches to it without a
+ system call unless a single reservation is larger than that. Written bytes survive crashes of the JVM, but not of the operating system unless
+ {@link #force()} is called.
+ <p/>
+ Instances are not thread-safe; concurrent writers have to synchronize.
+ */
+public class MappedAppendFile implements Closeable{
+
+/** Maps the next regions of all files. */
+private static ExecutorService mapper;
+
+private final RandomAccessFile file;
+private final FileChannel channel;
+private final int regionSize;
+/** The current region or null. */
+private MappedByteBuffer region;
+/** The file offset of the start of #region. */
+private long regionStart;
+/** The file offset at which the next bytes are appended. */
+private long position;
+/** The mapping of the next region in progress or null. */
+private Future<MappedByteBuffer> next;
+/** The file offset of the start of #next. */
+private long nextStart;
+
+/**
+ Opens a file for appending, creating it if needed.
+
+ @param f          the file
+ @param position   the offset at which to start appending (e.g. the length of the valid data of an existing file)
+ @param regionSize the size of the mapped regions in bytes
+ @throws IOException if the file can not be opened */
+public MappedAppendFile(File f, long position, int regionSize) throws IOException{
+	if(regionSize <= 0)
+		throw new IllegalArgumentException("Region size must be positive");
+	file = new RandomAccessFile(f, "rw");
+	channel = file.getChannel();
+	this.regionSize = regionSize;
+	this.position = position;
+}
+
+/**
+ Reserves \a length bytes at the end of the file and returns a buffer to write them into.
+ <p/>
+ The returned buffer is positioned at the first reserved byte and has at least \a length bytes remaining. Exactly \a length bytes have to be
+ written (relative puts) before the next call; the buffer must not be kept. Its byte order is little endian.
+
+ @param length the number of bytes to reserve
+ @return the buffer
+ @throws IOException if the file could not be extended */
+public ByteBuffer reserve(int length) throws IOException{
+	if(region == null || position + length > regionStart + region.capacity())
+		nextRegion(length);
+	region.position((int)(position - regionStart));
+	position += length;
+	return region;
+}
+
+/** Switches to a region that holds \a length bytes at #position, preferably the one mapped ahead, and starts mapping the one after it. */
+private void nextRegion(int length) throws IOException{
+	final Future<MappedByteBuffer> ahead = next;
+	next = null;
+	region = null;
+	if(ahead != null && position >= nextStart && position + length <= nextStart + regionSize){
+		region = await(ahead);
+		regionStart = nextStart;
+	} else{
+		if(ahead != null)
+			awaitQuietly(ahead); // the file must not be extended behind our back
+		regionStart = position;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(regionSize, length));
+	}
+	region.order(ByteOrder.LITTLE_ENDIAN);
+	nextStart = regionStart + region.capacity() - regionSize / 4;
+	next = mapper().submit(new Callable<MappedByteBuffer>(){
+		final long start = nextStart;
+
+		@Override
+		public MappedByteBuffer call() throws IOException{
+			return channel.map(FileChannel.MapMode.READ_WRITE, start, regionSize);
+		}
+	});
+}
+
+private static MappedByteBuffer await(Future<MappedByteBuffer> f) throws IOException{
+	try{
+		return f.get();
+	} catch(InterruptedException e){
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Interrupted while mapping the next region");
+	} catch(ExecutionException e){
+		if(e.getCause() instanceof IOException)
+			throw (IOException)e.getCause();
+		throw new IOException("Could not map the next region", e.getCause());
+	}
+}
+
+private static void awaitQuietly(Future<MappedByteBuffer> f){
+	boolean interrupted = false;
+	while(true){
+		try{
+			f.get();
+			break;
+		} catch(InterruptedException e){
+			interrupted = true;
+		} catch(ExecutionException ignored){
+			break;
+		}
+	}
+	if(interrupted)
+		Thread.currentThread().interrupt();
+}
+
+private synchronized static ExecutorService mapper(){
+	if(mapper == null){
+		mapper = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "j2arduino-mapper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	return mapper;
+}
+
+/**
+ Appends the remaining bytes of \a src.
+
+ @param src the bytes to append
+ @throws IOException if the file could not be extended */
+public void append(ByteBuffer src) throws IOException{
+	reserve(src.remaining()).put(src);
+}
+
+/**
+ Appends \a length bytes of \a src starting at \a offset.
+
+ @throws IOException if the file could not be extended */
+public void append(byte[] src, int offset, int length) throws IOException{
+	reserve(length).put(src, offset, length);
+}
+
+/** @return the offset at which the next bytes are appended, i.e. the length of the data written */
+public long position(){
+	return position;
+}
+
+/**
+ Maps a range of the file read-only, e.g. to read back data without copying.
+
+ @param offset the start of the range
+ @param length the length of the range
+ @return a little endian buffer of the range
+ @throws IOException if the range can not be mapped */
+public ByteBuffer map(long offset, int length) throws IOException{
+	ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	return b.order(ByteOrder.LITTLE_ENDIAN);
+}
+
+/**
+ Writes the written bytes back to the storage device.
+
+ @throws IOException if an I/O error occurs */
+public void force() throws IOException{
+	if(region != null)
+		region.force();
+	channel.force(false);
+}
+
+/**
+ Closes the file after truncating it to the written bytes (the last region is mapped beyond them).
+
+ @throws IOException if an I/O error occurs */
+@Override
+public void close() throws IOException{
+	region = null;
+	if(next != null){
+		awaitQuietly(next);
+		next = null;
+	}
+	try{
+		channel.truncate(position);
+	} catch(IOException ignored){
+		// some platforms do not allow truncating mapped files; the unused tail of the last region is zero-filled then
+	}
+	file.close();
+}
+}
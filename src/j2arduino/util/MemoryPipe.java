@@ -0,0 +1,151 @@
+package j2arduino.util;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+/**
+ A bounded in-memory byte pipe with blocking stream ends.
+ <p/>
+ Unlike {@link java.io.PipedInputStream} it does not track the liveness of the threads using it and it blocks on {@link
+java.util.concurrent.locks.Lock}s only, so it does not pin virtual threads. Interrupting a thread blocked in one of its streams raises an {@link
+java.io.InterruptedIOException}. After {@link #close()} reads return the remaining bytes and then -1, writes raise an IOException.
+ */
+public class MemoryPipe{
+
+private final byte[] buf;
+/** Index of the first buffered byte. */
+private int head;
+/** Number of buffered bytes. */
+private int count;
+private boolean closed;
+private final ReentrantLock lock = new ReentrantLock();
+private final Condition notEmpty = lock.newCondition();
+private final Condition notFull = lock.newCondition();
+/** The reading end of this pipe. */
+public final InputStream in = new PipeInputStream();
+/** The writing end of this pipe. */
+public final OutputStream out = new PipeOutputStream();
+
+/**
+ Creates a new pipe.
+
+ @param capacity the number of bytes the pipe can buffer */
+public MemoryPipe(int capacity){
+	buf = new byte[capacity];
+}
+
+/** Closes both ends of the pipe and wakes up all blocked threads. */
+public void close(){
+	lock.lock();
+	try{
+		closed = true;
+		notEmpty.signalAll();
+		notFull.signalAll();
+	} finally{
+		lock.unlock();
+	}
+}
+
+private int read(byte[] b, int off, int len) throws IOException{
+	if(len == 0)
+		return 0;
+	try{
+		lock.lockInterruptibly();
+		try{
+			while(count == 0){
+				if(closed)
+					return -1;
+				notEmpty.await();
+			}
+			int n = Math.min(len, count);
+			int first = Math.min(n, buf.length - head);
+			System.arraycopy(buf, head, b, off, first);
+			System.arraycopy(buf, 0, b, off + first, n - first);
+			head = (head + n) % buf.length;
+			count -= n;
+			notFull.signalAll();
+			return n;
+		} finally{
+			lock.unlock();
+		}
+	} catch(InterruptedException e){
+		throw (InterruptedIOException)new InterruptedIOException("Interrupted while reading from pipe").initCause(e);
+	}
+}
+
+private void write(byte[] b, int off, int len) throws IOException{
+	try{
+		lock.lockInterruptibly();
+		try{
+			while(len > 0){
+				if(closed)
+					throw new IOException("Pipe closed");
+				if(count == buf.length){
+					notFull.await();
+					continue;
+				}
+				int tail = (head + count) % buf.length;
+				int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+				System.arraycopy(b, off, buf, tail, n);
+				count += n;
+				off += n;
+				len -= n;
+				notEmpty.signalAll();
+			}
+		} finally{
+			lock.unlock();
+		}
+	} catch(InterruptedException e){
+		throw (InterruptedIOException)new InterruptedIOException("Interrupted while writing to pipe").initCause(e);
+	}
+}
+
+private int available(){
+	lock.lock();
+	try{
+		return count;
+	} finally{
+		lock.unlock();
+	}
+}
+
+private class PipeInputStream extends InputStream{
+	@Override
+	public int read() throws IOException{
+		byte[] b = new byte[1];
+		return (MemoryPipe.this.read(b, 0, 1) < 0) ? -1 : b[0]&0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException{
+		return MemoryPipe.this.read(b, off, len);
+	}
+
+	@Override
+	public int available(){
+		return MemoryPipe.this.available();
+	}
+
+	@Override
+	public void close(){
+		MemoryPipe.this.close();
+	}
+}
+
+private class PipeOutputStream extends OutputStream{
+	@Override
+	public void write(int b) throws IOException{
+		MemoryPipe.this.write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException{
+		MemoryPipe.this.write(b, off, len);
+	}
+
+	@Override
+	public void close(){
+		MemoryPipe.this.close();
+	}
+}
+}
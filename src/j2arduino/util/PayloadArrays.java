@@ -0,0 +1,124 @@
+package j2arduino.util;
+
+import java.nio.*;
+
+import static j2arduino.util.PayloadWriter.SHORT;
+
+/**
+ Bulk decoders of little-endian arrays in payloads, e.g. of ADC samples.
+ <p/>
+ The signed and floating point decoders copy through NIO buffer views, which the JDK implements as a plain memory copy on little-endian machines
+ (and as a swapping copy elsewhere). The widening decoder of unsigned values is a simple counted loop that the JIT can unroll and vectorize.
+ Destination arrays are reused if they are large enough, otherwise new ones are allocated; pass null to always allocate.
+ \code
+ int[] samples = null;
+ ...
+ samples = PayloadArrays.toUnsignedShorts(reply.msg, 0, reply.msg.length / 2, samples);
+ \endcode
+
+ @see PayloadReader */
+public final class PayloadArrays{
+
+private PayloadArrays(){
+}
+
+private static ByteBuffer wrap(byte[] src, int offset, int length){
+	return ByteBuffer.wrap(src, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+}
+
+/**
+ Decodes int16_t values.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @param dst    the array to decode into if it holds at least \a count elements, else (or if null) a new array is allocated
+ @return the array holding the values in its first \a count elements */
+public static short[] toShorts(byte[] src, int offset, int count, short[] dst){
+	if(dst == null || dst.length < count)
+		dst = new short[count];
+	wrap(src, offset, count<<1).asShortBuffer().get(dst, 0, count);
+	return dst;
+}
+
+/**
+ Decodes uint16_t values (e.g. samples of 10 or 12 bit ADCs) into ints.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @param dst    the array to decode into if it holds at least \a count elements, else (or if null) a new array is allocated
+ @return the array holding the values in its first \a count elements */
+public static int[] toUnsignedShorts(byte[] src, int offset, int count, int[] dst){
+	if(dst == null || dst.length < count)
+		dst = new int[count];
+	if(offset < 0 || offset + (count<<1) > src.length)
+		throw new IndexOutOfBoundsException("Range exceeds the payload");
+	for(int i = 0; i < count; i++)
+		dst[i] = (short)SHORT.get(src, offset + (i<<1))&0xFFFF;
+	return dst;
+}
+
+/**
+ Decodes int32_t/uint32_t values.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @param dst    the array to decode into if it holds at least \a count elements, else (or if null) a new array is allocated
+ @return the array holding the values in its first \a count elements */
+public static int[] toInts(byte[] src, int offset, int count, int[] dst){
+	if(dst == null || dst.length < count)
+		dst = new int[count];
+	wrap(src, offset, count<<2).asIntBuffer().get(dst, 0, count);
+	return dst;
+}
+
+/**
+ Decodes 4 byte floats (float and double on AVRs).
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @param dst    the array to decode into if it holds at least \a count elements, else (or if null) a new array is allocated
+ @return the array holding the values in its first \a count elements */
+public static float[] toFloats(byte[] src, int offset, int count, float[] dst){
+	if(dst == null || dst.length < count)
+		dst = new float[count];
+	wrap(src, offset, count<<2).asFloatBuffer().get(dst, 0, count);
+	return dst;
+}
+
+/**
+ Returns a view of int16_t/uint16_t values without copying. The view reflects later changes of \a src.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @return a read-only buffer of \a count elements */
+public static ShortBuffer asShortBuffer(byte[] src, int offset, int count){
+	return wrap(src, offset, count<<1).asShortBuffer().asReadOnlyBuffer();
+}
+
+/**
+ Returns a view of int32_t/uint32_t values without copying. The view reflects later changes of \a src.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @return a read-only buffer of \a count elements */
+public static IntBuffer asIntBuffer(byte[] src, int offset, int count){
+	return wrap(src, offset, count<<2).asIntBuffer().asReadOnlyBuffer();
+}
+
+/**
+ Returns a view of 4 byte floats without copying. The view reflects later changes of \a src.
+
+ @param src    the payload
+ @param offset the index of the first byte of the array in \a src
+ @param count  the number of elements
+ @return a read-only buffer of \a count elements */
+public static FloatBuffer asFloatBuffer(byte[] src, int offset, int count){
+	return wrap(src, offset, count<<2).asFloatBuffer().asReadOnlyBuffer();
+}
+}
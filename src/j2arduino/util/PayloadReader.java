@@ -0,0 +1,220 @@
+package j2arduino.util;
+
+import java.nio.charset.Charset;
+
+import static j2arduino.util.PayloadWriter.*;
+
+/**
+ Parses little-endian payloads in the layout of avr-gcc, the counterpart of {@link PayloadWriter}.
+ <p/>
+ A reader can be reused for any number of payloads ({@link #reset(byte[])}); reading primitives does not allocate. Reading beyond the end of the
+ payload throws an IndexOutOfBoundsException. See also {@link PayloadArrays} for arrays covering whole payloads.
+ \code
+ PayloadReader r = new PayloadReader(reply.msg);
+ int status = r.readUInt8();
+ long uptime = r.readUInt32();
+ \endcode
+
+ @see PayloadWriter */
+public final class PayloadReader{
+
+private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+private byte[] buf;
+private int pos;
+private int end;
+
+/** Creates a reader without payload, call {@link #reset(byte[])} before reading. */
+public PayloadReader(){
+	this(new byte[0]);
+}
+
+/**
+ Creates a reader of \a payload.
+
+ @param payload the payload (e.g. {@link j2arduino.ArduinoPacket#msg}) */
+public PayloadReader(byte[] payload){
+	reset(payload);
+}
+
+/**
+ Starts reading \a payload.
+
+ @return this reader */
+public PayloadReader reset(byte[] payload){
+	return reset(payload, 0, payload.length);
+}
+
+/**
+ Starts reading \a length bytes of \a payload starting at \a offset.
+
+ @return this reader */
+public PayloadReader reset(byte[] payload, int offset, int length){
+	if(offset < 0 || length < 0 || offset + length > payload.length)
+		throw new IndexOutOfBoundsException("Range exceeds the payload");
+	buf = payload;
+	pos = offset;
+	end = offset + length;
+	return this;
+}
+
+/** @return the number of bytes left */
+public int remaining(){
+	return end - pos;
+}
+
+/** @return the index of the next byte in the payload array */
+public int position(){
+	return pos;
+}
+
+/**
+ Skips \a n bytes.
+
+ @return this reader */
+public PayloadReader skip(int n){
+	advance(n);
+	return this;
+}
+
+/** Checks that \a n more bytes are available and returns the index of the first one. */
+private int advance(int n){
+	final int p = pos;
+	if(n < 0 || p + n > end)
+		throw new IndexOutOfBoundsException("Payload too short: " + n + " bytes needed, " + (end - p) + " left");
+	pos = p + n;
+	return p;
+}
+
+/** Reads an int8_t. */
+public int readInt8(){
+	return buf[advance(1)];
+}
+
+/** Reads an uint8_t. */
+public int readUInt8(){
+	return buf[advance(1)]&0xFF;
+}
+
+/** Reads an int16_t. */
+public int readInt16(){
+	return (short)SHORT.get(buf, advance(2));
+}
+
+/** Reads an uint16_t. */
+public int readUInt16(){
+	return (short)SHORT.get(buf, advance(2))&0xFFFF;
+}
+
+/** Reads an int32_t. */
+public int readInt32(){
+	return (int)INT.get(buf, advance(4));
+}
+
+/** Reads an uint32_t. */
+public long readUInt32(){
+	return (int)INT.get(buf, advance(4))&0xFFFFFFFFL;
+}
+
+/** Reads an int64_t. */
+public long readInt64(){
+	return (long)LONG.get(buf, advance(8));
+}
+
+/** Reads an uint64_t (values above Long.MAX_VALUE are returned as negative longs). */
+public long readUInt64(){
+	return readInt64();
+}
+
+/** Reads a 4 byte IEEE 754 float. */
+public float readFloat(){
+	return (float)FLOAT.get(buf, advance(4));
+}
+
+/** Reads an AVR {@code double}, which is a 4 byte float. */
+public double readDouble(){
+	return readFloat();
+}
+
+/** Reads an unsigned LEB128 varint as written by {@link PayloadWriter#writeVarint(long)}. */
+public long readVarint(){
+	long value = 0;
+	for(int shift = 0; shift < 64; shift += 7){
+		final byte b = buf[advance(1)];
+		value |= (long)(b&0x7F)<<shift;
+		if(b >= 0)
+			return value;
+	}
+	throw new IllegalStateException("Varint longer than 10 bytes");
+}
+
+/** Reads a zigzag encoded varint as written by {@link PayloadWriter#writeZigzag(long)}. */
+public long readZigzag(){
+	final long v = readVarint();
+	return (v>>>1)^-(v&1);
+}
+
+/**
+ Reads \a length bytes into \a dst starting at \a offset.
+
+ @return \a dst */
+public byte[] read(byte[] dst, int offset, int length){
+	System.arraycopy(buf, advance(length), dst, offset, length);
+	return dst;
+}
+
+/**
+ Reads \a length int16_t/uint16_t into \a dst starting at \a offset.
+
+ @return \a dst */
+public short[] readInt16s(short[] dst, int offset, int length){
+	int p = advance(length<<1);
+	for(int i = offset; i < offset + length; i++, p += 2)
+		dst[i] = (short)SHORT.get(buf, p);
+	return dst;
+}
+
+/**
+ Reads \a length int32_t/uint32_t into \a dst starting at \a offset.
+
+ @return \a dst */
+public int[] readInt32s(int[] dst, int offset, int length){
+	int p = advance(length<<2);
+	for(int i = offset; i < offset + length; i++, p += 4)
+		dst[i] = (int)INT.get(buf, p);
+	return dst;
+}
+
+/**
+ Reads \a length floats into \a dst starting at \a offset.
+
+ @return \a dst */
+public float[] readFloats(float[] dst, int offset, int length){
+	int p = advance(length<<2);
+	for(int i = offset; i < offset + length; i++, p += 4)
+		dst[i] = (float)FLOAT.get(buf, p);
+	return dst;
+}
+
+/**
+ Reads \a length uint16_t into \a dst starting at \a offset.
+
+ @return \a dst
+ @see PayloadArrays#toUnsignedShorts(byte[], int, int, int[]) */
+public int[] readUInt16s(int[] dst, int offset, int length){
+	int p = advance(length<<1);
+	for(int i = offset; i < offset + length; i++, p += 2)
+		dst[i] = (short)SHORT.get(buf, p)&0xFFFF;
+	return dst;
+}
+
+/** Reads a NUL-terminated string (one byte per char); the rest of the payload if it lacks the terminator. */
+public String readString(){
+	final int start = pos;
+	int i = start;
+	while(i < end && buf[i] != 0)
+		i++;
+	pos = (i < end) ? i + 1 : end;
+	return new String(buf, start, i - start, CHARSET);
+}
+}
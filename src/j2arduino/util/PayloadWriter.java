@@ -0,0 +1,204 @@
+package j2arduino.util;
+
+import java.lang.invoke.*;
+import java.nio.ByteOrder;
+
+/**
+ Builds little-endian payloads in the layout of avr-gcc.
+ <p/>
+ Values are written at once through VarHandle views of the buffer instead of byte by byte. The buffer is kept across payloads ({@link #reset()})
+ and grows if needed, so building a payload allocates nothing apart from the final {@link #toByteArray()} copy. Note that avr-gcc uses 4 byte
+ floats for {@code double} too, see {@link #writeDouble(double)}.
+ <p/>
+ All write methods return this instance to allow chaining:
+ \code
+ byte[] payload = writer.reset().writeUInt8(channel).writeInt32(value).writeString("name").toByteArray();
+ \endcode
+
+ @see PayloadReader */
+public final class PayloadWriter{
+
+static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+static final VarHandle FLOAT = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+
+private byte[] buf;
+private int pos;
+
+/** Creates a writer with a buffer of the size of one arduino2j payload. */
+public PayloadWriter(){
+	this(255);
+}
+
+/**
+ Creates a writer.
+
+ @param capacity the initial size of the buffer (it grows as needed) */
+public PayloadWriter(int capacity){
+	buf = new byte[capacity];
+}
+
+/**
+ Discards the written bytes to start a new payload.
+
+ @return this writer */
+public PayloadWriter reset(){
+	pos = 0;
+	return this;
+}
+
+/** @return the number of bytes written */
+public int length(){
+	return pos;
+}
+
+/** @return the buffer; the payload is in its first {@link #length()} bytes until the next write */
+public byte[] array(){
+	return buf;
+}
+
+/** @return a copy of the payload */
+public byte[] toByteArray(){
+	final byte[] b = new byte[pos];
+	System.arraycopy(buf, 0, b, 0, pos);
+	return b;
+}
+
+/** Makes room for \a n more bytes and returns the index to write them to. */
+private int advance(int n){
+	final int p = pos;
+	if(p + n > buf.length){
+		final byte[] b = new byte[Math.max(buf.length<<1, p + n)];
+		System.arraycopy(buf, 0, b, 0, p);
+		buf = b;
+	}
+	pos = p + n;
+	return p;
+}
+
+/** Writes the lowest 8 bits of \a value (int8_t or uint8_t). */
+public PayloadWriter writeInt8(int value){
+	final int p = advance(1);
+	buf[p] = (byte)value;
+	return this;
+}
+
+/** Writes the lowest 8 bits of \a value (uint8_t). */
+public PayloadWriter writeUInt8(int value){
+	return writeInt8(value);
+}
+
+/** Writes the lowest 16 bits of \a value (int16_t or uint16_t). */
+public PayloadWriter writeInt16(int value){
+	final int p = advance(2);
+	SHORT.set(buf, p, (short)value);
+	return this;
+}
+
+/** Writes the lowest 16 bits of \a value (uint16_t). */
+public PayloadWriter writeUInt16(int value){
+	return writeInt16(value);
+}
+
+/** Writes \a value as int32_t. */
+public PayloadWriter writeInt32(int value){
+	final int p = advance(4);
+	INT.set(buf, p, value);
+	return this;
+}
+
+/** Writes the lowest 32 bits of \a value (uint32_t). */
+public PayloadWriter writeUInt32(long value){
+	return writeInt32((int)value);
+}
+
+/** Writes \a value as int64_t. */
+public PayloadWriter writeInt64(long value){
+	final int p = advance(8);
+	LONG.set(buf, p, value);
+	return this;
+}
+
+/** Writes \a value as uint64_t (values above Long.MAX_VALUE are passed as negative longs). */
+public PayloadWriter writeUInt64(long value){
+	return writeInt64(value);
+}
+
+/** Writes \a value as 4 byte IEEE 754 float. */
+public PayloadWriter writeFloat(float value){
+	final int p = advance(4);
+	FLOAT.set(buf, p, value);
+	return this;
+}
+
+/** Writes \a value as AVR {@code double}, which is a 4 byte float, i.e. with float precision. */
+public PayloadWriter writeDouble(double value){
+	return writeFloat((float)value);
+}
+
+/** Writes \a value as unsigned LEB128 varint: 7 bits per byte, least significant first, the high bit set in all but the last byte. */
+public PayloadWriter writeVarint(long value){
+	while((value&~0x7FL) != 0){
+		writeInt8((int)value|0x80);
+		value >>>= 7;
+	}
+	return writeInt8((int)value);
+}
+
+/** Writes \a value as zigzag encoded varint, so that small negative values are short too. */
+public PayloadWriter writeZigzag(long value){
+	return writeVarint((value<<1)^(value>>63));
+}
+
+/** Writes the bytes of \a src. */
+public PayloadWriter write(byte[] src){
+	return write(src, 0, src.length);
+}
+
+/** Writes \a length bytes of \a src starting at \a offset. */
+public PayloadWriter write(byte[] src, int offset, int length){
+	final int p = advance(length);
+	System.arraycopy(src, offset, buf, p, length);
+	return this;
+}
+
+/** Writes \a length elements of \a src starting at \a offset as int16_t/uint16_t. */
+public PayloadWriter writeInt16s(short[] src, int offset, int length){
+	int p = advance(length<<1);
+	for(int i = offset; i < offset + length; i++, p += 2)
+		SHORT.set(buf, p, src[i]);
+	return this;
+}
+
+/** Writes \a length elements of \a src starting at \a offset as int32_t/uint32_t. */
+public PayloadWriter writeInt32s(int[] src, int offset, int length){
+	int p = advance(length<<2);
+	for(int i = offset; i < offset + length; i++, p += 4)
+		INT.set(buf, p, src[i]);
+	return this;
+}
+
+/** Writes \a length elements of \a src starting at \a offset as floats. */
+public PayloadWriter writeFloats(float[] src, int offset, int length){
+	int p = advance(length<<2);
+	for(int i = offset; i < offset + length; i++, p += 4)
+		FLOAT.set(buf, p, src[i]);
+	return this;
+}
+
+/**
+ Writes \a s as NUL-terminated string, one byte per char (ISO-8859-1; other chars are replaced by '?').
+
+ @param s the string, it should not contain NUL characters */
+public PayloadWriter writeString(String s){
+	final int n = s.length();
+	int p = advance(n + 1);
+	for(int i = 0; i < n; i++){
+		final char c = s.charAt(i);
+		buf[p++] = (byte)((c <= 0xFF) ? c : '?');
+	}
+	buf[p] = 0;
+	return this;
+}
+}
@@ -0,0 +1,94 @@
+package j2arduino.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ An Executor that runs its tasks one at a time in submission order on another (possibly shared and multi-threaded) Executor.
+ <p/>
+ This allows many independent serial task queues to share one thread pool without giving up ordering within each queue.
+ */
+public class SerialExecutor implements Executor{
+
+private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+private final Executor executor;
+/** The task currently handed over to #executor, or null if idle. */
+private Runnable active;
+
+/**
+ Creates a new SerialExecutor.
+
+ @param executor the executor running the tasks */
+public SerialExecutor(Executor executor){
+	this.executor = executor;
+}
+
+/**
+ Queues \a r to be run after all tasks queued before.
+
+ @throws RejectedExecutionException if \a r would be run next but the underlying executor rejects it; \a r is not queued then */
+@Override
+public synchronized void execute(Runnable r){
+	tasks.add(r);
+	if(active == null){
+		// nothing is running, thus r is the only queued task
+		active = tasks.poll();
+		try{
+			executor.execute(wrap(active));
+		} catch(RuntimeException e){
+			active = null;
+			throw e;
+		}
+	}
+}
+
+/** Wraps \a r to hand over the next task when it finished. */
+private Runnable wrap(final Runnable r){
+	return new Runnable(){
+		@Override
+		public void run(){
+			try{
+				r.run();
+			} finally{
+				scheduleNext();
+			}
+		}
+	};
+}
+
+/**
+ Hands over the next task to #executor. If that rejects it (e.g. because it was shut down) the remaining tasks are run on the calling thread,
+ which just finished the previous one, so that they are neither lost nor block the tasks queued later.
+ */
+private void scheduleNext(){
+	while(true){
+		final Runnable next;
+		synchronized(this){
+			next = tasks.poll();
+			active = next;
+			if(next == null)
+				return;
+			try{
+				executor.execute(wrap(next));
+				return;
+			} catch(RejectedExecutionException e){
+				// run it below, #active stays set so that new tasks queue behind it
+			}
+		}
+		try{
+			next.run();
+		} catch(Throwable t){
+			final Thread thread = Thread.currentThread();
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+		}
+	}
+}
+
+/**
+ Returns the number of tasks waiting to be run (excluding the one running currently).
+
+ @return the number of queued tasks */
+public synchronized int getQueueDepth(){
+	return tasks.size();
+}
+}
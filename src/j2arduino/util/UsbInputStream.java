@@ -4,10 +4,29 @@ import javax.usb.*;
 import javax.usb.util.DefaultUsbIrp;
 import java.io.*;
 
+/**
+ An InputStream reading from an USB bulk-IN pipe.
+ <p/>
+ Keeps several IRPs (see {@link #J2ARDUINO_USB_IRPS}) submitted asynchronously at all times, so the endpoint is not idle between reads and
+ incoming packets are already buffered when they are requested. The IRPs and their buffers are allocated once and reused in a ring.
+ */
 public class UsbInputStream extends InputStream{
 
+/** Setting for the number of IRPs kept in flight (default: {@value #DEFAULT_IRPS}). */
+public static final String J2ARDUINO_USB_IRPS = "j2arduino.usb.irps";
+/** Default value of {@link #J2ARDUINO_USB_IRPS}. */
+public static final int DEFAULT_IRPS = 4;
+/** Time in milliseconds after which a waiting reader checks if it was interrupted. */
+private static final long INTERRUPT_CHECK_INTERVAL = 50;
+
 private final UsbPipe in;
-private final byte[] buffer;
+/** The ring of IRPs, each with its own buffer of one packet. */
+private final UsbIrp[] irps;
+/** Index of the IRP whose data is consumed currently or -1 if the IRPs are not submitted yet. */
+private int current;
+/** Indicates that the data of the current IRP was not taken over yet (i.e. it may still be in flight). */
+private boolean pending;
+private byte[] buffer;
 /** Index of the first buffered byte. */
 private int start;
 /** Index of the last buffered byte. */
@@ -15,23 +34,45 @@ private int end;
 
 public UsbInputStream(UsbPipe inPipe){
 	in = inPipe;
-	buffer = new byte[in.getUsbEndpoint().getUsbEndpointDescriptor().wMaxPacketSize()];
+	final int packetSize = in.getUsbEndpoint().getUsbEndpointDescriptor().wMaxPacketSize();
+	final int count = Math.max(1, Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_USB_IRPS, Integer.toString(DEFAULT_IRPS))));
+	irps = new UsbIrp[count];
+	for(int i = 0; i < count; i++)
+		irps[i] = new DefaultUsbIrp(new byte[packetSize], 0, packetSize, true);
+	current = -1;
+	pending = false;
+	buffer = irps[0].getData();
 	start = 0;
 	end = -1;
 }
 
-@Override
-public int read() throws IOException{
+/** Makes at least one byte available. */
+private void ensureData() throws IOException{
+	while(start > end){
+		if(!pending)
+			advance();
+		awaitCurrent();
+	}
+}
+
+/**
+ Moves on to the next IRP in the ring, after resubmitting the IRP consumed before (or submitting all IRPs initially).
+
+ @throws IOException if submitting failed */
+private void advance() throws IOException{
 	try{
-		while(start > end){
-			UsbIrp irp = new DefaultUsbIrp(buffer, 0, buffer.length, true);
-			in.syncSubmit(irp);
-			start = 0;
-			int actLen = irp.getActualLength();
-			end = actLen - 1;
+		if(current < 0){
+			for(UsbIrp irp : irps)
+				in.asyncSubmit(irp);
+			current = 0;
+		} else{
+			UsbIrp irp = irps[current];
+			irp.setComplete(false);
+			irp.setUsbException(null);
+			irp.setActualLength(0);
+			in.asyncSubmit(irp);
+			current = (current + 1) % irps.length;
 		}
-		return buffer[start++];
-
 	} catch(UsbException e){
 		if(e.getCause() instanceof InterruptedException){
 			InterruptedIOException ex = new InterruptedIOException();
@@ -40,38 +81,66 @@ public int read() throws IOException{
 		} else
 			throw new IOException("Receiving from an UsbPipe failed", e);
 	}
+	pending = true;
+	start = 0;
+	end = -1;
+}
+
+/**
+ Waits for the current IRP and makes its data available. If the waiting thread is interrupted, the IRP stays current, so no data is lost.
+
+ @throws IOException if the IRP failed or the calling thread was interrupted while waiting */
+private void awaitCurrent() throws IOException{
+	UsbIrp irp = irps[current];
+	while(!irp.isComplete()){
+		irp.waitUntilComplete(INTERRUPT_CHECK_INTERVAL);
+		if(!irp.isComplete() && Thread.interrupted())
+			throw new InterruptedIOException("Interrupted while waiting for an UsbIrp");
+	}
+	pending = false;
+	if(irp.isUsbException())
+		throw new IOException("Receiving from an UsbPipe failed", irp.getUsbException());
+	buffer = irp.getData();
+	end = irp.getActualLength() - 1;
+}
+
+@Override
+public int read() throws IOException{
+	ensureData();
+	return buffer[start++]&0xFF;
 }
 
 @Override
 public int read(byte[] b, int off, int len) throws IOException{
 	if(len == 0)
 		return 0;
-	int ret;
-	// if there is nothing buffered, read at least one byte (API req)
-	if(start > end){
-		b[off++] = (byte)read();
-		ret = 1;
-	} else
-		ret = 0;
+	// if there is nothing buffered, wait for at least one byte (API req)
+	ensureData();
 
 	// min(bytes requested, bytes buffered)
-	final int toRead = Math.min(len - ret, available());
-	final int max = off + toRead;
-	for(; off < max; off++){
-		b[off] = buffer[start++];
-	}
-	return ret + toRead;
+	final int toRead = Math.min(len, end - start + 1);
+	System.arraycopy(buffer, start, b, off, toRead);
+	start += toRead;
+	return toRead;
 }
 
+/** Returns the number of bytes of the current IRP or, if it is consumed, of the next one, if it has completed already. */
 @Override
 public int available(){
-	return end - start + 1;
+	if(start <= end)
+		return end - start + 1;
+	if(current < 0)
+		return 0;
+	UsbIrp irp = pending ? irps[current] : irps[(current + 1) % irps.length];
+	return (irp.isComplete() && !irp.isUsbException()) ? irp.getActualLength() : 0;
 }
 
 // TODO: introduce a boolean value to reflect this and throw exceptions in methods when used while this stream is closed
 @Override
 public void close() throws IOException{
 	try{
+		if(current >= 0)
+			in.abortAllSubmissions();
 		in.close();
 	} catch(UsbException e){
 		throw new IOException("Error closing the underlying UsbPipe", e);
@@ -4,38 +4,125 @@ import javax.usb.*;
 import javax.usb.util.DefaultUsbIrp;
 import java.io.*;
 
+/**
+ An OutputStream writing to an USB bulk-OUT pipe.
+ <p/>
+ Written bytes are packed into transfers of a multiple of the endpoint's maximum packet size. Full transfers are submitted asynchronously as soon
+ as they are filled, using a ring of reusable IRPs (see {@link #J2ARDUINO_USB_OUT_IRPS}) which also bounds the number of transfers in flight.
+ {@link #flush()} submits the remaining bytes and waits for all transfers to complete, so errors are reported to the writer of the data they
+ belong to.
+ */
 public class UsbOutputStream extends OutputStream{
 
+/** Setting for the number of IRPs that may be in flight at a time (default: {@value #DEFAULT_IRPS}). */
+public static final String J2ARDUINO_USB_OUT_IRPS = "j2arduino.usb.out.irps";
+/** Default value of {@link #J2ARDUINO_USB_OUT_IRPS}. */
+public static final int DEFAULT_IRPS = 4;
+/** Number of maximum-sized packets per transfer. */
+public static final int PACKETS_PER_TRANSFER = 8;
+/** Time in milliseconds after which a waiting writer checks if it was interrupted. */
+private static final long INTERRUPT_CHECK_INTERVAL = 50;
+
 protected final UsbPipe out;
+/** The ring of IRPs, each with its own buffer of one transfer. */
+private final UsbIrp[] irps;
+private final int transferSize;
+/** Index of the IRP being filled. */
+private int fill;
+/** Number of bytes in the IRP being filled. */
+private int filled;
+/** Number of IRPs submitted but not completed yet. They precede #fill in the ring. */
+private int inFlight;
 
 public UsbOutputStream(UsbPipe outPipe){
 	out = outPipe;
+	transferSize = out.getUsbEndpoint().getUsbEndpointDescriptor().wMaxPacketSize() * PACKETS_PER_TRANSFER;
+	final int count = Math.max(1, Integer.parseInt(J2ArduinoSettings.getSetting(J2ARDUINO_USB_OUT_IRPS, Integer.toString(DEFAULT_IRPS))));
+	irps = new UsbIrp[count];
+	for(int i = 0; i < count; i++)
+		irps[i] = new DefaultUsbIrp(new byte[transferSize], 0, transferSize, true);
+	fill = 0;
+	filled = 0;
+	inFlight = 0;
 }
 
 @Override
 public void write(byte[] b, int off, int len) throws IOException{
-	try{
-		DefaultUsbIrp irp = new DefaultUsbIrp(b, off, len, true);
-		out.syncSubmit(irp);
-	} catch(UsbException e){
-		throw new IOException("Sending to an UsbPipe failed", e);
+	while(len > 0){
+		if(filled == 0 && inFlight == irps.length)
+			reapOldest(); // the IRP to fill is still in flight
+		int n = Math.min(len, transferSize - filled);
+		System.arraycopy(b, off, irps[fill].getData(), filled, n);
+		filled += n;
+		off += n;
+		len -= n;
+		if(filled == transferSize)
+			submitFill();
 	}
 }
 
 @Override
 public void write(int i) throws IOException{
+	if(filled == 0 && inFlight == irps.length)
+		reapOldest();
+	irps[fill].getData()[filled++] = (byte)i;
+	if(filled == transferSize)
+		submitFill();
+}
+
+/** Submits all buffered bytes and waits until all transfers are completed. */
+@Override
+public void flush() throws IOException{
+	if(filled > 0)
+		submitFill();
+	while(inFlight > 0)
+		reapOldest();
+}
+
+private void submitFill() throws IOException{
+	UsbIrp irp = irps[fill];
+	irp.setLength(filled);
+	irp.setActualLength(0);
+	irp.setComplete(false);
+	irp.setUsbException(null);
 	try{
-		byte[] outB = {(byte)(i&0xFF)};
-		out.syncSubmit(outB);
+		out.asyncSubmit(irp);
 	} catch(UsbException e){
+		filled = 0;
 		throw new IOException("Sending to an UsbPipe failed", e);
 	}
+	inFlight++;
+	fill = (fill + 1) % irps.length;
+	filled = 0;
+}
+
+/** Waits for the oldest transfer in flight to complete. If it failed, all other transfers in flight are aborted. */
+private void reapOldest() throws IOException{
+	UsbIrp irp = irps[(fill - inFlight + irps.length) % irps.length];
+	while(!irp.isComplete()){
+		irp.waitUntilComplete(INTERRUPT_CHECK_INTERVAL);
+		if(!irp.isComplete() && Thread.interrupted())
+			throw new InterruptedIOException("Interrupted while waiting for an UsbIrp");
+	}
+	inFlight--;
+	if(irp.isUsbException()){
+		if(inFlight > 0){
+			try{
+				out.abortAllSubmissions();
+			} catch(RuntimeException ignored){ // pipe not open or device gone, the error is reported anyway
+			}
+			inFlight = 0;
+		}
+		throw new IOException("Sending to an UsbPipe failed", irp.getUsbException());
+	}
 }
 
 // TODO: introduce a boolean value to reflect this and throw exceptions in methods when used while this stream is closed
 @Override
 public void close() throws IOException{
 	try{
+		if(inFlight > 0)
+			out.abortAllSubmissions();
 		out.close();
 	} catch(UsbException e){
 		throw new IOException("Error closing the underlying UsbPipe", e);
@@ -0,0 +1,69 @@
+package j2arduino.util;
+
+import java.lang.reflect.Method;
+
+/**
+ Creates the threads j2arduino uses for its connection workers.
+ <p/>
+ If the setting {@link #J2ARDUINO_VIRTUAL_THREADS} is true and the runtime supports virtual threads (Java 21 and later), virtual threads are
+ created, else platform threads as before. Virtual threads are looked up reflectively so j2arduino still runs on older runtimes.
+ */
+public class WorkerThreads{
+
+/** Setting enabling virtual threads for connection workers (default: false). */
+public static final String J2ARDUINO_VIRTUAL_THREADS = "j2arduino.threads.virtual";
+
+/** Thread.ofVirtual() or null if not supported/enabled. */
+private static final Method ofVirtual;
+private static final Method builderName;
+private static final Method builderUnstarted;
+
+static{
+	Method ov = null;
+	Method n = null;
+	Method u = null;
+	if(Boolean.parseBoolean(J2ArduinoSettings.getSetting(J2ARDUINO_VIRTUAL_THREADS, "false"))){
+		try{
+			ov = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			n = builder.getMethod("name", String.class);
+			u = builder.getMethod("unstarted", Runnable.class);
+		} catch(Exception e){
+			System.err.println("Virtual threads are not supported by this runtime, using platform threads.");
+			ov = null;
+		}
+	}
+	ofVirtual = ov;
+	builderName = n;
+	builderUnstarted = u;
+}
+
+private WorkerThreads(){
+}
+
+/**
+ Returns if newly created threads will be virtual threads.
+
+ @return true if virtual threads are enabled and supported */
+public static boolean isVirtual(){
+	return ofVirtual != null;
+}
+
+/**
+ Creates a new unstarted thread.
+
+ @param r    the code to run
+ @param name the name of the thread
+ @return a virtual thread if enabled and supported, a platform thread otherwise */
+public static Thread newThread(Runnable r, String name){
+	if(ofVirtual != null){
+		try{
+			Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+			return (Thread)builderUnstarted.invoke(builder, r);
+		} catch(Exception e){
+			throw new IllegalStateException("Could not create virtual thread " + name, e);
+		}
+	}
+	return new Thread(r, name);
+}
+}
@@ -0,0 +1,488 @@
+import j2arduino.ArduinoFunctionMapping;
+import j2arduino.ArduinoPacket;
+import j2arduino.devices.ArduinoFrameCodec;
+import j2arduino.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ Microbenchmarks of the hot paths that do not need hardware: framing, buffers, queues, integer helpers and function mapping lookups.
+ <p/>
+ Every benchmark runs in a JVM of its own, so the JIT profiles of earlier benchmarks (e.g. call sites that became megamorphic) do not slow down
+ later ones; it is warmed up and then measured in several iterations of a fixed duration, and the mean time per operation and the standard
+ deviation over the iterations are reported. The numbers of reference runs are kept in {@code j2a_bench.baseline.txt} next to this file to spot regressions
+ (compare runs on the same machine only). Every block of rows in it starts with a header naming the machine it was recorded on; new benchmarks are
+ appended as a new block instead of regenerating the file, so the existing rows stay comparable with earlier runs.
+ <p/>
+ Benchmarks with concurrent threads need a core per thread; they are skipped on machines with fewer cores, as they would measure the scheduler
+ rather than contention there.
+ <p/>
+ Usage: {@code java j2a_bench [-append baseline] [filter]} runs all benchmarks whose name contains {@code filter}. With {@code -append} only the
+ benchmarks not in the file {@code baseline} yet are run and their rows are appended to it.
+ */
+public class j2a_bench{
+
+private static final int WARMUP_ITERATIONS = 5;
+private static final int ITERATIONS = 10;
+private static final long ITERATION_NANOS = 200000000L;
+
+/** Results of benchmarks are folded into this field to keep the JIT from removing their work. */
+public static volatile long sink;
+
+/** A benchmark body. */
+private abstract static class Bench{
+	final String name;
+
+	Bench(String name){
+		this.name = name;
+	}
+
+	/**
+	 Runs \a ops operations.
+
+	 @return a value depending on the work done */
+	abstract long run(int ops) throws Exception;
+
+	/** @return the number of threads the benchmark runs concurrently */
+	int threads(){
+		return 1;
+	}
+}
+
+private j2a_bench(){
+}
+
+static public void main(String[] args) throws Exception{
+	String baseline = null;
+	String filter = "";
+	for(int i = 0; i < args.length; i++){
+		if(args[i].equals("-append") && i + 1 < args.length)
+			baseline = args[++i];
+		else if(args[i].equals("-fork") && i + 1 < args.length){
+			// in the forked JVM: measure one benchmark
+			for(Bench b : benchmarks()){
+				if(b.name.equals(args[i + 1]))
+					System.out.print(measure(b));
+			}
+			return;
+		} else
+			filter = args[i];
+	}
+	final Set<String> recorded = (baseline != null) ? recorded(baseline) : Collections.<String>emptySet();
+	final int cpus = Runtime.getRuntime().availableProcessors();
+	final StringBuilder out = new StringBuilder();
+	out.append(String.format("# %s %s, %s %s, %s, %d cpus%n",
+	                         System.getProperty("java.vm.name"),
+	                         System.getProperty("java.version"),
+	                         System.getProperty("os.name"),
+	                         System.getProperty("os.arch"),
+	                         cpuModel(),
+	                         cpus));
+	out.append(String.format("# %-40s %12s %10s%n", "benchmark", "ns/op", "stdev"));
+	System.out.print(out);
+	int rows = 0;
+	for(Bench b : benchmarks()){
+		if(!b.name.contains(filter) || recorded.contains(b.name))
+			continue;
+		final String row;
+		if(b.threads() > cpus)
+			row = String.format("# %-40s skipped, needs %d cpus%n", b.name, b.threads());
+		else{
+			row = fork(b);
+			rows++;
+		}
+		System.out.print(row);
+		out.append(row);
+	}
+	if(baseline != null && rows > 0){
+		final Writer w = new FileWriter(baseline, true);
+		try{
+			w.write(out.toString());
+		} finally{
+			w.close();
+		}
+	}
+}
+
+/** @return the names of the benchmarks with rows in the baseline file \a file */
+private static Set<String> recorded(String file) throws IOException{
+	final Set<String> names = new HashSet<String>();
+	final BufferedReader r = new BufferedReader(new FileReader(file));
+	try{
+		String line;
+		while((line = r.readLine()) != null){
+			final String[] fields = line.trim().split("\\s+");
+			if(line.startsWith("#") || fields.length < 3)
+				continue;
+			final StringBuilder name = new StringBuilder(fields[0]);
+			for(int i = 1; i < fields.length - 2; i++)
+				name.append(' ').append(fields[i]);
+			names.add(name.toString());
+		}
+	} finally{
+		r.close();
+	}
+	return names;
+}
+
+/** Measures \a b in a new JVM with the class path and VM options of this one; @return the row of the result */
+private static String fork(Bench b) throws IOException, InterruptedException{
+	final List<String> cmd = new ArrayList<String>();
+	cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+	cmd.addAll(java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments());
+	cmd.add("-cp");
+	cmd.add(System.getProperty("java.class.path"));
+	cmd.add(j2a_bench.class.getName());
+	cmd.add("-fork");
+	cmd.add(b.name);
+	final Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	final InputStream in = p.getInputStream();
+	final byte[] buf = new byte[4096];
+	int n;
+	while((n = in.read(buf)) > 0)
+		out.write(buf, 0, n);
+	if(p.waitFor() != 0)
+		throw new IOException("Benchmark " + b.name + " failed: " + out);
+	return out.toString();
+}
+
+/** @return the CPU model name if the OS tells it */
+private static String cpuModel(){
+	try{
+		final BufferedReader r = new BufferedReader(new FileReader("/proc/cpuinfo"));
+		try{
+			String line;
+			while((line = r.readLine()) != null){
+				if(line.startsWith("model name"))
+					return line.substring(line.indexOf(':') + 1).trim();
+			}
+		} finally{
+			r.close();
+		}
+	} catch(IOException e){
+		// not Linux
+	}
+	return "unknown cpu";
+}
+
+private static List<Bench> benchmarks(){
+	final List<Bench> list = new ArrayList<Bench>();
+	for(final int size : new int[]{0, 16, 64, 255}){
+		for(final int density : new int[]{0, 10, 50}){
+			final byte[] payload = payload(size, density);
+			final ByteBuffer frame = ByteBuffer.allocate(ArduinoFrameCodec.A2J_MAX_FRAME);
+			list.add(new Bench("codec.encode size=" + size + " esc=" + density + "%"){
+				@Override
+				long run(int ops){
+					long r = 0;
+					for(int i = 0; i < ops; i++){
+						frame.clear();
+						r += ArduinoFrameCodec.encode((byte)i, 1, payload, frame);
+					}
+					return r;
+				}
+			});
+			final ByteBuffer encoded = ByteBuffer.allocate(ArduinoFrameCodec.A2J_MAX_FRAME);
+			ArduinoFrameCodec.encode((byte)0, 1, payload, encoded);
+			encoded.flip();
+			final ArduinoFrameCodec.Decoder decoder = new ArduinoFrameCodec.Decoder();
+			list.add(new Bench("codec.decode size=" + size + " esc=" + density + "%"){
+				@Override
+				long run(int ops) throws Exception{
+					long r = 0;
+					for(int i = 0; i < ops; i++){
+						encoded.rewind();
+						decoder.reset(0);
+						if(decoder.decode(encoded))
+							r += decoder.getMsg().length;
+					}
+					return r;
+				}
+			});
+		}
+	}
+
+	final byte[] chunk = payload(64, 0);
+	list.add(new Bench("ByteVector.append(byte) 4096"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				ByteVector v = new ByteVector();
+				for(int j = 0; j < 4096; j++)
+					v.append((byte)j);
+				r += v.length();
+			}
+			return r;
+		}
+	});
+	list.add(new Bench("ByteVector.append(byte[64]) 4096"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				ByteVector v = new ByteVector(512);
+				for(int j = 0; j < 4096 / chunk.length; j++)
+					v.append(chunk);
+				r += v.length();
+			}
+			return r;
+		}
+	});
+	final ByteVector filled = new ByteVector(4096);
+	for(int j = 0; j < 4096; j++)
+		filled.append((byte)j);
+	list.add(new Bench("ByteVector.getAll 4096"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += filled.getAll().length;
+			return r;
+		}
+	});
+
+	for(final int producers : new int[]{1, 4}){
+		list.add(new Bench("ConcurrentRingBuffer put/take producers=" + producers){
+			@Override
+			long run(final int ops) throws Exception{
+				final ConcurrentRingBuffer<Integer> buffer = new ConcurrentRingBuffer<Integer>(8, "disabled");
+				final CountDownLatch done = new CountDownLatch(producers);
+				final Integer element = 42;
+				for(int p = 0; p < producers; p++){
+					final int share = ops / producers + ((p < ops % producers) ? 1 : 0);
+					Thread t = new Thread(new Runnable(){
+						@Override
+						public void run(){
+							for(int i = 0; i < share; i++)
+								buffer.putUninterruptible(element);
+							done.countDown();
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+				}
+				long r = 0;
+				for(int i = 0; i < ops; i++)
+					r += buffer.take();
+				done.await();
+				return r;
+			}
+
+			@Override
+			int threads(){
+				return producers + 1;
+			}
+		});
+	}
+
+	final byte[] ints = new byte[64];
+	list.add(new Bench("ArduinoPacket.writeUnsignedInteger 4B"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += ArduinoPacket.writeUnsignedInteger(i, ints, (i&15)<<2, 4);
+			return r;
+		}
+	});
+	list.add(new Bench("ArduinoPacket.readUnsignedInteger 4B"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += ArduinoPacket.readUnsignedInteger(ints, (i&15)<<2, 4);
+			return r;
+		}
+	});
+	final PayloadWriter writer = new PayloadWriter(64);
+	list.add(new Bench("PayloadWriter.writeUInt32 16x"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				writer.reset();
+				for(int j = 0; j < 16; j++)
+					writer.writeUInt32(i + j);
+				r += writer.length();
+			}
+			return r;
+		}
+	});
+	list.add(new Bench("ArduinoPacket.writeUnsignedInteger 16x"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				int off = 0;
+				for(int j = 0; j < 16; j++)
+					off = ArduinoPacket.writeUnsignedInteger(i + j, ints, off, 4);
+				r += off;
+			}
+			return r;
+		}
+	});
+	final PayloadReader reader = new PayloadReader();
+	list.add(new Bench("PayloadReader.readUInt32 16x"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				reader.reset(ints);
+				for(int j = 0; j < 16; j++)
+					r += reader.readUInt32();
+			}
+			return r;
+		}
+	});
+	list.add(new Bench("ArduinoPacket.readUnsignedInteger 16x"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++){
+				for(int j = 0; j < 16; j++)
+					r += ArduinoPacket.readUnsignedInteger(ints, j<<2, 4);
+			}
+			return r;
+		}
+	});
+
+	for(final int count : new int[]{127, 4096}){
+		final byte[] samples = payload(count * 2, 0);
+		final int[] ints16 = new int[count];
+		final short[] shorts = new short[count];
+		list.add(new Bench("samples uint16 readUnsignedInteger n=" + count){
+			@Override
+			long run(int ops){
+				long r = 0;
+				for(int i = 0; i < ops; i++){
+					for(int j = 0; j < count; j++)
+						ints16[j] = ArduinoPacket.readUnsignedInteger(samples, j<<1, 2);
+					r += ints16[i % count];
+				}
+				return r;
+			}
+		});
+		list.add(new Bench("samples uint16 toUnsignedShorts n=" + count){
+			@Override
+			long run(int ops){
+				long r = 0;
+				for(int i = 0; i < ops; i++)
+					r += PayloadArrays.toUnsignedShorts(samples, 0, count, ints16)[i % count];
+				return r;
+			}
+		});
+		list.add(new Bench("samples int16 toShorts n=" + count){
+			@Override
+			long run(int ops){
+				long r = 0;
+				for(int i = 0; i < ops; i++)
+					r += PayloadArrays.toShorts(samples, 0, count, shorts)[i % count];
+				return r;
+			}
+		});
+		list.add(new Bench("samples int16 asShortBuffer n=" + count){
+			@Override
+			long run(int ops){
+				long r = 0;
+				for(int i = 0; i < ops; i++)
+					r += PayloadArrays.asShortBuffer(samples, 0, count).get(i % count);
+				return r;
+			}
+		});
+	}
+
+	final Hashtable<String, Byte> table = new Hashtable<String, Byte>();
+	final String[] names = new String[32];
+	for(int i = 0; i < names.length; i++){
+		names[i] = "a2jFunction" + i;
+		table.put(names[i], (byte)i);
+	}
+	final ArduinoFunctionMapping mapping = new ArduinoFunctionMapping(table);
+	list.add(new Bench("ArduinoFunctionMapping.get hit"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += mapping.get(names[i&31]);
+			return r;
+		}
+	});
+	list.add(new Bench("ArduinoFunctionMapping.get miss"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += mapping.get("a2jMissing");
+			return r;
+		}
+	});
+	list.add(new Bench("ArduinoFunctionMapping.getName"){
+		@Override
+		long run(int ops){
+			long r = 0;
+			for(int i = 0; i < ops; i++)
+				r += mapping.getName((byte)(i&31)).length();
+			return r;
+		}
+	});
+	return list;
+}
+
+/** Returns a deterministic payload of \a size bytes in which about \a density percent of the bytes need to be escaped. */
+private static byte[] payload(int size, int density){
+	final Random random = new Random(size * 101 + density);
+	final byte[] payload = new byte[size];
+	for(int i = 0; i < size; i++){
+		if(random.nextInt(100) < density)
+			payload[i] = random.nextBoolean() ? ArduinoFrameCodec.A2J_SOF : ArduinoFrameCodec.A2J_ESC;
+		else{
+			byte b;
+			do{
+				b = (byte)random.nextInt(256);
+			} while(b == ArduinoFrameCodec.A2J_SOF || b == ArduinoFrameCodec.A2J_ESC);
+			payload[i] = b;
+		}
+	}
+	return payload;
+}
+
+/** @return the row of the result */
+private static String measure(Bench b) throws Exception{
+	// calibrate the number of operations per iteration
+	int ops = 1;
+	while(true){
+		long start = System.nanoTime();
+		sink += b.run(ops);
+		long elapsed = System.nanoTime() - start;
+		if(elapsed > ITERATION_NANOS / 10 || ops >= (1<<30))
+			break;
+		ops <<= 1;
+	}
+	final double[] results = new double[ITERATIONS];
+	for(int i = -WARMUP_ITERATIONS; i < ITERATIONS; i++){
+		long done = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do{
+			sink += b.run(ops);
+			done += ops;
+			elapsed = System.nanoTime() - start;
+		} while(elapsed < ITERATION_NANOS);
+		if(i >= 0)
+			results[i] = (double)elapsed / done;
+	}
+	double mean = 0;
+	for(double r : results)
+		mean += r;
+	mean /= ITERATIONS;
+	double var = 0;
+	for(double r : results)
+		var += (r - mean) * (r - mean);
+	return String.format("  %-40s %12.2f %10.2f%n", b.name, mean, Math.sqrt(var / (ITERATIONS - 1)));
+}
+}
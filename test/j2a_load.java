@@ -0,0 +1,406 @@
+import j2arduino.*;
+import j2arduino.devices.Arduino;
+import j2arduino.util.WorkerThreads;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Load generator: drives echo calls from several client threads against all connected Arduinos and reports throughput, errors and latency
+ percentiles per device.
+ <p/>
+ Usage: {@code java j2a_load [option=value...]} with the options
+ <ul>
+ <li>{@code devices} - the maximum number of Arduinos to use (default: all available)</li>
+ <li>{@code threads} - the number of client threads per Arduino (default: 1)</li>
+ <li>{@code mode} - {@code sync} ({@code a2jEcho} via sendSync), {@code async} ({@code a2jEcho} via sendAsync with a listener) or {@code long}
+ ({@code a2jEchoMany} via sendLongByName) (default: sync)</li>
+ <li>{@code window} - the maximum number of outstanding requests per thread in async mode (default: 8)</li>
+ <li>{@code size} - the payload size distribution: {@code N} (fixed), {@code uniform:MIN:MAX} or {@code exp:MEAN} (default: 32)</li>
+ <li>{@code rate} - the target rate in calls/s per Arduino, 0 for as fast as possible (default: 0)</li>
+ <li>{@code warmup}, {@code duration} - in seconds (defaults: 2, 10)</li>
+ <li>{@code format} - {@code text}, {@code csv} or {@code json} (default: text)</li>
+ </ul>
+ Arduinos are found through the ArduinoGateway, thus {@code -Dj2arduino.kinds=Emulator -Dj2arduino.emulator.devices=4} runs against four
+ emulated devices (see j2arduino.devices.EmulatedDevice for their fault injection settings).
+ <p/>
+ With a target rate the calls are scheduled at fixed intervals and latencies are measured from the scheduled start, so stalls are not hidden by
+ the client waiting for them (coordinated omission). Latencies are kept in full, percentiles are exact.
+ */
+public class j2a_load{
+
+private j2a_load(){
+}
+
+/** The results of one client thread. */
+private static final class Stats{
+	long[] latencies = new long[1024];
+	int count;
+	long bytes;
+	final Map<String, Integer> errors = new TreeMap<String, Integer>();
+
+	synchronized void ok(long nanos, int payloadBytes){
+		if(count == latencies.length)
+			latencies = Arrays.copyOf(latencies, count * 2);
+		latencies[count++] = nanos;
+		bytes += payloadBytes;
+	}
+
+	synchronized void error(String kind){
+		Integer n = errors.get(kind);
+		errors.put(kind, (n == null) ? 1 : n + 1);
+	}
+
+	synchronized void add(Stats o){
+		synchronized(o){
+			for(int i = 0; i < o.count; i++)
+				ok(o.latencies[i], 0);
+			bytes += o.bytes;
+			for(Map.Entry<String, Integer> e : o.errors.entrySet()){
+				Integer n = errors.get(e.getKey());
+				errors.put(e.getKey(), (n == null) ? e.getValue() : n + e.getValue());
+			}
+		}
+	}
+
+	int errorCount(){
+		int n = 0;
+		for(int e : errors.values())
+			n += e;
+		return n;
+	}
+}
+
+/** A payload size distribution. */
+private static final class Sizes{
+	private final String kind;
+	private final int a;
+	private final int b;
+
+	Sizes(String spec){
+		String[] parts = spec.split(":");
+		if(parts.length == 1){
+			kind = "fixed";
+			a = b = Integer.parseInt(parts[0]);
+		} else if(parts[0].equals("uniform") && parts.length == 3){
+			kind = parts[0];
+			a = Integer.parseInt(parts[1]);
+			b = Integer.parseInt(parts[2]);
+		} else if(parts[0].equals("exp") && parts.length == 2){
+			kind = parts[0];
+			a = b = Integer.parseInt(parts[1]);
+		} else
+			throw new IllegalArgumentException("Unknown size distribution: " + spec);
+	}
+
+	int next(Random random, int max){
+		int n;
+		if(kind.equals("uniform"))
+			n = a + random.nextInt(b - a + 1);
+		else if(kind.equals("exp"))
+			n = (int)(-a * Math.log(1 - random.nextDouble()));
+		else
+			n = a;
+		return Math.max(0, Math.min(n, max));
+	}
+}
+
+static public void main(String[] args) throws Exception{
+	final Map<String, String> opts = new HashMap<String, String>();
+	for(String arg : args){
+		int eq = arg.indexOf('=');
+		if(eq <= 0)
+			throw new IllegalArgumentException("Options are of the form option=value: " + arg);
+		opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+	}
+	final int maxDevices = Integer.parseInt(option(opts, "devices", String.valueOf(Integer.MAX_VALUE)));
+	final int threads = Integer.parseInt(option(opts, "threads", "1"));
+	final String mode = option(opts, "mode", "sync");
+	final int window = Integer.parseInt(option(opts, "window", "8"));
+	final Sizes sizes = new Sizes(option(opts, "size", "32"));
+	final double rate = Double.parseDouble(option(opts, "rate", "0"));
+	final long warmup = (long)(Double.parseDouble(option(opts, "warmup", "2")) * 1e9);
+	final long duration = (long)(Double.parseDouble(option(opts, "duration", "10")) * 1e9);
+	final String format = option(opts, "format", "text");
+	if(!Arrays.asList("sync", "async", "long").contains(mode))
+		throw new IllegalArgumentException("Unknown mode: " + mode);
+	final int maxSize = mode.equals("long") ? Integer.MAX_VALUE : Arduino.A2J_MAX_PAYLOAD;
+
+	final List<Arduino> arduinos = new ArrayList<Arduino>();
+	for(Arduino a : ArduinoGateway.getInstance().getAvailableArduinos(true)){
+		if(arduinos.size() >= maxDevices)
+			break;
+		a.connect(null);
+		arduinos.add(a);
+	}
+	if(arduinos.isEmpty()){
+		System.err.println("No remote device found, bailing.");
+		return;
+	}
+	Collections.sort(arduinos, new Comparator<Arduino>(){
+		@Override
+		public int compare(Arduino a, Arduino b){
+			return a.address.compareTo(b.address);
+		}
+	});
+
+	final long start = System.nanoTime() + 100000000L;
+	final long measureStart = start + warmup;
+	final long end = measureStart + duration;
+	final long interval = (rate > 0) ? (long)(1e9 * threads / rate) : 0;
+	final Stats[][] stats = new Stats[arduinos.size()][threads];
+	final CountDownLatch done = new CountDownLatch(arduinos.size() * threads);
+	for(int d = 0; d < arduinos.size(); d++){
+		for(int t = 0; t < threads; t++){
+			final Arduino a = arduinos.get(d);
+			final Stats s = stats[d][t] = new Stats();
+			final Random random = new Random(d * 1000 + t);
+			// spread the schedules of the threads of a device evenly
+			final long first = start + ((interval > 0) ? interval * t / threads : 0);
+			WorkerThreads.newThread(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						if(mode.equals("async"))
+							runAsync(a, s, random, sizes, maxSize, window, first, interval, measureStart, end);
+						else
+							runSync(a, mode.equals("long"), s, random, sizes, maxSize, first, interval, measureStart, end);
+					} catch(InterruptedException ignored){
+					} finally{
+						done.countDown();
+					}
+				}
+			}, a.address + "-load-" + t).start();
+		}
+	}
+	done.await();
+
+	final Stats total = new Stats();
+	final List<String> names = new ArrayList<String>();
+	final List<Stats> rows = new ArrayList<Stats>();
+	for(int d = 0; d < arduinos.size(); d++){
+		Stats device = new Stats();
+		for(Stats s : stats[d])
+			device.add(s);
+		total.add(device);
+		names.add(arduinos.get(d).address);
+		rows.add(device);
+	}
+	names.add("total");
+	rows.add(total);
+	for(Stats s : rows)
+		Arrays.sort(s.latencies, 0, s.count);
+
+	final double seconds = duration / 1e9;
+	if(format.equals("csv")){
+		System.out.println("device,mode,threads,size,target_rate,calls,errors,calls_per_s,bytes_per_s,mean_us,p50_us,p90_us,p99_us,p999_us,max_us");
+		for(int i = 0; i < rows.size(); i++){
+			Stats s = rows.get(i);
+			System.out.format(Locale.ROOT,
+			                  "%s,%s,%d,%s,%.1f,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+			                  names.get(i),
+			                  mode,
+			                  threads,
+			                  option(opts, "size", "32"),
+			                  rate,
+			                  s.count,
+			                  s.errorCount(),
+			                  s.count / seconds,
+			                  s.bytes / seconds,
+			                  mean(s) / 1e3,
+			                  percentile(s, 0.5) / 1e3,
+			                  percentile(s, 0.9) / 1e3,
+			                  percentile(s, 0.99) / 1e3,
+			                  percentile(s, 0.999) / 1e3,
+			                  percentile(s, 1) / 1e3);
+		}
+	} else if(format.equals("json")){
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT,
+		                        "{\"mode\":\"%s\",\"threads\":%d,\"size\":\"%s\",\"targetRate\":%.1f,\"duration\":%.3f,\"devices\":[",
+		                        mode,
+		                        threads,
+		                        option(opts, "size", "32"),
+		                        rate,
+		                        seconds));
+		for(int i = 0; i < rows.size(); i++){
+			Stats s = rows.get(i);
+			if(i > 0)
+				sb.append(',');
+			sb.append(String.format(Locale.ROOT,
+			                        "{\"device\":\"%s\",\"calls\":%d,\"callsPerSecond\":%.1f,\"bytesPerSecond\":%.1f,\"latencyUs\":{\"mean\":%.1f,"
+			                        + "\"p50\":%.1f,\"p90\":%.1f,\"p99\":%.1f,\"p999\":%.1f,\"max\":%.1f},\"errors\":{",
+			                        names.get(i),
+			                        s.count,
+			                        s.count / seconds,
+			                        s.bytes / seconds,
+			                        mean(s) / 1e3,
+			                        percentile(s, 0.5) / 1e3,
+			                        percentile(s, 0.9) / 1e3,
+			                        percentile(s, 0.99) / 1e3,
+			                        percentile(s, 0.999) / 1e3,
+			                        percentile(s, 1) / 1e3));
+			boolean first = true;
+			for(Map.Entry<String, Integer> e : s.errors.entrySet()){
+				if(!first)
+					sb.append(',');
+				first = false;
+				sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+			}
+			sb.append("}}");
+		}
+		sb.append("]}");
+		System.out.println(sb);
+	} else{
+		System.out.format("mode=%s threads/device=%d size=%s rate=%s devices=%d duration=%.1fs%n",
+		                  mode,
+		                  threads,
+		                  option(opts, "size", "32"),
+		                  (rate > 0) ? rate + "/s" : "max",
+		                  arduinos.size(),
+		                  seconds);
+		System.out.format("%-20s %10s %10s %10s %9s %9s %9s %9s %9s %9s%n",
+		                  "device",
+		                  "calls/s",
+		                  "kB/s",
+		                  "errors",
+		                  "mean us",
+		                  "p50 us",
+		                  "p90 us",
+		                  "p99 us",
+		                  "p99.9 us",
+		                  "max us");
+		for(int i = 0; i < rows.size(); i++){
+			Stats s = rows.get(i);
+			System.out.format("%-20s %10.1f %10.1f %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+			                  names.get(i),
+			                  s.count / seconds,
+			                  s.bytes / seconds / 1e3,
+			                  s.errorCount(),
+			                  mean(s) / 1e3,
+			                  percentile(s, 0.5) / 1e3,
+			                  percentile(s, 0.9) / 1e3,
+			                  percentile(s, 0.99) / 1e3,
+			                  percentile(s, 0.999) / 1e3,
+			                  percentile(s, 1) / 1e3);
+		}
+		if(!total.errors.isEmpty())
+			System.out.println("errors: " + total.errors);
+	}
+
+	for(Arduino a : arduinos)
+		a.disconnect();
+}
+
+private static String option(Map<String, String> opts, String key, String defaultValue){
+	String v = opts.get(key);
+	return (v != null) ? v : defaultValue;
+}
+
+/** Waits until \a deadline (System.nanoTime()) has passed. */
+private static void sleepUntil(long deadline) throws InterruptedException{
+	long nanos;
+	while((nanos = deadline - System.nanoTime()) > 0){
+		LockSupport.parkNanos(nanos);
+		if(Thread.interrupted())
+			throw new InterruptedException();
+	}
+}
+
+private static void runSync(Arduino a, boolean isLong, Stats s, Random random, Sizes sizes, int maxSize, long next, long interval, long measureStart,
+                            long end) throws InterruptedException{
+	sleepUntil(next);
+	while(true){
+		final long scheduled = (interval > 0) ? next : System.nanoTime();
+		if(scheduled >= end)
+			return;
+		final byte[] payload = new byte[sizes.next(random, maxSize)];
+		random.nextBytes(payload);
+		String error = null;
+		try{
+			ArduinoPacket reply = isLong ? a.sendLongByName("a2jEchoMany", payload) : a.sendSyncByName("a2jEcho", payload);
+			if(reply.cmd != 0)
+				error = "return value " + (reply.cmd&0xFF);
+			else if(!Arrays.equals(payload, reply.msg))
+				error = "payload mismatch";
+		} catch(IOException e){
+			error = e.getClass().getSimpleName();
+		} catch(IllegalStateException e){
+			error = "not connected";
+		}
+		final long finished = System.nanoTime();
+		if(scheduled >= measureStart){
+			if(error == null)
+				s.ok(finished - scheduled, payload.length);
+			else
+				s.error(error);
+		}
+		if(interval > 0){
+			next += interval;
+			sleepUntil(next);
+		}
+	}
+}
+
+private static void runAsync(Arduino a, final Stats s, Random random, Sizes sizes, int maxSize, int window, long next, long interval,
+                             final long measureStart, long end) throws InterruptedException{
+	final byte offset = a.getFuncMapping().get("a2jEcho");
+	final Semaphore outstanding = new Semaphore(window);
+	sleepUntil(next);
+	while(true){
+		final long scheduled = (interval > 0) ? next : System.nanoTime();
+		if(scheduled >= end)
+			break;
+		outstanding.acquire();
+		final byte[] payload = new byte[sizes.next(random, maxSize)];
+		random.nextBytes(payload);
+		try{
+			a.sendAsync(new ArduinoPacket(offset, payload, new ArduinoResponseListener(){
+				@Override
+				public void handleResponse(ArduinoPacket answer){
+					final long finished = System.nanoTime();
+					outstanding.release();
+					if(scheduled < measureStart)
+						return;
+					if(answer.ex != null)
+						s.error(answer.ex.getClass().getSimpleName());
+					else if(answer.cmd != 0)
+						s.error("return value " + (answer.cmd&0xFF));
+					else if(!Arrays.equals(payload, answer.msg))
+						s.error("payload mismatch");
+					else
+						s.ok(finished - scheduled, payload.length);
+				}
+			}));
+		} catch(IllegalStateException e){
+			outstanding.release();
+			if(scheduled >= measureStart)
+				s.error("not connected");
+		}
+		if(interval > 0){
+			next += interval;
+			sleepUntil(next);
+		}
+	}
+	// wait for the outstanding replies
+	outstanding.acquire(window);
+}
+
+private static double mean(Stats s){
+	double sum = 0;
+	for(int i = 0; i < s.count; i++)
+		sum += s.latencies[i];
+	return (s.count == 0) ? 0 : sum / s.count;
+}
+
+/** Returns the \a p percentile of the sorted latencies of \a s (nearest rank). */
+private static long percentile(Stats s, double p){
+	if(s.count == 0)
+		return 0;
+	int rank = (int)Math.ceil(p * s.count);
+	return s.latencies[Math.max(0, Math.min(rank, s.count) - 1)];
+}
+}
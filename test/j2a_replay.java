@@ -0,0 +1,189 @@
+import j2arduino.devices.*;
+import j2arduino.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Replays trace files written with {@code -Dj2arduino.trace=DIR} (see j2arduino.devices.ArduinoTrace).
+ <p/>
+ Usage: {@code java j2a_replay TRACE [dump|decode|emulator] [original|max]}
+ <ul>
+ <li>{@code dump} prints the records (default),</li>
+ <li>{@code decode} feeds the recorded bytes of both directions into frame decoders and reports the frames, errors and decoding throughput,</li>
+ <li>{@code emulator} sends the recorded requests to an emulated device, compares its replies with the recorded ones and reports the round trip
+ times.</li>
+ </ul>
+ The records are replayed with their original timing or as fast as possible (default).
+ */
+public class j2a_replay{
+
+private j2a_replay(){
+}
+
+static public void main(String[] args) throws Exception{
+	if(args.length < 1){
+		System.err.println("Usage: java j2a_replay TRACE [dump|decode|emulator] [original|max]");
+		return;
+	}
+	final String mode = (args.length > 1) ? args[1] : "dump";
+	final boolean original = (args.length > 2) && args[2].equals("original");
+	final ArduinoTrace.Reader reader = new ArduinoTrace.Reader(new File(args[0]));
+	try{
+		System.out.format("# trace of %s started %tF %<tT%n", reader.getAddress(), new Date(reader.getStartMillis()));
+		if(mode.equals("dump"))
+			dump(reader, original);
+		else if(mode.equals("decode"))
+			decode(reader, original);
+		else if(mode.equals("emulator"))
+			emulate(reader, original);
+		else
+			System.err.println("Unknown mode: " + mode);
+	} finally{
+		reader.close();
+	}
+}
+
+/** Waits until \a nanos after \a start if replaying with original timing. */
+private static void pace(boolean original, long start, long nanos){
+	if(!original)
+		return;
+	long remaining;
+	while((remaining = start + nanos - System.nanoTime()) > 0)
+		LockSupport.parkNanos(remaining);
+}
+
+private static void dump(ArduinoTrace.Reader reader, boolean original){
+	final long start = System.nanoTime();
+	while(reader.next()){
+		pace(original, start, reader.getNanos());
+		final ByteBuffer data = reader.getData();
+		final int length = data.remaining();
+		final StringBuilder sb = new StringBuilder(length * 3);
+		while(data.hasRemaining())
+			sb.append(String.format(" %02X", data.get()));
+		System.out.format("%14.6f ms %s seq=%3d len=%3d:%s%n",
+		                  reader.getNanos() / 1e6,
+		                  (reader.getDirection() == ArduinoTrace.DIRECTION_SENT) ? "->" : "<-",
+		                  reader.getSeq()&0xFF,
+		                  length,
+		                  sb);
+	}
+}
+
+private static void decode(ArduinoTrace.Reader reader, boolean original){
+	final ArduinoFrameCodec.Decoder requests = new ArduinoFrameCodec.Decoder();
+	final ArduinoFrameCodec.Decoder replies = new ArduinoFrameCodec.Decoder();
+	requests.reset(-1);
+	replies.reset(-1);
+	final long[] frames = new long[3];
+	final long[] checksumErrors = new long[3];
+	final long[] framingErrors = new long[3];
+	final long[] bytes = new long[3];
+	long decodeNanos = 0;
+	final long start = System.nanoTime();
+	while(reader.next()){
+		pace(original, start, reader.getNanos());
+		final int dir = reader.getDirection();
+		final ArduinoFrameCodec.Decoder decoder = (dir == ArduinoTrace.DIRECTION_SENT) ? requests : replies;
+		final ByteBuffer data = reader.getData();
+		bytes[dir] += data.remaining();
+		final long t = System.nanoTime();
+		while(data.hasRemaining()){
+			try{
+				if(decoder.decode(data))
+					frames[dir]++;
+			} catch(ArduinoFrameCodec.ChecksumException e){
+				checksumErrors[dir]++;
+			} catch(EOFException e){
+				framingErrors[dir]++;
+			}
+		}
+		decodeNanos += System.nanoTime() - t;
+	}
+	final long elapsed = System.nanoTime() - start;
+	for(int dir = ArduinoTrace.DIRECTION_SENT; dir <= ArduinoTrace.DIRECTION_RECEIVED; dir++)
+		System.out.format("%-8s %8d frames %10d bytes %6d checksum errors %6d framing errors%n",
+		                  (dir == ArduinoTrace.DIRECTION_SENT) ? "sent" : "received",
+		                  frames[dir],
+		                  bytes[dir],
+		                  checksumErrors[dir],
+		                  framingErrors[dir]);
+	final long total = bytes[1] + bytes[2];
+	System.out.format("replayed in %.1f ms, decoding took %.1f ms (%.1f MB/s, %.0f ns/frame)%n",
+	                  elapsed / 1e6,
+	                  decodeNanos / 1e6,
+	                  total * 1e3 / Math.max(1, decodeNanos),
+	                  (double)decodeNanos / Math.max(1, frames[1] + frames[2]));
+}
+
+private static void emulate(ArduinoTrace.Reader reader, boolean original) throws IOException{
+	final MemoryPipe toDevice = new MemoryPipe(4096);
+	final MemoryPipe fromDevice = new MemoryPipe(4096);
+	new EmulatedDevice(reader.getAddress()).start(toDevice.in, fromDevice.out);
+	final ArduinoFrameCodec.Decoder recorded = new ArduinoFrameCodec.Decoder();
+	final ArduinoFrameCodec.Decoder replies = new ArduinoFrameCodec.Decoder();
+	recorded.reset(-1);
+	final LatencyHistogram rtt = new LatencyHistogram();
+	final ByteBuffer received = ByteBuffer.allocate(Arduino.BUFFER_SIZE);
+	received.flip();
+	// replies of the emulator not compared yet, as pairs of return value and payload
+	final LinkedList<Object[]> pending = new LinkedList<Object[]>();
+	long requests = 0;
+	long mismatches = 0;
+	long compared = 0;
+	final long start = System.nanoTime();
+	while(reader.next()){
+		final ByteBuffer data = reader.getData();
+		if(reader.getDirection() == ArduinoTrace.DIRECTION_SENT){
+			pace(original, start, reader.getNanos());
+			final byte[] frame = new byte[data.remaining()];
+			data.get(frame);
+			final long t = System.nanoTime();
+			toDevice.out.write(frame);
+			replies.reset(reader.getSeq()&0xFF);
+			while(true){
+				if(!received.hasRemaining()){
+					received.clear();
+					int n = fromDevice.in.read(received.array(), 0, received.capacity());
+					if(n < 0)
+						throw new EOFException("Emulated device closed the connection");
+					received.limit(n);
+				}
+				try{
+					if(replies.decode(received))
+						break;
+				} catch(EOFException e){
+					break; // corrupted reply, compared as mismatch
+				}
+			}
+			rtt.record(System.nanoTime() - t);
+			pending.add(new Object[]{replies.getCmd(), replies.getMsg()});
+			requests++;
+		} else{
+			while(data.hasRemaining()){
+				try{
+					if(recorded.decode(data) && !pending.isEmpty()){
+						final Object[] reply = pending.removeFirst();
+						compared++;
+						if((Byte)reply[0] != recorded.getCmd() || !Arrays.equals((byte[])reply[1], recorded.getMsg()))
+							mismatches++;
+					}
+				} catch(EOFException e){
+					// the recorded reply was corrupted already
+				}
+			}
+		}
+	}
+	toDevice.close();
+	fromDevice.close();
+	System.out.format("%d requests replayed in %.1f ms, %d of %d replies differ from the recorded ones%n",
+	                  requests,
+	                  (System.nanoTime() - start) / 1e6,
+	                  mismatches,
+	                  compared);
+	System.out.println("rtt: " + rtt);
+}
+}
@@ -0,0 +1,84 @@
+import j2arduino.devices.*;
+import j2arduino.util.*;
+
+import java.io.IOException;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Scaling benchmark: connects many emulated devices ({@link ArduinoEmulator}) and lets one blocking caller per device do echo calls concurrently.
+ <p/>
+ Usage: {@code java [-Dj2arduino.threads.virtual=true] [-Dj2arduino.eventloop=true] j2a_scaling [devices [callsPerDevice [payloadSize]]]}
+ (defaults: 1000, 20, 32). With the event loop enabled the devices are connected through NIO pipes instead of in-memory streams.
+ */
+public class j2a_scaling{
+
+private static final boolean USE_CHANNELS = Boolean.parseBoolean(J2ArduinoSettings.getSetting(Arduino.J2ARDUINO_EVENTLOOP, "false"));
+
+private j2a_scaling(){
+}
+
+static public void main(String[] args) throws Exception{
+	final int devices = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+	final int calls = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+	final int payloadSize = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+	System.out.format("devices=%d calls/device=%d payload=%dB virtual=%b eventloop=%b%n",
+	                  devices,
+	                  calls,
+	                  payloadSize,
+	                  WorkerThreads.isVirtual(),
+	                  USE_CHANNELS);
+
+	final ArduinoEmulator[] arduinos = new ArduinoEmulator[devices];
+	long start = System.nanoTime();
+	for(int i = 0; i < devices; i++){
+		arduinos[i] = new ArduinoEmulator("loop-" + i, "loop-" + i);
+		arduinos[i].connect(null);
+	}
+	long connected = System.nanoTime();
+	System.out.format("connect: %.1f ms total, %.1f us/device%n", (connected - start) / 1e6, (connected - start) / 1e3 / devices);
+
+	final CountDownLatch done = new CountDownLatch(devices);
+	final AtomicLong failures = new AtomicLong();
+	final byte[] payload = new byte[payloadSize];
+	new Random(0).nextBytes(payload);
+	start = System.nanoTime();
+	for(int i = 0; i < devices; i++){
+		final Arduino a = arduinos[i];
+		WorkerThreads.newThread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					for(int c = 0; c < calls; c++){
+						try{
+							if(!Arrays.equals(payload, a.sendSyncByName("a2jEcho", payload).msg))
+								failures.incrementAndGet();
+						} catch(IOException e){
+							failures.incrementAndGet();
+						}
+					}
+				} catch(InterruptedException ignored){
+				} finally{
+					done.countDown();
+				}
+			}
+		}, a.address + "-caller").start();
+	}
+	done.await();
+	long end = System.nanoTime();
+
+	final long total = (long)devices * calls;
+	final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+	System.out.format("calls: %d in %.1f ms (%.0f calls/s), %d failed%n", total, (end - start) / 1e6, total * 1e9 / (end - start), failures.get());
+	System.out.format("platform threads: %d live, %d peak; heap used: %.1f MiB%n",
+	                  threads.getThreadCount(),
+	                  threads.getPeakThreadCount(),
+	                  heap.getUsed() / 1048576.0);
+
+	for(Arduino a : arduinos)
+		a.disconnect();
+}
+}